@@ -0,0 +1,173 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.example.osmofflinelib.api.IMapView;
+import com.example.osmofflinelib.config.Configuration;
+import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
+import com.example.osmofflinelib.tileprovider.tilesource.XYTileSource;
+import com.example.osmofflinelib.utils.MapTileIndex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the compiled statements of {@link SqlTileWriter}, on both tile layouts,
+ * and compares their speed with the cursor queries they replaced
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqlTileWriterTest {
+
+    private final ITileSource mSource = new XYTileSource("test", 0, 18, 256, ".png", new String[]{"http://localhost/"});
+    private SqlTileWriter mWriter;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final File cache = new File(context.getCacheDir(), "sqlTileWriterTest");
+        Configuration.getInstance().setOsmdroidTileCache(cache);
+        Configuration.getInstance().setSqlCacheWriteBehind(false);
+        mWriter = new SqlTileWriter();
+    }
+
+    @After
+    public void tearDown() {
+        mWriter.refreshDb();
+        Configuration.getInstance().setSqlCacheDeduplication(false);
+        final File file = new File(Configuration.getInstance().getOsmdroidTileCache(), SqlTileWriter.DATABASE_FILENAME);
+        for (final String suffix : new String[]{"", "-wal", "-shm", "-journal"}) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    private static byte[] getTile(final int pColor) {
+        final Bitmap bitmap = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(pColor);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    private boolean save(final long pMapTileIndex, final byte[] pBits, final Long pExpirationTime) {
+        return mWriter.saveFile(mSource, pMapTileIndex, new ByteArrayInputStream(pBits), pExpirationTime, "\"etag\"", null);
+    }
+
+    @Test
+    public void testStatements() throws Exception {
+        checkStatements();
+    }
+
+    @Test
+    public void testStatementsDeduplicated() throws Exception {
+        mWriter.refreshDb();
+        Configuration.getInstance().setSqlCacheDeduplication(true); // the layout is chosen when opening
+        checkStatements();
+    }
+
+    private void checkStatements() throws Exception {
+        final long tile = MapTileIndex.getTileIndex(12, 100, 200);
+        final long other = MapTileIndex.getTileIndex(12, 101, 200);
+        assertFalse(mWriter.exists(mSource, tile));
+        assertNull(mWriter.getExpirationTimestamp(mSource, tile));
+        assertNull(mWriter.loadTile(mSource, tile));
+
+        assertTrue(save(tile, getTile(Color.BLUE), 1234L));
+        assertTrue(save(other, getTile(Color.BLUE), null));
+        assertTrue(mWriter.exists(mSource, tile));
+        assertTrue(mWriter.exists(mSource.name(), other));
+        assertEquals(Long.valueOf(1234), mWriter.getExpirationTimestamp(mSource, tile));
+        assertNotNull(mWriter.loadTile(mSource, tile));
+        assertNotNull(mWriter.loadTile(mSource, other));
+        assertArrayEquals(new String[]{"\"etag\"", null}, mWriter.getValidators(mSource, tile));
+
+        assertTrue(mWriter.updateExpirationTimestamp(mSource, tile, 5678, null, "yesterday"));
+        assertEquals(Long.valueOf(5678), mWriter.getExpirationTimestamp(mSource, tile));
+        assertArrayEquals(new String[]{"\"etag\"", "yesterday"}, mWriter.getValidators(mSource, tile));
+
+        // replaced
+        assertTrue(save(tile, getTile(Color.RED), 4321L));
+        assertEquals(Long.valueOf(4321), mWriter.getExpirationTimestamp(mSource, tile));
+        assertEquals(2, mWriter.getRowCount(mSource.name()));
+
+        assertTrue(mWriter.remove(mSource, tile));
+        assertFalse(mWriter.exists(mSource, tile));
+        assertNull(mWriter.loadTile(mSource, tile));
+        assertNotNull(mWriter.loadTile(mSource, other));
+    }
+
+    /**
+     * The same statements, from threads that only live for a few calls
+     */
+    @Test
+    public void testShortLivedThreads() throws Exception {
+        final byte[] bits = getTile(Color.GREEN);
+        final Thread[] threads = new Thread[8];
+        final boolean[] results = new boolean[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final long tile = MapTileIndex.getTileIndex(10, index, 0);
+                    results[index] = save(tile, bits, null) && mWriter.exists(mSource, tile);
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertTrue("thread " + i, results[i]);
+        }
+        assertEquals(threads.length, mWriter.getRowCount(mSource.name()));
+    }
+
+    /**
+     * Not a pass/fail test: logs the time of the compiled statement lookups
+     * against a cursor query with a new parameter array for each tile
+     */
+    @Test
+    public void benchmarkLookups() {
+        final int count = 2000;
+        final byte[] bits = getTile(Color.GRAY);
+        for (int i = 0; i < count; i++) {
+            assertTrue(save(MapTileIndex.getTileIndex(14, i, i), bits, null));
+        }
+        for (int round = 0; round < 3; round++) { // the first rounds warm up
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                assertTrue(mWriter.exists(mSource, MapTileIndex.getTileIndex(14, i, i)));
+            }
+            final long compiled = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                final long index = SqlTileWriter.getIndex(MapTileIndex.getTileIndex(14, i, i));
+                final Cursor cursor = mWriter.getTileCursor(
+                        SqlTileWriter.getPrimaryKeyParameters(index, mSource), new String[]{"COUNT(*)"});
+                try {
+                    assertTrue(cursor.moveToFirst());
+                    assertEquals(1, cursor.getLong(0));
+                } finally {
+                    cursor.close();
+                }
+            }
+            final long cursors = System.nanoTime() - start;
+            Log.i(IMapView.LOGTAG, "SqlTileWriter lookups of " + count + " tiles: compiled statement "
+                    + compiled / 1000000 + "ms, cursor query " + cursors / 1000000 + "ms");
+        }
+    }
+}
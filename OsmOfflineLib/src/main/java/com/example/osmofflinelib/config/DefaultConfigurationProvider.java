@@ -8,6 +8,8 @@ import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 import com.example.osmofflinelib.api.IMapView;
+import com.example.osmofflinelib.tileprovider.MapTileEncodedCache;
+import com.example.osmofflinelib.tileprovider.modules.MapTileWorkerPool;
 import com.example.osmofflinelib.tileprovider.modules.SqlTileWriter;
 import com.example.osmofflinelib.tileprovider.utils.StorageUtils;
 
@@ -64,6 +66,11 @@ public class DefaultConfigurationProvider implements IConfigurationProvider {
     protected int mTileGCBulkSize = 20;
     protected long mTileGCBulkPauseInMillis = 500;
     protected boolean mTileDownloaderFollowRedirects = true;
+    protected long mCacheMapTileMaxBytes = 0;
+    protected long mCacheMapTileEncodedMaxBytes = 8L * 1024 * 1024;
+    protected long mCacheBitmapPoolMaxBytes = 8L * 1024 * 1024;
+    protected boolean mSqlCacheWriteBehind = false;
+    protected boolean mSqlCacheDeduplication = false;
 
     /**
      * @since 6.1.0
@@ -173,6 +180,7 @@ public class DefaultConfigurationProvider implements IConfigurationProvider {
     @Override
     public void setTileDownloadThreads(short tileDownloadThreads) {
         this.tileDownloadThreads = tileDownloadThreads;
+        MapTileWorkerPool.updateThreadCounts();
     }
 
     @Override
@@ -183,6 +191,7 @@ public class DefaultConfigurationProvider implements IConfigurationProvider {
     @Override
     public void setTileFileSystemThreads(short tileFileSystemThreads) {
         this.tileFileSystemThreads = tileFileSystemThreads;
+        MapTileWorkerPool.updateThreadCounts();
     }
 
     @Override
@@ -365,6 +374,11 @@ public class DefaultConfigurationProvider implements IConfigurationProvider {
             setAnimationSpeedShort(prefs.getInt("osmdroid.animationSpeedShort", animationSpeedShort));
             setCacheMapTileOvershoot((short) (prefs.getInt("osmdroid.cacheTileOvershoot", cacheTileOvershoot)));
             setMapTileDownloaderFollowRedirects(prefs.getBoolean("osmdroid.TileDownloaderFollowRedirects", mTileDownloaderFollowRedirects));
+            setCacheMapTileMaxBytes(prefs.getLong("osmdroid.cacheMapTileMaxBytes", mCacheMapTileMaxBytes));
+            setCacheMapTileEncodedMaxBytes(prefs.getLong("osmdroid.cacheMapTileEncodedMaxBytes", mCacheMapTileEncodedMaxBytes));
+            setCacheBitmapPoolMaxBytes(prefs.getLong("osmdroid.cacheBitmapPoolMaxBytes", mCacheBitmapPoolMaxBytes));
+            setSqlCacheWriteBehind(prefs.getBoolean("osmdroid.sqlCacheWriteBehind", mSqlCacheWriteBehind));
+            setSqlCacheDeduplication(prefs.getBoolean("osmdroid.sqlCacheDeduplication", mSqlCacheDeduplication));
 
             if (prefs.contains("osmdroid.ExpirationOverride")) {
                 expirationOverride = prefs.getLong("osmdroid.ExpirationOverride", -1);
@@ -426,6 +440,11 @@ public class DefaultConfigurationProvider implements IConfigurationProvider {
         edit.putInt("osmdroid.animationSpeedShort", animationSpeedShort);
         edit.putBoolean("osmdroid.mapViewRecycler", mapViewRecycler);
         edit.putInt("osmdroid.cacheTileOvershoot", cacheTileOvershoot);
+        edit.putLong("osmdroid.cacheMapTileMaxBytes", mCacheMapTileMaxBytes);
+        edit.putLong("osmdroid.cacheMapTileEncodedMaxBytes", mCacheMapTileEncodedMaxBytes);
+        edit.putLong("osmdroid.cacheBitmapPoolMaxBytes", mCacheBitmapPoolMaxBytes);
+        edit.putBoolean("osmdroid.sqlCacheWriteBehind", mSqlCacheWriteBehind);
+        edit.putBoolean("osmdroid.sqlCacheDeduplication", mSqlCacheDeduplication);
         commit(edit);
     }
 
@@ -607,4 +626,85 @@ public class DefaultConfigurationProvider implements IConfigurationProvider {
             return packageName;
         }
     }
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public long getCacheMapTileMaxBytes() {
+        return mCacheMapTileMaxBytes;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public void setCacheMapTileMaxBytes(final long pMaxBytes) {
+        mCacheMapTileMaxBytes = pMaxBytes;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public long getCacheMapTileEncodedMaxBytes() {
+        return mCacheMapTileEncodedMaxBytes;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public void setCacheMapTileEncodedMaxBytes(final long pMaxBytes) {
+        mCacheMapTileEncodedMaxBytes = pMaxBytes;
+        MapTileEncodedCache.getInstance().setMaxBytes(pMaxBytes);
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public long getCacheBitmapPoolMaxBytes() {
+        return mCacheBitmapPoolMaxBytes;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public void setCacheBitmapPoolMaxBytes(final long pMaxBytes) {
+        mCacheBitmapPoolMaxBytes = pMaxBytes;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public boolean isSqlCacheWriteBehind() {
+        return mSqlCacheWriteBehind;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public void setSqlCacheWriteBehind(final boolean pWriteBehind) {
+        mSqlCacheWriteBehind = pWriteBehind;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public boolean isSqlCacheDeduplication() {
+        return mSqlCacheDeduplication;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public void setSqlCacheDeduplication(final boolean pDeduplication) {
+        mSqlCacheDeduplication = pDeduplication;
+    }
 }
@@ -144,6 +144,9 @@ public interface IConfigurationProvider {
      */
     short getTileDownloadThreads();
 
+    /**
+     * Applied right away to the shared {@link com.example.osmofflinelib.tileprovider.modules.MapTileWorkerPool}
+     */
     void setTileDownloadThreads(short tileDownloadThreads);
 
     /**
@@ -154,7 +157,8 @@ public interface IConfigurationProvider {
     short getTileFileSystemThreads();
 
     /**
-     * used for both file system cache and the sqlite cache
+     * used for both file system cache and the sqlite cache.
+     * Applied right away to the shared {@link com.example.osmofflinelib.tileprovider.modules.MapTileWorkerPool}
      *
      * @param tileFileSystemThreads
      */
@@ -481,4 +485,79 @@ public interface IConfigurationProvider {
      * @since 6.1.0
      */
     String getNormalizedUserAgent();
+
+    /**
+     * Maximum size in bytes of the in-memory tile cache.
+     * When strictly positive, the memory cache is trimmed according to the actual size of the tiles
+     * instead of their count, and bigger, older, scaled or expired tiles are evicted first.
+     * 0 (default) means that only the tile count is taken into account.
+     *
+     * @see com.example.osmofflinelib.tileprovider.MapTileCache#computeMaxBytes(android.content.Context)
+     * @since 6.2.1
+     */
+    long getCacheMapTileMaxBytes();
+
+    /**
+     * @since 6.2.1
+     */
+    void setCacheMapTileMaxBytes(final long pMaxBytes);
+
+    /**
+     * Maximum size in bytes of the in-memory cache of encoded (PNG, JPEG, ...) tiles,
+     * used as a second tier behind the decoded bitmap cache. 0 disables it.
+     *
+     * @see com.example.osmofflinelib.tileprovider.MapTileEncodedCache
+     * @since 6.2.1
+     */
+    long getCacheMapTileEncodedMaxBytes();
+
+    /**
+     * Applied right away to the shared {@link com.example.osmofflinelib.tileprovider.MapTileEncodedCache}
+     *
+     * @since 6.2.1
+     */
+    void setCacheMapTileEncodedMaxBytes(final long pMaxBytes);
+
+    /**
+     * Maximum size in bytes of the bitmaps kept for reuse in the bitmap pool
+     *
+     * @see com.example.osmofflinelib.tileprovider.BitmapPool
+     * @since 6.2.1
+     */
+    long getCacheBitmapPoolMaxBytes();
+
+    /**
+     * @since 6.2.1
+     */
+    void setCacheBitmapPoolMaxBytes(final long pMaxBytes);
+
+    /**
+     * If true, the tiles saved in the sqlite cache are queued and written in batches,
+     * one transaction per batch, instead of one transaction per tile.
+     * Queued tiles are still visible to the reads. Default is false.
+     *
+     * @see com.example.osmofflinelib.tileprovider.modules.SqlTileWriter
+     * @since 6.2.1
+     */
+    boolean isSqlCacheWriteBehind();
+
+    /**
+     * @since 6.2.1
+     */
+    void setSqlCacheWriteBehind(final boolean pWriteBehind);
+
+    /**
+     * If true, the tiles saved in the sqlite cache are deduplicated: identical tile images
+     * are stored only once. Once enabled, the cache database keeps the deduplicated layout.
+     * Default is false.
+     *
+     * @see com.example.osmofflinelib.tileprovider.modules.SqlTileDeduplication
+     * @since 6.2.1
+     */
+    boolean isSqlCacheDeduplication();
+
+    /**
+     * @since 6.2.1
+     */
+    void setSqlCacheDeduplication(final boolean pDeduplication);
 }
@@ -7,20 +7,63 @@ import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.Log;
 import com.example.osmofflinelib.api.IMapView;
+import com.example.osmofflinelib.config.Configuration;
 import com.example.osmofflinelib.tileprovider.modules.ConfigurablePriorityThreadFactory;
+import com.example.osmofflinelib.tileprovider.utils.Counters;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+/**
+ * Pool of mutable bitmaps to be reused when decoding or building tiles.
+ * <p>
+ * Bitmaps are stored in buckets keyed by (width, height, config), for O(1) lookups, and in a
+ * global list ordered by return time, for O(1) trimming of the eldest ones when the pool exceeds
+ * its maximum size in bytes.
+ */
 public class BitmapPool {
 
-    private final LinkedList<Bitmap> mPool = new LinkedList<>();
+    /**
+     * Counter tags for the bitmaps requested from the pool: reused, or to be allocated
+     *
+     * @since 6.2.1
+     */
+    public static final String COUNTER_HIT = "bitmapPoolHit";
+    public static final String COUNTER_MISS = "bitmapPoolMiss";
+
+    /**
+     * Pooled bitmap, chained in the global list from the eldest to the most recently returned
+     *
+     * @since 6.2.1
+     */
+    private static class Entry {
+        private final Bitmap mBitmap;
+        private final ArrayDeque<Entry> mBucket;
+        private final int mBytes;
+        private Entry mBefore;
+        private Entry mAfter;
+
+        private Entry(final Bitmap pBitmap, final ArrayDeque<Entry> pBucket) {
+            mBitmap = pBitmap;
+            mBucket = pBucket;
+            mBytes = getByteCount(pBitmap);
+        }
+    }
+
+    private final Map<Long, ArrayDeque<Entry>> mBuckets = new HashMap<>();
+    private Entry mHead;
+    private Entry mTail;
+    private long mSizeInBytes;
+    private long mMaxBytes;
     private final ExecutorService mExecutor = Executors.newFixedThreadPool(1,
             new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY, getClass().getName()));
 
     //singleton: begin
     private BitmapPool() {
+        mMaxBytes = Configuration.getInstance().getCacheBitmapPoolMaxBytes();
     }
 
     private static final BitmapPool sInstance = new BitmapPool();
@@ -30,11 +73,51 @@ public class BitmapPool {
     }
     //singleton: end
 
+    /**
+     * @param pMaxBytes maximum size in bytes of the bitmaps kept in the pool
+     * @since 6.2.1
+     */
+    public void setMaxBytes(final long pMaxBytes) {
+        synchronized (mBuckets) {
+            mMaxBytes = pMaxBytes;
+            trim();
+        }
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    public long getMaxBytes() {
+        synchronized (mBuckets) {
+            return mMaxBytes;
+        }
+    }
+
+    /**
+     * @return the size in bytes of the bitmaps currently in the pool
+     * @since 6.2.1
+     */
+    public long getSizeInBytes() {
+        synchronized (mBuckets) {
+            return mSizeInBytes;
+        }
+    }
+
     public void returnDrawableToPool(ReusableBitmapDrawable drawable) {
         Bitmap b = drawable.tryRecycle();
         if (b != null && !b.isRecycled() && b.isMutable() && b.getConfig() != null) {
-            synchronized (mPool) {
-                mPool.addLast(b);
+            synchronized (mBuckets) {
+                final Long key = getKey(b.getWidth(), b.getHeight(), b.getConfig());
+                ArrayDeque<Entry> bucket = mBuckets.get(key);
+                if (bucket == null) {
+                    bucket = new ArrayDeque<>();
+                    mBuckets.put(key, bucket);
+                }
+                final Entry entry = new Entry(b, bucket);
+                bucket.addLast(entry);
+                linkLast(entry);
+                mSizeInBytes += entry.mBytes;
+                trim();
             }
         } else if (b != null) {
             Log.d(IMapView.LOGTAG, "Rejected bitmap from being added to BitmapPool.");
@@ -58,10 +141,15 @@ public class BitmapPool {
 
     public void applyReusableOptions(final BitmapFactory.Options aBitmapOptions, final int width, final int height) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            // This could be optimized for KK and up, as from there on the only requirement is that
-            // the reused bitmap's allocatedbytes are >= the size of new one. Since the pool is
-            // almost only used for tiles of the same dimensions, the gains will probably be small.
-            aBitmapOptions.inBitmap = obtainSizedBitmapFromPool(width, height);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // from KK on, the only requirement is that the reused bitmap's allocated bytes
+                // are >= the size of the new one
+                final Bitmap.Config config = aBitmapOptions.inPreferredConfig != null
+                        ? aBitmapOptions.inPreferredConfig : Bitmap.Config.ARGB_8888;
+                aBitmapOptions.inBitmap = obtainBitmapFromPool(width, height, config, true);
+            } else {
+                aBitmapOptions.inBitmap = obtainSizedBitmapFromPool(width, height);
+            }
             aBitmapOptions.inSampleSize = 1;
             aBitmapOptions.inMutable = true;
         }
@@ -73,47 +161,182 @@ public class BitmapPool {
      */
     @Deprecated
     public Bitmap obtainBitmapFromPool() {
-        synchronized (mPool) {
-            if (mPool.isEmpty()) {
-                return null;
-            } else {
-                final Bitmap bitmap = mPool.removeFirst();
-                if (bitmap.isRecycled()) {
-                    return obtainBitmapFromPool(); // recurse
-                } else {
-                    return bitmap;
+        synchronized (mBuckets) {
+            while (mTail != null) {
+                final Entry entry = mTail;
+                remove(entry);
+                if (!entry.mBitmap.isRecycled()) {
+                    return entry.mBitmap;
                 }
             }
+            return null;
         }
     }
 
     public Bitmap obtainSizedBitmapFromPool(final int aWidth, final int aHeight) {
-        synchronized (mPool) {
-            if (mPool.isEmpty()) {
-                return null;
-            } else {
-                for (final Bitmap bitmap : mPool) {
-                    if (bitmap.isRecycled()) {
-                        mPool.remove(bitmap);
-                        return obtainSizedBitmapFromPool(aWidth, aHeight); // recurse to prevent ConcurrentModificationException
-                    } else if (bitmap.getWidth() == aWidth && bitmap.getHeight() == aHeight) {
-                        mPool.remove(bitmap);
-                        return bitmap;
-                    }
-                }
+        return obtainBitmapFromPool(aWidth, aHeight, Bitmap.Config.ARGB_8888, false);
+    }
+
+    /**
+     * @param pLargeEnough if true and if no bitmap has the exact dimensions, the smallest bitmap
+     *                     whose allocated bytes are enough is returned (KitKat and above)
+     * @return a bitmap from the pool, or null if none matches
+     * @since 6.2.1
+     */
+    public Bitmap obtainBitmapFromPool(final int pWidth, final int pHeight, final Bitmap.Config pConfig,
+                                       final boolean pLargeEnough) {
+        synchronized (mBuckets) {
+            Bitmap bitmap = pollBucket(mBuckets.get(getKey(pWidth, pHeight, pConfig)));
+            if (bitmap == null && pLargeEnough) {
+                bitmap = pollLargeEnough((long) pWidth * pHeight * getBytesPerPixel(pConfig));
+            }
+            Counters.increment(bitmap != null ? COUNTER_HIT : COUNTER_MISS);
+            return bitmap;
+        }
+    }
+
+    public void clearBitmapPool() {
+        synchronized (mBuckets) {
+            while (mHead != null) {
+                final Entry entry = mHead;
+                remove(entry);
+                entry.mBitmap.recycle();
             }
+            mBuckets.clear();
         }
+    }
 
+    /**
+     * @return the most recently returned usable bitmap of the bucket, or null
+     * @since 6.2.1
+     */
+    private Bitmap pollBucket(final ArrayDeque<Entry> pBucket) {
+        if (pBucket == null) {
+            return null;
+        }
+        while (!pBucket.isEmpty()) {
+            final Entry entry = pBucket.peekLast();
+            remove(entry);
+            if (!entry.mBitmap.isRecycled()) {
+                return entry.mBitmap;
+            }
+        }
         return null;
     }
 
-    public void clearBitmapPool() {
-        synchronized (sInstance.mPool) {
-            while (!sInstance.mPool.isEmpty()) {
-                Bitmap bitmap = sInstance.mPool.remove();
-                bitmap.recycle();
+    /**
+     * There are only a few distinct buckets (typically one per tile size), so looking at each
+     * bucket's most recent bitmap is cheap.
+     *
+     * @return the smallest usable bitmap whose allocated bytes are at least pBytes, or null
+     * @since 6.2.1
+     */
+    private Bitmap pollLargeEnough(final long pBytes) {
+        ArrayDeque<Entry> best = null;
+        int bestBytes = Integer.MAX_VALUE;
+        for (final ArrayDeque<Entry> bucket : mBuckets.values()) {
+            final Entry entry = bucket.peekLast();
+            if (entry != null && entry.mBytes >= pBytes && entry.mBytes < bestBytes) {
+                best = bucket;
+                bestBytes = entry.mBytes;
             }
         }
+        return pollBucket(best);
+    }
+
+    /**
+     * Removes the eldest bitmaps until the size fits
+     *
+     * @since 6.2.1
+     */
+    private void trim() {
+        while (mSizeInBytes > mMaxBytes && mHead != null) {
+            final Entry entry = mHead;
+            remove(entry);
+            entry.mBitmap.recycle();
+        }
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    private void remove(final Entry pEntry) {
+        // the eldest and the most recent entries of a bucket are at its ends
+        if (pEntry.mBucket.peekLast() == pEntry) {
+            pEntry.mBucket.pollLast();
+        } else if (pEntry.mBucket.peekFirst() == pEntry) {
+            pEntry.mBucket.pollFirst();
+        } else {
+            pEntry.mBucket.remove(pEntry);
+        }
+        unlink(pEntry);
+        mSizeInBytes -= pEntry.mBytes;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    private void linkLast(final Entry pEntry) {
+        pEntry.mBefore = mTail;
+        pEntry.mAfter = null;
+        if (mTail == null) {
+            mHead = pEntry;
+        } else {
+            mTail.mAfter = pEntry;
+        }
+        mTail = pEntry;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    private void unlink(final Entry pEntry) {
+        if (pEntry.mBefore == null) {
+            mHead = pEntry.mAfter;
+        } else {
+            pEntry.mBefore.mAfter = pEntry.mAfter;
+        }
+        if (pEntry.mAfter == null) {
+            mTail = pEntry.mBefore;
+        } else {
+            pEntry.mAfter.mBefore = pEntry.mBefore;
+        }
+        pEntry.mBefore = pEntry.mAfter = null;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    private static Long getKey(final int pWidth, final int pHeight, final Bitmap.Config pConfig) {
+        return ((long) pWidth << 32) | ((long) pHeight << 8) | pConfig.ordinal();
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    private static int getBytesPerPixel(final Bitmap.Config pConfig) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && pConfig == Bitmap.Config.RGBA_F16) {
+            return 8;
+        }
+        switch (pConfig) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    private static int getByteCount(final Bitmap pBitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return pBitmap.getAllocationByteCount();
+        }
+        return pBitmap.getByteCount();
     }
 
     /**
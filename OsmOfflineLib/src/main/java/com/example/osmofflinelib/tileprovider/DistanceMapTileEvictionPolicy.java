@@ -0,0 +1,118 @@
+package com.example.osmofflinelib.tileprovider;
+
+import com.example.osmofflinelib.utils.MapTileArea;
+import com.example.osmofflinelib.utils.MapTileAreaZoomComputer;
+import com.example.osmofflinelib.utils.MapTileIndex;
+
+/**
+ * Tiles the farthest from the current viewport first.
+ * <p>
+ * The viewport is projected on each zoom level with {@link MapTileAreaZoomComputer}; the distance
+ * of a tile is the number of viewports between the tile and the viewport projected on the tile's
+ * zoom level, plus a penalty per zoom level of difference. The age is only a tie-breaker.
+ * Panning back and forth or zooming in and out by one level thus keeps the tiles needed.
+ * <p>
+ * The candidates are sampled anywhere in the cache, not among the least recently accessed tiles:
+ * a far away tile is evicted even if it was accessed recently. As with any sampling, the victim
+ * is the farthest of the sample, not necessarily the farthest tile of the cache.
+ *
+ * @since 6.2.1
+ */
+
+public class DistanceMapTileEvictionPolicy implements MapTileEvictionPolicy {
+
+    /**
+     * Cost of a zoom level of difference, in viewports
+     */
+    private static final double ZOOM_WEIGHT = 2;
+
+    /**
+     * Cost of a tile with no viewport to compare to
+     */
+    private static final double FAR_AWAY = 1000;
+
+    /**
+     * Immutable computers, by zoom delta + {@link MapTileIndex#mMaxZoomLevel}:
+     * not allocated on each garbage collection
+     */
+    private static final MapTileAreaZoomComputer[] sComputers =
+            new MapTileAreaZoomComputer[2 * MapTileIndex.mMaxZoomLevel + 1];
+
+    static {
+        for (int i = 0; i < sComputers.length; i++) {
+            sComputers[i] = new MapTileAreaZoomComputer(i - MapTileIndex.mMaxZoomLevel);
+        }
+    }
+
+    private final MapTileArea[] mAreas = new MapTileArea[MapTileIndex.mMaxZoomLevel + 1];
+    private int mZoom = -1;
+
+    @Override
+    public int getSampleSize() {
+        return 16;
+    }
+
+    @Override
+    public boolean isSampledByAge() {
+        return false;
+    }
+
+    @Override
+    public void prepare(final MapTileArea pDisplayed) {
+        if (pDisplayed.size() == 0) {
+            mZoom = -1;
+            return;
+        }
+        mZoom = pDisplayed.getZoom();
+        for (int zoom = 0; zoom < mAreas.length; zoom++) {
+            if (mAreas[zoom] == null) {
+                mAreas[zoom] = new MapTileArea();
+            }
+            sComputers[zoom - mZoom + MapTileIndex.mMaxZoomLevel].computeFromSource(pDisplayed, mAreas[zoom]);
+        }
+    }
+
+    @Override
+    public double getEvictionCost(final long pMapTileIndex, final long pAge, final int pHits, final int pBytes) {
+        return getDistance(pMapTileIndex) * (1 + Math.log1p(pAge)) * Math.max(1, pBytes);
+    }
+
+    /**
+     * @return the distance to the viewport, in viewports, at least 1
+     */
+    protected double getDistance(final long pMapTileIndex) {
+        if (mZoom == -1) {
+            return FAR_AWAY;
+        }
+        final int zoom = MapTileIndex.getZoom(pMapTileIndex);
+        if (zoom >= mAreas.length) {
+            return FAR_AWAY;
+        }
+        final MapTileArea area = mAreas[zoom];
+        if (area.size() == 0) {
+            return FAR_AWAY;
+        }
+        final int mapTileUpperBound = 1 << zoom;
+        final double dx = (double) getDistance(MapTileIndex.getX(pMapTileIndex), area.getLeft(), area.getWidth(), mapTileUpperBound)
+                / area.getWidth();
+        final double dy = (double) getDistance(MapTileIndex.getY(pMapTileIndex), area.getTop(), area.getHeight(), mapTileUpperBound)
+                / area.getHeight();
+        return 1 + Math.max(dx, dy) + ZOOM_WEIGHT * Math.abs(zoom - mZoom);
+    }
+
+    /**
+     * @return the number of tiles between a value and an interval, on a wrapping axis
+     */
+    private int getDistance(final int pValue, final int pFirst, final int pSize, final int pMapTileUpperBound) {
+        int offset = pValue - pFirst;
+        while (offset < 0) {
+            offset += pMapTileUpperBound;
+        }
+        if (offset < pSize) {
+            return 0;
+        }
+        final int after = offset - pSize + 1;
+        final int before = pMapTileUpperBound - offset;
+        return Math.min(after, before);
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.osmofflinelib.tileprovider;
+
+import com.example.osmofflinelib.utils.MapTileArea;
+
+/**
+ * Least frequently used tiles first, among the least recently used ones.
+ * The hit count is divided by the age, so that tiles popular a long time ago eventually go.
+ *
+ * @since 6.2.1
+ */
+
+public class LFUMapTileEvictionPolicy implements MapTileEvictionPolicy {
+
+    @Override
+    public int getSampleSize() {
+        return 8;
+    }
+
+    @Override
+    public boolean isSampledByAge() {
+        return true;
+    }
+
+    @Override
+    public void prepare(final MapTileArea pDisplayed) {
+    }
+
+    @Override
+    public double getEvictionCost(final long pMapTileIndex, final long pAge, final int pHits, final int pBytes) {
+        return (double) (pAge + 1) * Math.max(1, pBytes) / (1 + pHits);
+    }
+}
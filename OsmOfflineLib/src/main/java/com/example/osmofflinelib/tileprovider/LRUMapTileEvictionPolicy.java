@@ -0,0 +1,31 @@
+package com.example.osmofflinelib.tileprovider;
+
+import com.example.osmofflinelib.utils.MapTileArea;
+
+/**
+ * Least recently used tiles first, weighted by their size. Default policy of {@link MapTileCache}
+ *
+ * @since 6.2.1
+ */
+
+public class LRUMapTileEvictionPolicy implements MapTileEvictionPolicy {
+
+    @Override
+    public int getSampleSize() {
+        return 4;
+    }
+
+    @Override
+    public boolean isSampledByAge() {
+        return true;
+    }
+
+    @Override
+    public void prepare(final MapTileArea pDisplayed) {
+    }
+
+    @Override
+    public double getEvictionCost(final long pMapTileIndex, final long pAge, final int pHits, final int pBytes) {
+        return (double) (pAge + 1) * Math.max(1, pBytes);
+    }
+}
@@ -1,18 +1,25 @@
 // Created by plusminus on 17:58:57 - 25.09.2008
 package com.example.osmofflinelib.tileprovider;
 
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.util.Log;
 import com.example.osmofflinelib.api.IMapView;
 import com.example.osmofflinelib.config.Configuration;
 import com.example.osmofflinelib.utils.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * In memory cache of tiles
+ * In memory cache of tiles, with a pluggable eviction policy (least recently accessed first by default)
  *
  * @author Nicolas Gramlich
  */
@@ -21,6 +28,21 @@ public class MapTileCache {
     // Constants
     // ===========================================================
 
+    /**
+     * Number of independently locked stripes, must be a power of 2
+     *
+     * @since 6.2.1
+     */
+    private static final int STRIPE_COUNT = 8;
+    private static final int STRIPE_SHIFT = 64 - Integer.numberOfTrailingZeros(STRIPE_COUNT);
+
+    /**
+     * Estimated size of a tile whose size cannot be computed (256x256 ARGB_8888)
+     *
+     * @since 6.2.1
+     */
+    private static final int DEFAULT_TILE_BYTES = 256 * 256 * 4;
+
     // ===========================================================
     // Fields
     // ===========================================================
@@ -34,7 +56,42 @@ public class MapTileCache {
     }
 
     private TileRemovedListener mTileRemovedListener;
-    private final HashMap<Long, Drawable> mCachedTiles = new HashMap<>();
+
+    /**
+     * @since 6.2.1
+     */
+    public interface ViewportChangedListener {
+        void onViewportChanged();
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    private final List<ViewportChangedListener> mViewportChangedListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Snapshot of the displayed and protected tiles, used to compute the request priorities
+     * from the tile loader threads
+     *
+     * @since 6.2.1
+     */
+    private final MapTileArea mPriorityVisible = new MapTileArea();
+    private final MapTileArea mPriorityCenter = new MapTileArea();
+    private final MapTileAreaList mPriorityProtected = new MapTileAreaList();
+    /**
+     * Tiles in memory, split into stripes in order to reduce lock contention
+     * between the UI thread and the tile loader threads.
+     * Each stripe is ordered by access, the eldest first.
+     *
+     * @since 6.2.1
+     */
+    private final MapTileLinkedMap<Drawable>[] mStripes;
+    /**
+     * Access clock, used to compare the eldest tiles of the different stripes
+     *
+     * @since 6.2.1
+     */
+    private final AtomicLong mClock = new AtomicLong();
     /**
      * Tiles currently displayed
      */
@@ -43,11 +100,6 @@ public class MapTileCache {
      * Tiles neighbouring the tiles currently displayed (borders, zoom +-1, ...)
      */
     private final MapTileAreaList mAdditionalMapTileList = new MapTileAreaList();
-    /**
-     * Tiles currently in the cache, without the concurrency side effects
-     */
-    private final MapTileList mGC = new MapTileList();
-
     private final List<MapTileAreaComputer> mComputers = new ArrayList<>();
 
     private int mCapacity;
@@ -69,6 +121,30 @@ public class MapTileCache {
      */
     private boolean mStressedMemory;
 
+    /**
+     * Maximum size in bytes, or 0 if the cache size is only about the tile count
+     *
+     * @since 6.2.1
+     */
+    private long mMaxBytes;
+
+    /**
+     * @since 6.2.1
+     */
+    private MapTileEvictionPolicy mEvictionPolicy;
+
+    /**
+     * Eviction candidates, reused between garbage collections
+     *
+     * @since 6.2.1
+     */
+    private long[] mCandidateKeys;
+    private long[] mCandidateStamps;
+    private int[] mCandidateBytes;
+    private int[] mCandidateHits;
+    private Object[] mCandidateDrawables;
+    private long mSampleSeed;
+
     // ===========================================================
     // Constructors
     // ===========================================================
@@ -80,11 +156,37 @@ public class MapTileCache {
     /**
      * @param aMaximumCacheSize Maximum amount of MapTiles to be hold within.
      */
+    @SuppressWarnings("unchecked")
     public MapTileCache(final int aMaximumCacheSize) {
+        mStripes = (MapTileLinkedMap<Drawable>[]) new MapTileLinkedMap<?>[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new MapTileLinkedMap<>(aMaximumCacheSize / STRIPE_COUNT);
+        }
         ensureCapacity(aMaximumCacheSize);
+        mMaxBytes = Configuration.getInstance().getCacheMapTileMaxBytes();
+        setEvictionPolicy(new LRUMapTileEvictionPolicy());
         mPreCache = new MapTilePreCache(this);
     }
 
+    /**
+     * Computes a reasonable memory cache size in bytes from the device memory class
+     * (an eighth of the per-application heap)
+     *
+     * @since 6.2.1
+     */
+    public static long computeMaxBytes(final Context pContext) {
+        int memoryClass = 0;
+        if (pContext != null) {
+            final ActivityManager activityManager =
+                    (ActivityManager) pContext.getSystemService(Context.ACTIVITY_SERVICE);
+            if (activityManager != null) {
+                memoryClass = activityManager.getMemoryClass();
+            }
+        }
+        final long heap = memoryClass > 0 ? memoryClass * 1024L * 1024L : Runtime.getRuntime().maxMemory();
+        return heap / 8;
+    }
+
     /**
      * @since 6.0.2
      */
@@ -123,6 +225,42 @@ public class MapTileCache {
         mStressedMemory = pStressedMemory;
     }
 
+    /**
+     * @param pMaxBytes maximum size in bytes, or 0 if only the tile count matters
+     * @since 6.2.1
+     */
+    public void setMaxBytes(final long pMaxBytes) {
+        mMaxBytes = pMaxBytes;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @param pEvictionPolicy how to choose the tiles to evict, by default {@link LRUMapTileEvictionPolicy}
+     * @since 6.2.1
+     */
+    public synchronized void setEvictionPolicy(final MapTileEvictionPolicy pEvictionPolicy) {
+        mEvictionPolicy = pEvictionPolicy;
+        final int size = STRIPE_COUNT * pEvictionPolicy.getSampleSize();
+        mCandidateKeys = new long[size];
+        mCandidateStamps = new long[size];
+        mCandidateBytes = new int[size];
+        mCandidateHits = new int[size];
+        mCandidateDrawables = new Object[size];
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    public synchronized MapTileEvictionPolicy getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
     public boolean ensureCapacity(final int pCapacity) {
         if (mCapacity < pCapacity) {
             Log.i(IMapView.LOGTAG, "Tile cache increased from " + mCapacity + " to " + pCapacity);
@@ -133,30 +271,47 @@ public class MapTileCache {
     }
 
     public Drawable getMapTile(final long pMapTileIndex) {
-        synchronized (mCachedTiles) {
-            return this.mCachedTiles.get(pMapTileIndex);
+        final MapTileLinkedMap<Drawable> stripe = getStripe(pMapTileIndex);
+        synchronized (stripe) {
+            return stripe.get(pMapTileIndex, mClock.incrementAndGet());
         }
     }
 
     public void putTile(final long pMapTileIndex, final Drawable aDrawable) {
         if (aDrawable != null) {
-            synchronized (mCachedTiles) {
-                this.mCachedTiles.put(pMapTileIndex, aDrawable);
+            final MapTileLinkedMap<Drawable> stripe = getStripe(pMapTileIndex);
+            synchronized (stripe) {
+                stripe.put(pMapTileIndex, aDrawable, mClock.incrementAndGet(), getByteCount(aDrawable));
             }
         }
     }
 
     /**
-     * Removes from the memory cache all the tiles that should no longer be there
+     * @since 6.2.1
+     */
+    private MapTileLinkedMap<Drawable> getStripe(final long pMapTileIndex) {
+        // high bits for the stripe, as the low bits are used for the slots within the stripe
+        return mStripes[(int) (MapTileLinkedMap.mix(pMapTileIndex) >>> STRIPE_SHIFT)];
+    }
+
+    /**
+     * Removes from the memory cache all the tiles that should no longer be there, until the
+     * tile count fits - or the size in bytes, if a maximum size in bytes is set.
+     * Among the tiles sampled in each stripe (cf. {@link MapTileEvictionPolicy#isSampledByAge()}),
+     * the victim is the one with the highest cost according to the eviction policy;
+     * scaled and expired tiles go first.
+     * At most as many tiles as in the cache are visited: a protected tile is just marked as
+     * recently accessed and skipped.
      *
      * @since 6.0.0
      */
-    public void garbageCollection() {
-        // number of tiles to remove from cache
-        int toBeRemoved = Integer.MAX_VALUE; // MAX_VALUE for stressed memory case
-        final int size = mCachedTiles.size();
+    public synchronized void garbageCollection() {
+        final boolean bytes = mMaxBytes > 0;
+        // amount of tiles, or of bytes, to remove from cache
+        long toBeRemoved = Long.MAX_VALUE; // MAX_VALUE for stressed memory case
+        final int size = getSize();
         if (!mStressedMemory) {
-            toBeRemoved = size - mCapacity;
+            toBeRemoved = bytes ? getSizeInBytes() - mMaxBytes : size - mCapacity;
             if (toBeRemoved <= 0) {
                 return;
             }
@@ -164,7 +319,7 @@ public class MapTileCache {
 
         refreshAdditionalLists();
 
-        if (mAutoEnsureCapacity) {
+        if (mAutoEnsureCapacity && !bytes) {
             final int target = mMapTileArea.size() + mAdditionalMapTileList.size();
             if (ensureCapacity(target)) {
                 if (!mStressedMemory) {
@@ -175,18 +330,113 @@ public class MapTileCache {
                 }
             }
         }
-        populateSyncCachedTiles(mGC);
-        for (int i = 0; i < mGC.getSize(); i++) {
-            final long index = mGC.get(i);
-            if (shouldKeepTile(index)) {
+
+        mEvictionPolicy.prepare(mMapTileArea);
+        int visited = 0;
+        while (visited < size) {
+            final int count = populateCandidates();
+            if (count == 0) {
+                return;
+            }
+            final long now = mClock.get();
+            int victim = -1;
+            double victimCost = -1;
+            for (int i = 0; i < count; i++) {
+                final long index = mCandidateKeys[i];
+                if (shouldKeepTile(index)) {
+                    visited++;
+                    final MapTileLinkedMap<Drawable> stripe = getStripe(index);
+                    synchronized (stripe) {
+                        stripe.touch(index, mClock.incrementAndGet());
+                    }
+                    continue;
+                }
+                final double cost = getEvictionCost(index, now - mCandidateStamps[i],
+                        mCandidateHits[i], mCandidateBytes[i], (Drawable) mCandidateDrawables[i]);
+                if (cost > victimCost) {
+                    victimCost = cost;
+                    victim = i;
+                }
+            }
+            Arrays.fill(mCandidateDrawables, 0, count, null);
+            if (victim == -1) {
                 continue;
             }
-            remove(index);
-            if (--toBeRemoved == 0) {
-                break;
+            visited++;
+            remove(mCandidateKeys[victim]);
+            toBeRemoved -= bytes ? mCandidateBytes[victim] : 1;
+            if (toBeRemoved <= 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the eldest tiles of each stripe - or tiles sampled anywhere in the stripe,
+     * depending on the eviction policy - into the candidate arrays
+     *
+     * @return the number of candidates
+     * @since 6.2.1
+     */
+    private int populateCandidates() {
+        final int sampleSize = mEvictionPolicy.getSampleSize();
+        final boolean byAge = mEvictionPolicy.isSampledByAge();
+        int count = 0;
+        for (final MapTileLinkedMap<Drawable> stripe : mStripes) {
+            synchronized (stripe) {
+                if (byAge) {
+                    count += stripe.getEldest(sampleSize, count, mCandidateKeys, mCandidateStamps,
+                            mCandidateBytes, mCandidateHits, mCandidateDrawables);
+                } else {
+                    count += stripe.getSample(sampleSize, mSampleSeed, count, mCandidateKeys, mCandidateStamps,
+                            mCandidateBytes, mCandidateHits, mCandidateDrawables);
+                    mSampleSeed += sampleSize;
+                }
             }
-            ;
         }
+        return count;
+    }
+
+    /**
+     * @param pAge   number of cache accesses since the last access to that tile
+     * @param pHits  number of times the tile was read from the cache
+     * @param pBytes size of the tile in bytes
+     * @return the eviction cost of a tile: the higher, the sooner evicted
+     * @since 6.2.1
+     */
+    protected double getEvictionCost(final long pMapTileIndex, final long pAge, final int pHits,
+                                     final int pBytes, final Drawable pDrawable) {
+        final double cost = mEvictionPolicy.getEvictionCost(pMapTileIndex, pAge, pHits, pBytes);
+        switch (ExpirableBitmapDrawable.getState(pDrawable)) {
+            case ExpirableBitmapDrawable.SCALED:
+                return cost * 16;
+            case ExpirableBitmapDrawable.EXPIRED:
+                return cost * 8;
+            default:
+                return cost;
+        }
+    }
+
+    /**
+     * @return the size in bytes of a tile in memory
+     * @since 6.2.1
+     */
+    protected int getByteCount(final Drawable pDrawable) {
+        if (pDrawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) pDrawable).getBitmap();
+            if (bitmap != null) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    return bitmap.getAllocationByteCount();
+                }
+                return bitmap.getByteCount();
+            }
+        }
+        final int width = pDrawable.getIntrinsicWidth();
+        final int height = pDrawable.getIntrinsicHeight();
+        if (width > 0 && height > 0) {
+            return width * height * 4;
+        }
+        return DEFAULT_TILE_BYTES;
     }
 
     /**
@@ -251,8 +501,9 @@ public class MapTileCache {
     // ===========================================================
 
     public boolean containsTile(final long pMapTileIndex) {
-        synchronized (mCachedTiles) {
-            return this.mCachedTiles.containsKey(pMapTileIndex);
+        final MapTileLinkedMap<Drawable> stripe = getStripe(pMapTileIndex);
+        synchronized (stripe) {
+            return stripe.containsKey(pMapTileIndex);
         }
     }
 
@@ -270,7 +521,11 @@ public class MapTileCache {
         }
 
         // and then clear
-        mCachedTiles.clear();
+        for (final MapTileLinkedMap<Drawable> stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
     }
 
     /**
@@ -279,8 +534,9 @@ public class MapTileCache {
      */
     protected void remove(final long pMapTileIndex) {
         final Drawable drawable;
-        synchronized (mCachedTiles) {
-            drawable = mCachedTiles.remove(pMapTileIndex);
+        final MapTileLinkedMap<Drawable> stripe = getStripe(pMapTileIndex);
+        synchronized (stripe) {
+            drawable = stripe.remove(pMapTileIndex);
         }
         if (getTileRemovedListener() != null)
             getTileRemovedListener().onTileRemoved(pMapTileIndex);
@@ -303,17 +559,115 @@ public class MapTileCache {
         mTileRemovedListener = tileRemovedListener;
     }
 
+    /**
+     * @since 6.2.1
+     */
+    public void addViewportChangedListener(final ViewportChangedListener pListener) {
+        mViewportChangedListeners.add(pListener);
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    public void removeViewportChangedListener(final ViewportChangedListener pListener) {
+        mViewportChangedListeners.remove(pListener);
+    }
+
+    /**
+     * @return the priority of a tile request, according to the latest viewport:
+     * one of the MapTileRequestState.PRIORITY_* constants
+     * @since 6.2.1
+     */
+    public int getPriority(final long pMapTileIndex) {
+        synchronized (mPriorityVisible) {
+            if (mPriorityCenter.contains(pMapTileIndex)) {
+                return MapTileRequestState.PRIORITY_CENTER;
+            }
+            if (mPriorityVisible.contains(pMapTileIndex)) {
+                return MapTileRequestState.PRIORITY_EDGE;
+            }
+            for (final MapTileArea area : mPriorityProtected.getList()) {
+                if (area.getZoom() == mPriorityVisible.getZoom() && area.contains(pMapTileIndex)) {
+                    return MapTileRequestState.PRIORITY_BORDER;
+                }
+            }
+            return MapTileRequestState.PRIORITY_PRECACHE;
+        }
+    }
+
+    /**
+     * @return true if a tile is neither displayed nor protected according to the latest viewport,
+     * and therefore not worth loading anymore. Always false until a viewport is known.
+     * @since 6.2.1
+     */
+    public boolean isStale(final long pMapTileIndex) {
+        synchronized (mPriorityVisible) {
+            return mPriorityVisible.size() > 0
+                    && !mPriorityVisible.contains(pMapTileIndex)
+                    && !mPriorityProtected.contains(pMapTileIndex);
+        }
+    }
+
+    /**
+     * Updates the snapshot used to compute the request priorities
+     *
+     * @return true if the viewport changed since the previous call
+     * @since 6.2.1
+     */
+    private boolean refreshPriorities() {
+        synchronized (mPriorityVisible) {
+            if (isSameArea(mMapTileArea, mPriorityVisible)) {
+                return false;
+            }
+            mPriorityVisible.set(mMapTileArea);
+            if (mMapTileArea.size() == 0) {
+                mPriorityCenter.reset();
+            } else {
+                // the center is the inner half of the visible area
+                final int marginX = mMapTileArea.getWidth() / 4;
+                final int marginY = mMapTileArea.getHeight() / 4;
+                mPriorityCenter.set(mMapTileArea.getZoom(),
+                        mMapTileArea.getLeft() + marginX,
+                        mMapTileArea.getTop() + marginY,
+                        mMapTileArea.getLeft() + mMapTileArea.getWidth() - 1 - marginX,
+                        mMapTileArea.getTop() + mMapTileArea.getHeight() - 1 - marginY);
+            }
+            refreshAdditionalLists();
+            final List<MapTileArea> protectedAreas = mPriorityProtected.getList();
+            protectedAreas.clear();
+            for (final MapTileArea area : mAdditionalMapTileList.getList()) {
+                if (area.size() > 0) {
+                    protectedAreas.add(new MapTileArea().set(area));
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    private static boolean isSameArea(final MapTileArea pArea1, final MapTileArea pArea2) {
+        if (pArea1.size() == 0 || pArea2.size() == 0) {
+            return pArea1.size() == pArea2.size();
+        }
+        return pArea1.getZoom() == pArea2.getZoom()
+                && pArea1.getLeft() == pArea2.getLeft()
+                && pArea1.getTop() == pArea2.getTop()
+                && pArea1.getWidth() == pArea2.getWidth()
+                && pArea1.getHeight() == pArea2.getHeight();
+    }
+
     /**
      * Just a helper method in order to parse all indices without concurrency side effects
      *
      * @since 6.0.0
      */
     private void populateSyncCachedTiles(final MapTileList pList) {
-        synchronized (mCachedTiles) {
-            pList.ensureCapacity(mCachedTiles.size());
-            pList.clear();
-            for (final long index : mCachedTiles.keySet()) {
-                pList.put(index);
+        pList.clear();
+        for (final MapTileLinkedMap<Drawable> stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.getKeys(pList);
             }
         }
     }
@@ -322,7 +676,27 @@ public class MapTileCache {
      * @since 6.0.0
      */
     public int getSize() {
-        return mCachedTiles.size();
+        int size = 0;
+        for (final MapTileLinkedMap<Drawable> stripe : mStripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the size in bytes of all the tiles in memory
+     * @since 6.2.1
+     */
+    public long getSizeInBytes() {
+        long size = 0;
+        for (final MapTileLinkedMap<Drawable> stripe : mStripes) {
+            synchronized (stripe) {
+                size += stripe.getWeight();
+            }
+        }
+        return size;
     }
 
     /**
@@ -331,7 +705,13 @@ public class MapTileCache {
      * @since 6.0.2
      */
     public void maintenance() {
+        final boolean viewportChanged = refreshPriorities();
         garbageCollection();
+        if (viewportChanged) {
+            for (final ViewportChangedListener listener : mViewportChangedListeners) {
+                listener.onViewportChanged();
+            }
+        }
         mPreCache.fill();
     }
 
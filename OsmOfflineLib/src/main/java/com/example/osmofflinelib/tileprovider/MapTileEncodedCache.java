@@ -0,0 +1,172 @@
+package com.example.osmofflinelib.tileprovider;
+
+import com.example.osmofflinelib.config.Configuration;
+import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
+import com.example.osmofflinelib.utils.MapTileLinkedMap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Second tier of the in-memory tile cache: the encoded (PNG, JPEG, ...) bytes of the recently
+ * loaded tiles, at a fraction of the heap cost of the decoded bitmaps kept in {@link MapTileCache}.
+ * When a tile falls out of the bitmap cache, it can be decoded again from here
+ * (cf. {@link com.example.osmofflinelib.tileprovider.modules.MapTileEncodedCacheProvider})
+ * instead of being read again from the database, an archive or the network.
+ * <p>
+ * Shared by all the map views, bounded in bytes, least recently accessed tiles evicted first.
+ *
+ * @since 6.2.1
+ */
+public class MapTileEncodedCache {
+
+    /**
+     * Encoded tile and its expiration timestamp
+     */
+    public static class Entry {
+
+        private final byte[] mBytes;
+        private final long mExpirationTime;
+
+        private Entry(final byte[] pBytes, final long pExpirationTime) {
+            mBytes = pBytes;
+            mExpirationTime = pExpirationTime;
+        }
+
+        public byte[] getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * @return the expiration timestamp in milliseconds, or Long.MAX_VALUE if none
+         */
+        public long getExpirationTime() {
+            return mExpirationTime;
+        }
+
+        public boolean isExpired(final long pNow) {
+            return mExpirationTime < pNow;
+        }
+    }
+
+    private final Map<String, MapTileLinkedMap<Entry>> mTiles = new HashMap<>();
+    private long mClock;
+    private long mSizeInBytes;
+    /**
+     * Volatile, as {@link #isEnabled()} is read without the lock by the loader threads
+     */
+    private volatile long mMaxBytes;
+
+    //singleton: begin
+    private MapTileEncodedCache() {
+        mMaxBytes = Configuration.getInstance().getCacheMapTileEncodedMaxBytes();
+    }
+
+    private static final MapTileEncodedCache sInstance = new MapTileEncodedCache();
+
+    public static MapTileEncodedCache getInstance() {
+        return sInstance;
+    }
+    //singleton: end
+
+    /**
+     * @return true if the cache is enabled, i.e. if its maximum size is strictly positive
+     */
+    public boolean isEnabled() {
+        return mMaxBytes > 0;
+    }
+
+    public synchronized void setMaxBytes(final long pMaxBytes) {
+        mMaxBytes = pMaxBytes;
+        trim();
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized long getSizeInBytes() {
+        return mSizeInBytes;
+    }
+
+    /**
+     * @param pExpirationTime expiration timestamp in milliseconds, or null if none
+     */
+    public void put(final ITileSource pTileSource, final long pMapTileIndex,
+                    final byte[] pBytes, final Long pExpirationTime) {
+        if (pTileSource == null || pBytes == null || !isEnabled()) {
+            return;
+        }
+        final Entry entry = new Entry(pBytes, pExpirationTime == null ? Long.MAX_VALUE : pExpirationTime);
+        synchronized (this) {
+            if (pBytes.length > mMaxBytes) {
+                return;
+            }
+            MapTileLinkedMap<Entry> tiles = mTiles.get(pTileSource.name());
+            if (tiles == null) {
+                tiles = new MapTileLinkedMap<>();
+                mTiles.put(pTileSource.name(), tiles);
+            }
+            final long before = tiles.getWeight();
+            tiles.put(pMapTileIndex, entry, ++mClock, pBytes.length);
+            mSizeInBytes += tiles.getWeight() - before;
+            trim();
+        }
+    }
+
+    /**
+     * @return the encoded tile, or null if not in the cache
+     */
+    public synchronized Entry get(final ITileSource pTileSource, final long pMapTileIndex) {
+        if (pTileSource == null) {
+            return null;
+        }
+        final MapTileLinkedMap<Entry> tiles = mTiles.get(pTileSource.name());
+        if (tiles == null) {
+            return null;
+        }
+        return tiles.get(pMapTileIndex, ++mClock);
+    }
+
+    public synchronized void remove(final ITileSource pTileSource, final long pMapTileIndex) {
+        if (pTileSource == null) {
+            return;
+        }
+        final MapTileLinkedMap<Entry> tiles = mTiles.get(pTileSource.name());
+        if (tiles == null) {
+            return;
+        }
+        final long before = tiles.getWeight();
+        tiles.remove(pMapTileIndex);
+        mSizeInBytes -= before - tiles.getWeight();
+    }
+
+    public synchronized void clear() {
+        mTiles.clear();
+        mSizeInBytes = 0;
+    }
+
+    /**
+     * Removes the least recently accessed tiles until the size fits
+     */
+    private void trim() {
+        while (mSizeInBytes > mMaxBytes) {
+            MapTileLinkedMap<Entry> eldest = null;
+            long eldestStamp = Long.MAX_VALUE;
+            for (final MapTileLinkedMap<Entry> tiles : mTiles.values()) {
+                final long stamp = tiles.getEldestStamp();
+                if (stamp < eldestStamp) {
+                    eldestStamp = stamp;
+                    eldest = tiles;
+                }
+            }
+            if (eldest == null) {
+                mSizeInBytes = 0;
+                return;
+            }
+            final long before = eldest.getWeight();
+            eldest.remove(eldest.getEldestKey());
+            mSizeInBytes -= before - eldest.getWeight();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.osmofflinelib.tileprovider;
+
+import com.example.osmofflinelib.utils.MapTileArea;
+
+/**
+ * Chooses which tiles {@link MapTileCache} evicts first.
+ * <p>
+ * On each eviction, the cache samples {@link #getSampleSize()} tiles of each of its stripes -
+ * the least recently accessed ones, or tiles anywhere in the stripe (cf. {@link #isSampledByAge()}) -
+ * skips the protected ones, and evicts the candidate with the highest cost.
+ * Scaled and expired tiles get an additional penalty from the cache itself, whatever the policy.
+ *
+ * @see LRUMapTileEvictionPolicy
+ * @see LFUMapTileEvictionPolicy
+ * @see DistanceMapTileEvictionPolicy
+ * @since 6.2.1
+ */
+
+public interface MapTileEvictionPolicy {
+
+    /**
+     * @return the number of tiles per cache stripe considered as eviction candidates
+     */
+    int getSampleSize();
+
+    /**
+     * @return true if the candidates are the least recently accessed tiles, i.e. if a recently
+     * accessed tile never has the highest cost; false if they are to be sampled anywhere in the cache,
+     * because the cost doesn't depend mainly on the age
+     */
+    boolean isSampledByAge();
+
+    /**
+     * Called before each garbage collection, with the tiles currently displayed
+     */
+    void prepare(final MapTileArea pDisplayed);
+
+    /**
+     * @param pAge   number of cache accesses since the last access to that tile
+     * @param pHits  number of times the tile was read from the cache
+     * @param pBytes size of the tile in bytes
+     * @return the eviction cost of a tile: the higher, the sooner evicted
+     */
+    double getEvictionCost(final long pMapTileIndex, final long pAge, final int pHits, final int pBytes);
+}
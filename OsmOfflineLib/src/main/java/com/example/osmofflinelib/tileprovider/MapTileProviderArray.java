@@ -25,7 +25,8 @@ import java.util.*;
  *
  * @author Marc Kurtz
  */
-public class MapTileProviderArray extends MapTileProviderBase implements MapTileContainer {
+public class MapTileProviderArray extends MapTileProviderBase
+        implements MapTileContainer, MapTileCache.ViewportChangedListener {
 
     private final Map<Long, Integer> mWorking = new HashMap<>();
     private IRegisterReceiver mRegisterReceiver = null;
@@ -61,10 +62,12 @@ public class MapTileProviderArray extends MapTileProviderBase implements MapTile
         mRegisterReceiver = aRegisterReceiver;
         mTileProviderList = new ArrayList<>();
         Collections.addAll(mTileProviderList, pTileProviderArray);
+        mTileCache.addViewportChangedListener(this);
     }
 
     @Override
     public void detach() {
+        mTileCache.removeViewportChangedListener(this);
         synchronized (mTileProviderList) {
             for (final MapTileModuleProviderBase tileProvider : mTileProviderList) {
                 tileProvider.detach();
@@ -91,6 +94,22 @@ public class MapTileProviderArray extends MapTileProviderBase implements MapTile
         }
     }
 
+    /**
+     * Dispatches the pending requests of each provider according to the new viewport,
+     * and cancels the requests of tiles no longer needed
+     *
+     * @since 6.2.1
+     */
+    @Override
+    public void onViewportChanged() {
+        synchronized (mTileProviderList) {
+            for (final MapTileModuleProviderBase tileProvider : mTileProviderList) {
+                tileProvider.updatePriorities(mTileCache);
+                tileProvider.cancelStaleRequests(mTileCache);
+            }
+        }
+    }
+
     /**
      * @since 6.0
      * @deprecated Not used anymore. Use {@link #isDowngradedMode(long)} instead
@@ -158,6 +177,15 @@ public class MapTileProviderArray extends MapTileProviderBase implements MapTile
         remove(aState.getMapTile());
     }
 
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public void mapTileRequestCancelled(final MapTileRequestState aState) {
+        super.mapTileRequestCancelled(aState);
+        remove(aState.getMapTile());
+    }
+
     @Override
     public void mapTileRequestExpiredTile(MapTileRequestState aState, Drawable aDrawable) {
         super.mapTileRequestExpiredTile(aState, aDrawable);
@@ -214,6 +242,7 @@ public class MapTileProviderArray extends MapTileProviderBase implements MapTile
     private void runAsyncNextProvider(final MapTileRequestState pState) {
         final MapTileModuleProviderBase nextProvider = findNextAppropriateProvider(pState);
         if (nextProvider != null) {
+            pState.setPriority(mTileCache.getPriority(pState.getMapTile()));
             nextProvider.loadMapTileAsync(pState);
             return;
         }
@@ -201,6 +201,21 @@ public abstract class MapTileProviderBase implements IMapTileProviderCallback {
         mapTileRequestFailed(pState);
     }
 
+    /**
+     * Called by implementation class methods indicating that they have dropped the request,
+     * because the tile is no longer needed. Nothing to display.
+     * Not part of {@link IMapTileProviderCallback}, so that its other implementations still compile:
+     * they get {@link #mapTileRequestFailed(MapTileRequestState)} instead.
+     *
+     * @param pState the map tile request state object
+     * @since 6.2.1
+     */
+    public void mapTileRequestCancelled(final MapTileRequestState pState) {
+        if (Configuration.getInstance().isDebugTileProviders()) {
+            Log.d(IMapView.LOGTAG, "MapTileProviderBase.mapTileRequestCancelled(): " + MapTileIndex.toString(pState.getMapTile()));
+        }
+    }
+
     /**
      * Called by implementation class methods indicating that they have produced an expired result
      * that can be used but better results may be delivered later. The tile is added to the cache,
@@ -76,6 +76,11 @@ public class MapTileProviderBasic extends MapTileProviderArray implements IMapTi
 				tileWriter = new SqlTileWriter();
 			}
 		}
+		final MapTileEncodedCacheProvider encodedCacheProvider = createEncodedCacheProvider(pTileSource);
+		if (encodedCacheProvider != null) {
+			mTileProviderList.add(encodedCacheProvider);
+		}
+
 		final MapTileFileStorageProviderBase assetsProvider =
 				createAssetsProvider(pRegisterReceiver, pTileSource, pContext);
 		mTileProviderList.add(assetsProvider);
@@ -103,6 +108,9 @@ public class MapTileProviderBasic extends MapTileProviderArray implements IMapTi
 		getTileCache().setStressedMemory(false);
 
 		// pre-cache providers
+		if (encodedCacheProvider != null) {
+			getTileCache().getPreCache().addProvider(encodedCacheProvider);
+		}
 		getTileCache().getPreCache().addProvider(assetsProvider);
 		getTileCache().getPreCache().addProvider(cacheProvider);
 		getTileCache().getPreCache().addProvider(archiveProvider);
@@ -127,6 +135,17 @@ public class MapTileProviderBasic extends MapTileProviderArray implements IMapTi
 				pRegisterReceiver, pTileSource);
 	}
 
+	/**
+	 * @since 6.2.1
+	 * @return the provider of tiles decoded from the in-memory encoded cache, or null if disabled
+	 */
+	protected MapTileEncodedCacheProvider createEncodedCacheProvider(ITileSource pTileSource) {
+		if (!MapTileEncodedCache.getInstance().isEnabled()) {
+			return null;
+		}
+		return new MapTileEncodedCacheProvider(pTileSource);
+	}
+
 	protected MapTileFileStorageProviderBase createAssetsProvider(IRegisterReceiver pRegisterReceiver, ITileSource pTileSource, Context pContext) {
 		return new MapTileAssetsProvider(
 				pRegisterReceiver, pContext.getAssets(), pTileSource);
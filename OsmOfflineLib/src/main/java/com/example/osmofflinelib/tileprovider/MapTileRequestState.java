@@ -8,11 +8,24 @@ import java.util.List;
 
 public class MapTileRequestState {
 
+    /**
+     * Request priorities, from the most urgent to the least urgent
+     *
+     * @since 6.2.1
+     */
+    public static final int PRIORITY_CENTER = 0; // visible, in the middle of the screen
+    public static final int PRIORITY_EDGE = 1; // visible, near the edges of the screen
+    public static final int PRIORITY_BORDER = 2; // not visible, around the screen at the same zoom level
+    public static final int PRIORITY_PRECACHE = 3; // anything else, e.g. other zoom levels
+    public static final int PRIORITY_COUNT = 4;
+
     private final List<MapTileModuleProviderBase> mProviderQueue;
     private final long mMapTileIndex;
     private final IMapTileProviderCallback mCallback;
     private int index;
     private MapTileModuleProviderBase mCurrentProvider;
+    private int mPriority = PRIORITY_PRECACHE;
+    private volatile boolean mCancelled;
 
     /**
      * @deprecated use {@link MapTileRequestState#MapTileRequestState(long, List, IMapTileProviderCallback)}  instead
@@ -61,4 +74,34 @@ public class MapTileRequestState {
     public MapTileModuleProviderBase getCurrentProvider() {
         return mCurrentProvider;
     }
+
+    /**
+     * @since 6.2.1
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    public void setPriority(final int pPriority) {
+        mPriority = pPriority;
+    }
+
+    /**
+     * @return true if the tile is no longer needed: pending work should be dropped
+     * @since 6.2.1
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @param pCancelled false if the tile is needed again
+     * @since 6.2.1
+     */
+    public void setCancelled(final boolean pCancelled) {
+        mCancelled = pCancelled;
+    }
 }
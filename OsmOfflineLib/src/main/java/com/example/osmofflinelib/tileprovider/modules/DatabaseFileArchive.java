@@ -7,9 +7,10 @@ import android.util.Log;
 import com.example.osmofflinelib.api.IMapView;
 import com.example.osmofflinelib.config.Configuration;
 import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
+import com.example.osmofflinelib.tileprovider.utils.TileBytes;
+import com.example.osmofflinelib.utils.MapTileAreaList;
 import com.example.osmofflinelib.utils.MapTileIndex;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.util.HashSet;
@@ -23,7 +24,7 @@ import java.util.Set;
  *
  * @see SqlTileWriter
  */
-public class DatabaseFileArchive implements IArchiveFile {
+public class DatabaseFileArchive implements IBoundedArchiveFile {
 
     public static final String TABLE = "tiles";
     public static final String COLUMN_PROVIDER = "provider";
@@ -32,12 +33,29 @@ public class DatabaseFileArchive implements IArchiveFile {
     static final String[] tile_column = {"tile"};
     private SQLiteDatabase mDatabase;
     private boolean mIgnoreTileSource = false;
+    /**
+     * @see SqlTileDeduplication
+     * @since 6.2.1
+     */
+    private boolean mDeduplicated;
 
     public DatabaseFileArchive() {
     }
 
     private DatabaseFileArchive(final SQLiteDatabase pDatabase) {
+        setDatabase(pDatabase);
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    private void setDatabase(final SQLiteDatabase pDatabase) {
         mDatabase = pDatabase;
+        try {
+            mDeduplicated = SqlTileDeduplication.hasSchema(pDatabase);
+        } catch (final Exception e) {
+            Log.w(IMapView.LOGTAG, "Error checking the database layout: ", e);
+        }
     }
 
     public static DatabaseFileArchive getDatabaseFileArchive(final File pFile) throws SQLiteException {
@@ -69,7 +87,7 @@ public class DatabaseFileArchive implements IArchiveFile {
 
     @Override
     public void init(File pFile) throws Exception {
-        mDatabase = SQLiteDatabase.openDatabase(pFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        setDatabase(SQLiteDatabase.openDatabase(pFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS));
     }
 
     public byte[] getImage(final ITileSource pTileSource, final long pMapTileIndex) {
@@ -88,7 +106,12 @@ public class DatabaseFileArchive implements IArchiveFile {
             final long index = ((z << z) + x << z) + y;
 
             Cursor cur;
-            if (!mIgnoreTileSource) {
+            if (mDeduplicated) {
+                cur = mDatabase.rawQuery("SELECT " + SqlTileDeduplication.getTileColumn() + " FROM " + TABLE
+                        + SqlTileDeduplication.getTileJoin() + " WHERE " + TABLE + "." + COLUMN_KEY + " = " + index
+                        + (mIgnoreTileSource ? "" : " and " + TABLE + "." + COLUMN_PROVIDER + " = ?"),
+                        mIgnoreTileSource ? null : new String[]{pTileSource.name()});
+            } else if (!mIgnoreTileSource) {
                 cur = mDatabase.query(TABLE, tile, COLUMN_KEY + " = " + index + " and "
                         + COLUMN_PROVIDER + " = ?", new String[]{pTileSource.name()}, null, null, null);
             } else {
@@ -116,7 +139,7 @@ public class DatabaseFileArchive implements IArchiveFile {
             InputStream ret = null;
             byte[] bits = getImage(pTileSource, pMapTileIndex);
             if (bits != null)
-                ret = new ByteArrayInputStream(bits);
+                ret = TileBytes.wrap(bits);
             if (ret != null) {
                 return ret;
             }
@@ -131,6 +154,14 @@ public class DatabaseFileArchive implements IArchiveFile {
         mDatabase.close();
     }
 
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public MapTileAreaList getCoverage() {
+        return null;
+    }
+
     @Override
     public String toString() {
         return "DatabaseFileArchive [mDatabase=" + mDatabase.getPath() + "]";
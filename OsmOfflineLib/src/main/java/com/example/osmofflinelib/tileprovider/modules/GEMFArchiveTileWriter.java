@@ -0,0 +1,474 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import com.example.osmofflinelib.api.IMapView;
+import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
+import com.example.osmofflinelib.tileprovider.utils.StreamUtils;
+import com.example.osmofflinelib.tileprovider.utils.TileBytes;
+import com.example.osmofflinelib.utils.MapTileIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An implementation of {@link IFilesystemCache} that writes tiles to a GEMF archive,
+ * as read by {@link GEMFFileArchive}. Like {@link SqliteArchiveTileWriter}, it can be the target
+ * of a {@link com.example.osmofflinelib.tileprovider.cachemanager.CacheManager} bulk download.
+ * <p>
+ * The tiles are appended to a spool file as they come, in any order. {@link #finish()} - also
+ * called by {@link #onDetach()} - then groups them into rectangular ranges per tile source and
+ * zoom level, and writes the header and the data in a single sequential pass, split into files
+ * of at most {@link #FILE_SIZE_LIMIT} bytes ("name", "name-1", "name-2", ...).
+ * Nothing is readable as GEMF before that.
+ * <p>
+ * {@link #export(IArchiveFile, ITileSource, Iterable, int)} copies tiles from any archive
+ * (including a sqlite cache, opened as a {@link DatabaseFileArchive}), with parallel reads
+ * if the archive supports them.
+ *
+ * @see GEMFFileArchive
+ * @since 6.2.1
+ */
+public class GEMFArchiveTileWriter implements IFilesystemCache {
+
+    public static final long FILE_SIZE_LIMIT = 1024 * 1024 * 1024; // 1GB, as in the GEMF format specification
+
+    /**
+     * Values expected by {@link com.example.osmofflinelib.utils.GEMFFile}
+     */
+    private static final int VERSION = 4;
+    private static final int TILE_SIZE = 256;
+
+    private static final int U32_SIZE = 4;
+    private static final int U64_SIZE = 8;
+    private static final int RANGE_SIZE = U32_SIZE * 6 + U64_SIZE;
+    private static final int RECORD_SIZE = U64_SIZE + U32_SIZE;
+
+    private final String mLocation;
+    private final long mFileSizeLimit;
+    private final File mSpoolFile;
+    private RandomAccessFile mSpool;
+    private long mSpoolLength;
+    private boolean mFinished;
+
+    /**
+     * Spooled tiles: tile source name, then tile index, then position in the spool arrays
+     */
+    private final Map<String, Map<Long, Integer>> mPositions = new LinkedHashMap<>();
+    private long[] mSpoolOffsets = new long[1024];
+    private int[] mSpoolLengths = new int[1024];
+    private int mCount;
+
+    /**
+     * @param pLocation path of the first GEMF file
+     */
+    public GEMFArchiveTileWriter(final String pLocation) throws IOException {
+        this(pLocation, FILE_SIZE_LIMIT);
+    }
+
+    /**
+     * @param pFileSizeLimit maximum size of each file: {@link #FILE_SIZE_LIMIT}, except in tests
+     */
+    GEMFArchiveTileWriter(final String pLocation, final long pFileSizeLimit) throws IOException {
+        mLocation = pLocation;
+        mFileSizeLimit = pFileSizeLimit;
+        mSpoolFile = new File(pLocation + ".spool");
+        mSpool = new RandomAccessFile(mSpoolFile, "rw");
+        mSpool.setLength(0);
+    }
+
+    @Override
+    public boolean saveFile(final ITileSource pTileSourceInfo, final long pMapTileIndex,
+                            final InputStream pStream, final Long pExpirationTime) {
+        try {
+            final byte[] bits = TileBytes.getBytes(pStream);
+            save(pTileSourceInfo.name(), pMapTileIndex, bits != null ? bits : TileBytes.read(pStream, -1));
+            return true;
+        } catch (IOException e) {
+            Log.e(IMapView.LOGTAG, "Unable to spool tile " + pTileSourceInfo.name() + " " + MapTileIndex.toString(pMapTileIndex), e);
+            return false;
+        }
+    }
+
+    /**
+     * The sequential write stage: one tile at a time, at the end of the spool
+     */
+    private synchronized void save(final String pTileSource, final long pMapTileIndex, final byte[] pBits) throws IOException {
+        if (mFinished) {
+            throw new IOException("GEMF archive already written: " + mLocation);
+        }
+        Map<Long, Integer> positions = mPositions.get(pTileSource);
+        if (positions == null) {
+            positions = new HashMap<>();
+            mPositions.put(pTileSource, positions);
+        }
+        final Integer existing = positions.get(pMapTileIndex);
+        final int position;
+        if (existing != null) { // replaced: the former bytes are just left in the spool
+            position = existing;
+        } else {
+            position = mCount++;
+            if (position == mSpoolOffsets.length) {
+                mSpoolOffsets = Arrays.copyOf(mSpoolOffsets, position * 2);
+                mSpoolLengths = Arrays.copyOf(mSpoolLengths, position * 2);
+            }
+            positions.put(pMapTileIndex, position);
+        }
+        mSpool.seek(mSpoolLength);
+        mSpool.write(pBits);
+        mSpoolOffsets[position] = mSpoolLength;
+        mSpoolLengths[position] = pBits.length;
+        mSpoolLength += pBits.length;
+    }
+
+    @Override
+    public synchronized boolean exists(final ITileSource pTileSourceInfo, final long pMapTileIndex) {
+        final Map<Long, Integer> positions = mPositions.get(pTileSourceInfo.name());
+        return positions != null && positions.containsKey(pMapTileIndex);
+    }
+
+    @Override
+    public void onDetach() {
+        try {
+            finish();
+        } catch (IOException e) {
+            Log.e(IMapView.LOGTAG, "Unable to write GEMF archive " + mLocation, e);
+        }
+    }
+
+    @Override
+    public synchronized boolean remove(final ITileSource pTileSource, final long pMapTileIndex) {
+        if (mFinished) {
+            return false;
+        }
+        final Map<Long, Integer> positions = mPositions.get(pTileSource.name());
+        return positions != null && positions.remove(pMapTileIndex) != null;
+    }
+
+    @Override
+    public Long getExpirationTimestamp(final ITileSource pTileSource, final long pMapTileIndex) {
+        return null;
+    }
+
+    @Override
+    public Drawable loadTile(final ITileSource pTileSource, final long pMapTileIndex) throws Exception {
+        final byte[] bits;
+        synchronized (this) {
+            final Map<Long, Integer> positions = mPositions.get(pTileSource.name());
+            final Integer position = positions == null || mFinished ? null : positions.get(pMapTileIndex);
+            if (position == null) {
+                return null;
+            }
+            bits = new byte[mSpoolLengths[position]];
+            mSpool.seek(mSpoolOffsets[position]);
+            mSpool.readFully(bits);
+        }
+        return pTileSource.getDrawable(new ByteArrayInputStream(bits));
+    }
+
+    /**
+     * Copies tiles from an archive, read by several threads of the {@link MapTileWorkerPool}
+     * and written sequentially.
+     * The reads are concurrent only if the archive is thread-safe, i.e. an {@link IBoundedArchiveFile};
+     * other archives are read one tile at a time.
+     * The first failure stops the export.
+     *
+     * @param pTiles   the tiles to copy; the missing ones are ignored
+     * @param pThreads maximum number of reading threads
+     * @return the number of tiles copied
+     * @throws IOException the first failure of a read or of a write
+     */
+    public int export(final IArchiveFile pSource, final ITileSource pTileSource,
+                      final Iterable<Long> pTiles, final int pThreads) throws IOException, InterruptedException {
+        final Iterator<Long> iterator = pTiles.iterator();
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final MapTileWorkerPool pool = MapTileWorkerPool.getInstance();
+        final int threads = Math.max(1, Math.min(pThreads, pool.getThreadCount(MapTileWorkerPool.LANE_IO)));
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            pool.execute(MapTileWorkerPool.LANE_IO, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!stopped.get()) {
+                            final long index;
+                            synchronized (iterator) {
+                                if (!iterator.hasNext()) {
+                                    return;
+                                }
+                                index = iterator.next();
+                            }
+                            final byte[] bits = read(pSource, pTileSource, index);
+                            if (bits != null) {
+                                save(pTileSource.name(), index, bits);
+                                count.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e instanceof IOException ? (IOException) e : new IOException(e));
+                        stopped.set(true);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            stopped.set(true);
+            throw e;
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return count.get();
+    }
+
+    /**
+     * @return the tile bytes, or null if not in the archive
+     */
+    private static byte[] read(final IArchiveFile pSource, final ITileSource pTileSource, final long pMapTileIndex)
+            throws IOException {
+        InputStream in = null;
+        try {
+            if (pSource instanceof IBoundedArchiveFile) {
+                in = pSource.getInputStream(pTileSource, pMapTileIndex);
+            } else { // not known as thread-safe
+                synchronized (pSource) {
+                    in = pSource.getInputStream(pTileSource, pMapTileIndex);
+                }
+            }
+            return in == null ? null : TileBytes.read(in, -1);
+        } catch (IOException e) {
+            throw new IOException("Unable to export tile " + MapTileIndex.toString(pMapTileIndex), e);
+        } finally {
+            StreamUtils.closeStream(in);
+        }
+    }
+
+    /**
+     * Writes the GEMF archive from the spooled tiles, then deletes the spool.
+     * Further tiles are refused.
+     */
+    public synchronized void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        try {
+            write();
+        } finally {
+            mSpool.close();
+            if (!mSpoolFile.delete()) {
+                Log.w(IMapView.LOGTAG, "Unable to delete " + mSpoolFile);
+            }
+        }
+    }
+
+    /**
+     * A full rectangle of tiles of a tile source and a zoom level
+     */
+    private static class Range {
+        private final int mSource;
+        private final int mZoom;
+        private final int mXMin;
+        private int mXMax;
+        private final int mYMin;
+        private final int mYMax;
+        private int[] mPositions; // spool positions, x-major, as the header records
+
+        private Range(final int pSource, final int pZoom, final int pX, final int pYMin, final int pYMax) {
+            mSource = pSource;
+            mZoom = pZoom;
+            mXMin = pX;
+            mXMax = pX;
+            mYMin = pYMin;
+            mYMax = pYMax;
+        }
+    }
+
+    private void write() throws IOException {
+        final List<String> sources = new ArrayList<>(mPositions.keySet());
+        final List<Range> ranges = new ArrayList<>();
+        for (int source = 0; source < sources.size(); source++) {
+            computeRanges(source, mPositions.get(sources.get(source)), ranges);
+        }
+
+        // header size, then data offsets
+        long headerSize = U32_SIZE * 3 + U32_SIZE;
+        final List<byte[]> names = new ArrayList<>();
+        for (final String source : sources) {
+            final byte[] name = source.getBytes("UTF-8");
+            names.add(name);
+            headerSize += U32_SIZE * 2 + name.length;
+        }
+        headerSize += (long) ranges.size() * RANGE_SIZE;
+        long recordOffset = headerSize;
+        final long[] rangeOffsets = new long[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            rangeOffsets[i] = recordOffset;
+            recordOffset += (long) ranges.get(i).mPositions.length * RECORD_SIZE;
+        }
+
+        // the data of a tile never straddles two files; offsets are global over the files
+        final long[] dataOffsets = new long[mCount];
+        final List<Long> fileSizes = new ArrayList<>();
+        long filesBefore = 0;
+        long fileSize = recordOffset;
+        for (final Range range : ranges) {
+            for (final int position : range.mPositions) {
+                final int length = mSpoolLengths[position];
+                if (fileSize + length > mFileSizeLimit && fileSize > 0) {
+                    fileSizes.add(fileSize);
+                    filesBefore += fileSize;
+                    fileSize = 0;
+                }
+                dataOffsets[position] = filesBefore + fileSize;
+                fileSize += length;
+            }
+        }
+        fileSizes.add(fileSize);
+
+        int fileIndex = 0;
+        DataOutputStream out = open(fileIndex);
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(TILE_SIZE);
+            out.writeInt(sources.size());
+            for (int source = 0; source < sources.size(); source++) {
+                out.writeInt(source);
+                out.writeInt(names.get(source).length);
+                out.write(names.get(source));
+            }
+            out.writeInt(ranges.size());
+            for (int i = 0; i < ranges.size(); i++) {
+                final Range range = ranges.get(i);
+                out.writeInt(range.mZoom);
+                out.writeInt(range.mXMin);
+                out.writeInt(range.mXMax);
+                out.writeInt(range.mYMin);
+                out.writeInt(range.mYMax);
+                out.writeInt(range.mSource);
+                out.writeLong(rangeOffsets[i]);
+            }
+            for (final Range range : ranges) {
+                for (final int position : range.mPositions) {
+                    out.writeLong(dataOffsets[position]);
+                    out.writeInt(mSpoolLengths[position]);
+                }
+            }
+
+            byte[] buffer = new byte[StreamUtils.IO_BUFFER_SIZE];
+            long written = out.size();
+            for (final Range range : ranges) {
+                for (final int position : range.mPositions) {
+                    final int length = mSpoolLengths[position];
+                    if (written + length > fileSizes.get(fileIndex)) {
+                        out.close();
+                        out = open(++fileIndex);
+                        written = 0;
+                    }
+                    if (buffer.length < length) {
+                        buffer = new byte[length];
+                    }
+                    mSpool.seek(mSpoolOffsets[position]);
+                    mSpool.readFully(buffer, 0, length);
+                    out.write(buffer, 0, length);
+                    written += length;
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private DataOutputStream open(final int pFileIndex) throws IOException {
+        final String path = pFileIndex == 0 ? mLocation : mLocation + "-" + pFileIndex;
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 64 * 1024));
+    }
+
+    /**
+     * Splits each column of tiles into runs of consecutive y, and merges the same runs
+     * of consecutive columns into rectangles
+     */
+    private void computeRanges(final int pSource, final Map<Long, Integer> pPositions, final List<Range> pRanges) {
+        final long[] indices = new long[pPositions.size()];
+        int i = 0;
+        for (final long index : pPositions.keySet()) {
+            indices[i++] = index;
+        }
+        // sorted by zoom, then x, then y
+        Arrays.sort(indices);
+        final Map<Long, Range> open = new HashMap<>(); // by yMin and yMax
+        final Map<Range, List<int[]>> columns = new LinkedHashMap<>();
+        int zoom = -1;
+        i = 0;
+        while (i < indices.length) {
+            final long first = indices[i];
+            if (MapTileIndex.getZoom(first) != zoom) {
+                zoom = MapTileIndex.getZoom(first);
+                open.clear();
+            }
+            final int x = MapTileIndex.getX(first);
+            final int yMin = MapTileIndex.getY(first);
+            int yMax = yMin;
+            int j = i + 1;
+            while (j < indices.length
+                    && MapTileIndex.getZoom(indices[j]) == zoom
+                    && MapTileIndex.getX(indices[j]) == x
+                    && MapTileIndex.getY(indices[j]) == yMax + 1) {
+                yMax++;
+                j++;
+            }
+            final int[] column = new int[j - i];
+            for (int k = i; k < j; k++) {
+                column[k - i] = pPositions.get(indices[k]);
+            }
+            final long key = (((long) yMin) << 32) | yMax;
+            final Range range = open.get(key);
+            if (range != null && range.mXMax == x - 1) {
+                range.mXMax = x;
+                columns.get(range).add(column);
+            } else {
+                final Range created = new Range(pSource, zoom, x, yMin, yMax);
+                open.put(key, created);
+                final List<int[]> list = new ArrayList<>();
+                list.add(column);
+                columns.put(created, list);
+            }
+            i = j;
+        }
+        for (final Map.Entry<Range, List<int[]>> entry : columns.entrySet()) {
+            final Range range = entry.getKey();
+            final int height = range.mYMax - range.mYMin + 1;
+            final int[] positions = new int[entry.getValue().size() * height];
+            int offset = 0;
+            for (final int[] column : entry.getValue()) {
+                System.arraycopy(column, 0, positions, offset, height);
+                offset += height;
+            }
+            range.mPositions = positions;
+            pRanges.add(range);
+        }
+    }
+}
@@ -4,6 +4,8 @@ import android.util.Log;
 import com.example.osmofflinelib.api.IMapView;
 import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
 import com.example.osmofflinelib.utils.GEMFFile;
+import com.example.osmofflinelib.utils.MapTileArea;
+import com.example.osmofflinelib.utils.MapTileAreaList;
 import com.example.osmofflinelib.utils.MapTileIndex;
 
 import java.io.File;
@@ -12,7 +14,7 @@ import java.io.InputStream;
 import java.util.HashSet;
 import java.util.Set;
 
-public class GEMFFileArchive implements IArchiveFile {
+public class GEMFFileArchive implements IBoundedArchiveFile {
 
     private GEMFFile mFile;
 
@@ -61,6 +63,18 @@ public class GEMFFileArchive implements IArchiveFile {
         }
     }
 
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public MapTileAreaList getCoverage() {
+        final MapTileAreaList result = new MapTileAreaList();
+        for (final int[] range : mFile.getRanges()) {
+            result.getList().add(new MapTileArea().set(range[0], range[1], range[2], range[3], range[4]));
+        }
+        return result;
+    }
+
     @Override
     public String toString() {
         return "GEMFFileArchive [mGEMFFile=" + mFile.getName() + "]";
@@ -0,0 +1,245 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import android.os.Build;
+import com.example.osmofflinelib.config.Configuration;
+import com.example.osmofflinelib.tileprovider.tilesource.OnlineTileSourceBase;
+import com.example.osmofflinelib.tileprovider.utils.StreamUtils;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Default {@link ITileHttpTransport}, based on {@link HttpURLConnection}
+ * <p>
+ * Connections are reused through the keep-alive pool of the platform: a response is released
+ * by closing its stream, never by disconnecting.
+ * Code used to be in {@link TileDownloader}.
+ *
+ * @since 6.2.1
+ */
+public class HttpURLConnectionTileTransport implements ITileHttpTransport {
+
+    private static final HttpURLConnectionTileTransport sInstance = new HttpURLConnectionTileTransport();
+
+    public static HttpURLConnectionTileTransport getInstance() {
+        return sInstance;
+    }
+
+    private volatile int mConnectTimeout;
+    private volatile int mReadTimeout;
+    private SSLSocketFactory mCompatibilitySocketFactory;
+
+    @Override
+    public Response get(final String pUrl, final Map<String, String> pHeaders, final OnlineTileSourceBase pTileSource)
+            throws IOException {
+        final URL url = new URL(pUrl);
+        final HttpURLConnection connection;
+        if (Configuration.getInstance().getHttpProxy() != null) {
+            connection = (HttpURLConnection) url.openConnection(Configuration.getInstance().getHttpProxy());
+        } else {
+            connection = (HttpURLConnection) url.openConnection();
+        }
+        // Try to enable TLSv1.2 and/or disable SSLv3 on older devices
+        // see:
+        // https://stackoverflow.com/questions/33567596/android-https-web-service-communication-ssl-tls-1-2/33567745#33567745
+        // https://stackoverflow.com/questions/26649389/how-to-disable-sslv3-in-android-for-httpsurlconnection#29946540
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT_WATCH && connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(getCompatibilitySocketFactory());
+        }
+        connection.setUseCaches(true);
+        connection.setConnectTimeout(mConnectTimeout);
+        connection.setReadTimeout(mReadTimeout);
+        for (final Map.Entry<String, String> entry : pHeaders.entrySet()) {
+            connection.setRequestProperty(entry.getKey(), entry.getValue());
+        }
+        connection.connect();
+        return new ConnectionResponse(connection);
+    }
+
+    /**
+     * Sizes the keep-alive pool of the platform, through the "http.keepAlive" and "http.maxConnections"
+     * system properties.
+     * <p>
+     * Not a setting of this transport: the pool is process-wide, and these properties apply to
+     * every {@link HttpURLConnection} of the application, not only to the tile downloads.
+     * They are read once, when the platform creates its pool, i.e. before the first HTTP connection
+     * of the process; later calls have no effect.
+     *
+     * @param pMaxIdleConnections maximum number of idle connections kept alive per host, 0 for none
+     */
+    public static void setKeepAlivePoolSize(final int pMaxIdleConnections) {
+        System.setProperty("http.keepAlive", pMaxIdleConnections > 0 ? "true" : "false");
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(1, pMaxIdleConnections)));
+    }
+
+    @Override
+    public void setTimeouts(final int pConnectTimeoutMillis, final int pReadTimeoutMillis) {
+        mConnectTimeout = pConnectTimeoutMillis;
+        mReadTimeout = pReadTimeoutMillis;
+    }
+
+    /**
+     * A single instance, set on each connection instead of globally:
+     * the keep-alive pool only reuses connections with the same socket factory
+     */
+    private synchronized SSLSocketFactory getCompatibilitySocketFactory() {
+        if (mCompatibilitySocketFactory == null) {
+            mCompatibilitySocketFactory = new CompatibilitySocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+        }
+        return mCompatibilitySocketFactory;
+    }
+
+    private static class ConnectionResponse implements Response {
+
+        private final HttpURLConnection mConnection;
+        private InputStream mBody;
+        private boolean mClosed;
+
+        private ConnectionResponse(final HttpURLConnection pConnection) {
+            mConnection = pConnection;
+        }
+
+        @Override
+        public int getCode() throws IOException {
+            return mConnection.getResponseCode();
+        }
+
+        @Override
+        public String getMessage() throws IOException {
+            return mConnection.getResponseMessage();
+        }
+
+        @Override
+        public String getHeader(final String pName) {
+            return mConnection.getHeaderField(pName);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mBody = mConnection.getInputStream();
+            }
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mBody == null) { // closing the stream, even an error stream, is what releases the connection
+                try {
+                    mBody = mConnection.getResponseCode() < 400 ? mConnection.getInputStream() : mConnection.getErrorStream();
+                } catch (Exception e) {
+                    // no stream to purge
+                }
+            }
+            StreamUtils.closeStream(mBody);
+        }
+    }
+
+    /**
+     * Proxy for {@link SSLSocketFactory} that tries to enable TLSv1.2 and/or disable SSLv3 on
+     * older devices to improve security and compatibility with modern https server configurations
+     *
+     * @since 6.1.7
+     * Used to be in {@link TileDownloader}
+     */
+    private static class CompatibilitySocketFactory extends SSLSocketFactory {
+        SSLSocketFactory sslSocketFactory;
+
+        CompatibilitySocketFactory(SSLSocketFactory sslSocketFactory) {
+            super();
+            this.sslSocketFactory = sslSocketFactory;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return sslSocketFactory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return sslSocketFactory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket();
+            return upgradeTlsAndRemoveSsl(socket);
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(s, host, port, autoClose);
+            return upgradeTlsAndRemoveSsl(socket);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(host, port);
+            return upgradeTlsAndRemoveSsl(socket);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException,
+                UnknownHostException {
+            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(host, port, localHost, localPort);
+            return upgradeTlsAndRemoveSsl(socket);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(host, port);
+            return upgradeTlsAndRemoveSsl(socket);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(address, port, localAddress, localPort);
+            return upgradeTlsAndRemoveSsl(socket);
+        }
+
+        private SSLSocket upgradeTlsAndRemoveSsl(SSLSocket socket) {
+            String[] supportedProtocols = socket.getSupportedProtocols();
+            String[] enabledProtocols = socket.getEnabledProtocols();
+            String[] newEnabledProtocols;
+
+            // If TLS 1.2 is supported just set it as the only enabled protocol an be done with it,
+            // as it's guaranteed to be the most modern protocol on devices on API<21 (1.3 only
+            // exists since August 2018)
+            if (Arrays.binarySearch(supportedProtocols, "TLSv1.2") >= 0) {
+                newEnabledProtocols = new String[]{"TLSv1.2"};
+            } else {
+                int sslEnabled = Arrays.binarySearch(enabledProtocols, "SSLv3");
+                if (sslEnabled >= 0) {
+                    newEnabledProtocols = new String[enabledProtocols.length - 1];
+                    System.arraycopy(enabledProtocols, 0, newEnabledProtocols, 0, sslEnabled);
+                    if (newEnabledProtocols.length > sslEnabled) {
+                        System.arraycopy(
+                                enabledProtocols, sslEnabled + 1,
+                                newEnabledProtocols, sslEnabled,
+                                newEnabledProtocols.length - sslEnabled);
+                    }
+                } else {
+                    newEnabledProtocols = enabledProtocols;
+                }
+            }
+
+            socket.setEnabledProtocols(newEnabledProtocols);
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import com.example.osmofflinelib.utils.MapTileAreaList;
+
+/**
+ * An archive file that knows which tiles it may contain, as soon as it's opened.
+ * Used by {@link MapTileFileArchiveProvider} to query only the archives that may contain a tile.
+ * <p>
+ * Implementations must also accept concurrent calls to {@link #getInputStream}.
+ *
+ * @since 6.2.1
+ */
+public interface IBoundedArchiveFile extends IArchiveFile {
+
+    /**
+     * @return the areas that contain all the tiles of the archive (and possibly more),
+     * or null if unknown: the archive is then queried for every tile
+     */
+    MapTileAreaList getCoverage();
+}
@@ -0,0 +1,53 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
+
+import java.io.InputStream;
+
+/**
+ * A file system cache that keeps the http validators (ETag, Last-Modified) of each tile,
+ * so that an expired tile can be revalidated with a conditional request instead of being
+ * downloaded again: on a "304 Not Modified" answer only its expiration timestamp is updated.
+ *
+ * @see TileDownloader
+ * @since 6.2.1
+ */
+public interface IRevalidatingFilesystemCache extends IFilesystemCache {
+
+    /**
+     * Index of the ETag value in the array returned by {@link #getValidators(ITileSource, long)}
+     */
+    int VALIDATOR_ETAG = 0;
+
+    /**
+     * Index of the Last-Modified value in the array returned by {@link #getValidators(ITileSource, long)}
+     */
+    int VALIDATOR_LAST_MODIFIED = 1;
+
+    /**
+     * Same as {@link #saveFile(ITileSource, long, InputStream, Long)}, with the http validators
+     *
+     * @param pETag         value of the ETag http header, possibly null
+     * @param pLastModified value of the Last-Modified http header, possibly null
+     */
+    boolean saveFile(final ITileSource pTileSourceInfo, final long pMapTileIndex,
+                     final InputStream pStream, final Long pExpirationTime,
+                     final String pETag, final String pLastModified);
+
+    /**
+     * @return the http validators of the cached tile, indexed by {@link #VALIDATOR_ETAG}
+     * and {@link #VALIDATOR_LAST_MODIFIED} (each possibly null), or null if the tile is not cached
+     */
+    String[] getValidators(final ITileSource pTileSource, final long pMapTileIndex);
+
+    /**
+     * Updates the expiration timestamp and the http validators of a cached tile, without rewriting it,
+     * including a tile not actually written yet
+     *
+     * @param pETag         new value of the ETag http header, or null to keep the current one
+     * @param pLastModified new value of the Last-Modified http header, or null to keep the current one
+     * @return true if the tile was found and updated
+     */
+    boolean updateExpirationTimestamp(final ITileSource pTileSource, final long pMapTileIndex,
+                                      final long pExpirationTime, final String pETag, final String pLastModified);
+}
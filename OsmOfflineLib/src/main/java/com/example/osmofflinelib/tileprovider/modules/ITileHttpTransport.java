@@ -0,0 +1,63 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import com.example.osmofflinelib.tileprovider.tilesource.OnlineTileSourceBase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * The HTTP client used by {@link TileDownloader}
+ * <p>
+ * The default implementation is {@link HttpURLConnectionTileTransport}; an application
+ * can plug its own HTTP stack (e.g. to share its connection pool, or to get HTTP/2 multiplexing)
+ * with {@link TileDownloader#setTransport(ITileHttpTransport)}.
+ * <p>
+ * Implementations are shared by all the downloads, and therefore must be thread-safe.
+ *
+ * @since 6.2.1
+ */
+public interface ITileHttpTransport {
+
+    /**
+     * The answer of the server to a GET request.
+     * Must always be closed, even when the body was not read, so that the connection can be reused.
+     */
+    interface Response {
+
+        int getCode() throws IOException;
+
+        String getMessage() throws IOException;
+
+        /**
+         * @return the value of that response header, or null
+         */
+        String getHeader(final String pName);
+
+        /**
+         * @return the body of a successful response
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * Releases the connection: back to the keep-alive pool if possible
+         */
+        void close();
+    }
+
+    /**
+     * Sends a GET request.
+     * The requests per host are already limited by {@link MapTileHostLimiter}.
+     *
+     * @param pHeaders    the request headers
+     * @param pTileSource the tile source of the requested tile
+     */
+    Response get(final String pUrl, final Map<String, String> pHeaders, final OnlineTileSourceBase pTileSource)
+            throws IOException;
+
+    /**
+     * @param pConnectTimeoutMillis 0 for no timeout
+     * @param pReadTimeoutMillis    0 for no timeout
+     */
+    void setTimeouts(final int pConnectTimeoutMillis, final int pReadTimeoutMillis);
+}
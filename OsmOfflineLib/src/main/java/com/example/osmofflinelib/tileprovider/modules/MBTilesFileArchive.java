@@ -1,17 +1,26 @@
 package com.example.osmofflinelib.tileprovider.modules;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteQuery;
 import android.util.Log;
 import com.example.osmofflinelib.api.IMapView;
 import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
+import com.example.osmofflinelib.tileprovider.utils.TileBytes;
+import com.example.osmofflinelib.utils.MapTileArea;
+import com.example.osmofflinelib.utils.MapTileAreaList;
 import com.example.osmofflinelib.utils.MapTileIndex;
+import com.example.osmofflinelib.utils.TileSystem;
+import com.example.osmofflinelib.utils.TileSystemWebMercator;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -21,7 +30,7 @@ import java.util.Set;
  *
  * @author neilboyd circa 2011
  */
-public class MBTilesFileArchive implements IArchiveFile {
+public class MBTilesFileArchive implements IBoundedArchiveFile {
 
     private SQLiteDatabase mDatabase;
 
@@ -35,8 +44,43 @@ public class MBTilesFileArchive implements IArchiveFile {
     public final static String COL_TILES_TILE_ROW = "tile_row";
     public final static String COL_TILES_TILE_DATA = "tile_data";
 
+    //	TABLE metadata (name TEXT, value TEXT);
+    /**
+     * @since 6.2.1
+     */
+    public final static String TABLE_METADATA = "metadata";
+    /**
+     * @since 6.2.1
+     */
+    public final static String COL_METADATA_NAME = "name";
+    /**
+     * @since 6.2.1
+     */
+    public final static String COL_METADATA_VALUE = "value";
+
+    /**
+     * Constant SQL, so that the statements are compiled once per connection and then reused;
+     * the blob column cannot be read through a compiled statement, hence cursors,
+     * with the parameters bound as integers by {@link IntegerParameters}.
+     */
+    private static final String QUERY_TILE = "SELECT " + COL_TILES_TILE_DATA + " FROM " + TABLE_TILES
+            + " WHERE " + COL_TILES_ZOOM_LEVEL + "=? AND " + COL_TILES_TILE_COLUMN + "=? AND " + COL_TILES_TILE_ROW + "=?";
+    private static final String QUERY_TILES = "SELECT " + COL_TILES_TILE_COLUMN + ", " + COL_TILES_TILE_ROW
+            + ", " + COL_TILES_TILE_DATA + " FROM " + TABLE_TILES + " WHERE " + COL_TILES_ZOOM_LEVEL + "=? AND "
+            + COL_TILES_TILE_COLUMN + " BETWEEN ? AND ? AND " + COL_TILES_TILE_ROW + " BETWEEN ? AND ?";
+
+    /**
+     * From the metadata table (or the tiles table for the zoom levels, if missing)
+     */
+    private int mMinZoom = 0;
+    private int mMaxZoom = TileSystem.getMaximumZoomLevel();
+    private double[] mBounds; // left, bottom, right, top; null if unknown
+    private String mFormat;
+    private MapTileArea[] mAreas; // per zoom level; null if the bounds are unknown
+
     private MBTilesFileArchive(final SQLiteDatabase pDatabase) {
         mDatabase = pDatabase;
+        readMetadata();
     }
 
     public static MBTilesFileArchive getDatabaseFileArchive(final File pFile) throws SQLiteException {
@@ -53,36 +97,82 @@ public class MBTilesFileArchive implements IArchiveFile {
                 pFile.getAbsolutePath(),
                 null,
                 SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READONLY);
+        readMetadata();
     }
 
+    /**
+     * Thread-safe: concurrent readers share the database, without any lock of ours
+     */
     @Override
     public InputStream getInputStream(final ITileSource pTileSource, final long pMapTileIndex) {
+        if (!mayContain(pMapTileIndex)) {
+            return null;
+        }
+        Cursor cur = null;
         try {
-            InputStream ret = null;
-            final String[] tile = {COL_TILES_TILE_DATA};
-            final String[] xyz = {
-                    Integer.toString(MapTileIndex.getX(pMapTileIndex))
-                    , Double.toString(Math.pow(2, MapTileIndex.getZoom(pMapTileIndex)) - MapTileIndex.getY(pMapTileIndex) - 1)  // Use Google Tiling Spec
-                    , Integer.toString(MapTileIndex.getZoom(pMapTileIndex))
-            };
-
-            final Cursor cur = mDatabase.query(TABLE_TILES, tile, "tile_column=? and tile_row=? and zoom_level=?", xyz, null, null, null);
-
-            if (cur.getCount() != 0) {
-                cur.moveToFirst();
-                ret = new ByteArrayInputStream(cur.getBlob(0));
-            }
-            cur.close();
-            if (ret != null) {
-                return ret;
+            final int zoom = MapTileIndex.getZoom(pMapTileIndex);
+            cur = mDatabase.rawQueryWithFactory(new IntegerParameters(zoom, MapTileIndex.getX(pMapTileIndex),
+                    getRow(zoom, MapTileIndex.getY(pMapTileIndex))), QUERY_TILE, null, null);
+            if (cur.moveToFirst()) {
+                return TileBytes.wrap(cur.getBlob(0));
             }
         } catch (final Throwable e) {
             Log.w(IMapView.LOGTAG, "Error getting db stream: " + MapTileIndex.toString(pMapTileIndex), e);
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
         }
 
         return null;
     }
 
+    /**
+     * Reads all the tiles of an area (e.g. a viewport) in a single query.
+     * For bulk readers: the tile providers still load one tile at a time,
+     * through {@link #getInputStream(ITileSource, long)}.
+     *
+     * @return the tiles found, by tile index
+     * @since 6.2.1
+     */
+    public Map<Long, byte[]> getTiles(final MapTileArea pArea) {
+        final Map<Long, byte[]> result = new HashMap<>();
+        final int zoom = pArea.getZoom();
+        if (pArea.getWidth() == 0 || pArea.getHeight() == 0 || zoom < mMinZoom || zoom > mMaxZoom) {
+            return result;
+        }
+        final int upperBound = 1 << zoom;
+        // the area may go over the antimeridian: then 2 column intervals
+        final int right = pArea.getLeft() + pArea.getWidth() - 1;
+        final int bottom = pArea.getTop() + pArea.getHeight() - 1;
+        final int[][] columns = right < upperBound
+                ? new int[][]{{pArea.getLeft(), right}}
+                : new int[][]{{pArea.getLeft(), upperBound - 1}, {0, right - upperBound}};
+        final int[][] rows = bottom < upperBound
+                ? new int[][]{{pArea.getTop(), bottom}}
+                : new int[][]{{pArea.getTop(), upperBound - 1}, {0, bottom - upperBound}};
+        for (final int[] xInterval : columns) {
+            for (final int[] yInterval : rows) {
+                Cursor cur = null;
+                try {
+                    cur = mDatabase.rawQueryWithFactory(new IntegerParameters(zoom, xInterval[0], xInterval[1],
+                            getRow(zoom, yInterval[1]), getRow(zoom, yInterval[0])), QUERY_TILES, null, null);
+                    while (cur.moveToNext()) {
+                        result.put(MapTileIndex.getTileIndex(zoom, cur.getInt(0), getRow(zoom, cur.getInt(1))),
+                                cur.getBlob(2));
+                    }
+                } catch (final Throwable e) {
+                    Log.w(IMapView.LOGTAG, "Error getting db tiles: " + pArea, e);
+                } finally {
+                    if (cur != null) {
+                        cur.close();
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
     public Set<String> getTileSources() {
         //the MBTiles spec doesn't store source information in it, so we can't return anything
         return Collections.EMPTY_SET;
@@ -98,6 +188,188 @@ public class MBTilesFileArchive implements IArchiveFile {
         mDatabase.close();
     }
 
+    /**
+     * @return the tiles within the bounds and the zoom levels of the metadata,
+     * or null if the bounds are unknown
+     * @since 6.2.1
+     */
+    @Override
+    public MapTileAreaList getCoverage() {
+        if (mAreas == null) {
+            return null;
+        }
+        final MapTileAreaList result = new MapTileAreaList();
+        for (final MapTileArea area : mAreas) {
+            if (area != null) {
+                result.getList().add(area);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the "format" metadata (e.g. "png", "jpg"), or null if unknown
+     * @since 6.2.1
+     */
+    public String getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    public int getMinZoom() {
+        return mMinZoom;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    public int getMaxZoom() {
+        return mMaxZoom;
+    }
+
+    /**
+     * Tells without a query that a tile is out of the zoom levels or the bounds of the metadata
+     */
+    private boolean mayContain(final long pMapTileIndex) {
+        final int zoom = MapTileIndex.getZoom(pMapTileIndex);
+        if (zoom < mMinZoom || zoom > mMaxZoom) {
+            return false;
+        }
+        return mAreas == null || (zoom < mAreas.length && mAreas[zoom] != null && mAreas[zoom].contains(pMapTileIndex));
+    }
+
+    /**
+     * Use Google Tiling Spec: the rows of the MBTiles spec go from the south
+     * (and the same formula goes back)
+     */
+    private static int getRow(final int pZoom, final int pY) {
+        return (1 << pZoom) - 1 - pY;
+    }
+
+    private void readMetadata() {
+        String minZoom = null;
+        String maxZoom = null;
+        String bounds = null;
+        Cursor cur = null;
+        try {
+            cur = mDatabase.rawQuery("SELECT " + COL_METADATA_NAME + ", " + COL_METADATA_VALUE
+                    + " FROM " + TABLE_METADATA, null);
+            while (cur.moveToNext()) {
+                final String name = cur.getString(0);
+                final String value = cur.getString(1);
+                if ("minzoom".equals(name)) {
+                    minZoom = value;
+                } else if ("maxzoom".equals(name)) {
+                    maxZoom = value;
+                } else if ("bounds".equals(name)) {
+                    bounds = value;
+                } else if ("format".equals(name)) {
+                    mFormat = value;
+                }
+            }
+        } catch (final Throwable e) {
+            Log.w(IMapView.LOGTAG, "Error reading mbtiles metadata: " + mDatabase.getPath(), e);
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+        try {
+            if (minZoom != null && maxZoom != null) {
+                mMinZoom = Integer.parseInt(minZoom.trim());
+                mMaxZoom = Integer.parseInt(maxZoom.trim());
+            } else {
+                readZoomLevels();
+            }
+        } catch (final NumberFormatException e) {
+            Log.w(IMapView.LOGTAG, "Invalid mbtiles zoom levels: " + minZoom + " " + maxZoom, e);
+            readZoomLevels();
+        }
+        mMinZoom = Math.max(0, mMinZoom);
+        mMaxZoom = Math.min(TileSystem.primaryKeyMaxZoomLevel, mMaxZoom);
+        if (bounds != null) {
+            mBounds = parseBounds(bounds);
+        }
+        if (mBounds != null) {
+            final TileSystem tileSystem = new TileSystemWebMercator();
+            mAreas = new MapTileArea[mMaxZoom + 1];
+            for (int zoom = mMinZoom; zoom <= mMaxZoom; zoom++) {
+                mAreas[zoom] = new MapTileArea().set(zoom,
+                        tileSystem.getTileXFromLongitude(mBounds[0], zoom),
+                        tileSystem.getTileYFromLatitude(mBounds[3], zoom),
+                        tileSystem.getTileXFromLongitude(mBounds[2], zoom),
+                        tileSystem.getTileYFromLatitude(mBounds[1], zoom));
+            }
+        }
+    }
+
+    /**
+     * The zoom levels actually in the tiles table, cheap with the usual index of the table
+     */
+    private void readZoomLevels() {
+        Cursor cur = null;
+        try {
+            cur = mDatabase.rawQuery("SELECT MIN(" + COL_TILES_ZOOM_LEVEL + "), MAX(" + COL_TILES_ZOOM_LEVEL
+                    + ") FROM " + TABLE_TILES, null);
+            if (cur.moveToFirst() && !cur.isNull(0)) {
+                mMinZoom = cur.getInt(0);
+                mMaxZoom = cur.getInt(1);
+            }
+        } catch (final Throwable e) {
+            Log.w(IMapView.LOGTAG, "Error reading mbtiles zoom levels: " + mDatabase.getPath(), e);
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+    }
+
+    /**
+     * @param pBounds "left,bottom,right,top", in degrees
+     * @return null if invalid
+     */
+    private static double[] parseBounds(final String pBounds) {
+        final String[] values = pBounds.split(",");
+        if (values.length != 4) {
+            return null;
+        }
+        final double[] result = new double[4];
+        try {
+            for (int i = 0; i < 4; i++) {
+                result[i] = Double.parseDouble(values[i].trim());
+            }
+        } catch (final NumberFormatException e) {
+            Log.w(IMapView.LOGTAG, "Invalid mbtiles bounds: " + pBounds, e);
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Binds the query parameters as integers, as the columns are, instead of strings to be converted
+     *
+     * @since 6.2.1
+     */
+    private static final class IntegerParameters implements SQLiteDatabase.CursorFactory {
+
+        private final int[] mValues;
+
+        private IntegerParameters(final int... pValues) {
+            mValues = pValues;
+        }
+
+        @Override
+        public Cursor newCursor(final SQLiteDatabase pDb, final SQLiteCursorDriver pDriver,
+                                final String pEditTable, final SQLiteQuery pQuery) {
+            for (int i = 0; i < mValues.length; i++) {
+                pQuery.bindLong(i + 1, mValues[i]);
+            }
+            return new SQLiteCursor(pDriver, pEditTable, pQuery);
+        }
+    }
+
     @Override
     public String toString() {
         return "DatabaseFileArchive [mDatabase=" + mDatabase.getPath() + "]";
@@ -85,6 +85,11 @@ public class MapTileApproximater extends MapTileModuleProviderBase {
         return "approximater";
     }
 
+    @Override
+    protected int getLane() {
+        return MapTileWorkerPool.LANE_DECODE;
+    }
+
     @Override
     public TileLoader getTileLoader() {
         return new TileLoader();
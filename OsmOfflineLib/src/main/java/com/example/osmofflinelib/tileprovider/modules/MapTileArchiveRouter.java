@@ -0,0 +1,101 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import com.example.osmofflinelib.utils.MapTileArea;
+import com.example.osmofflinelib.utils.MapTileAreaList;
+import com.example.osmofflinelib.utils.MapTileIndex;
+import com.example.osmofflinelib.utils.TileSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable zoom index of archive files, giving for a tile the archives that may contain it,
+ * in the order of the archive list.
+ * Archives that don't publish their coverage (cf. {@link IBoundedArchiveFile}) are always candidates.
+ *
+ * @since 6.2.1
+ */
+
+public class MapTileArchiveRouter {
+
+    public static final MapTileArchiveRouter EMPTY = new MapTileArchiveRouter(new ArrayList<IArchiveFile>());
+
+    private static class Route {
+        private final IArchiveFile mArchiveFile;
+        /**
+         * null means: any tile of the zoom level
+         */
+        private final MapTileArea[] mAreas;
+
+        private Route(final IArchiveFile pArchiveFile, final MapTileArea[] pAreas) {
+            mArchiveFile = pArchiveFile;
+            mAreas = pAreas;
+        }
+
+        private boolean mayContain(final long pMapTileIndex) {
+            if (mAreas == null) {
+                return true;
+            }
+            for (final MapTileArea area : mAreas) {
+                if (area.contains(pMapTileIndex)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final Route[] NO_ROUTE = new Route[0];
+
+    private final Route[][] mRoutesPerZoom = new Route[TileSystem.primaryKeyMaxZoomLevel + 1][];
+
+    public MapTileArchiveRouter(final List<IArchiveFile> pArchiveFiles) {
+        final List<List<Route>> routesPerZoom = new ArrayList<>(mRoutesPerZoom.length);
+        for (int zoom = 0; zoom < mRoutesPerZoom.length; zoom++) {
+            routesPerZoom.add(new ArrayList<Route>());
+        }
+        for (final IArchiveFile archiveFile : pArchiveFiles) {
+            if (archiveFile == null) {
+                continue;
+            }
+            final MapTileAreaList coverage = archiveFile instanceof IBoundedArchiveFile
+                    ? ((IBoundedArchiveFile) archiveFile).getCoverage() : null;
+            for (int zoom = 0; zoom < mRoutesPerZoom.length; zoom++) {
+                if (coverage == null) {
+                    routesPerZoom.get(zoom).add(new Route(archiveFile, null));
+                    continue;
+                }
+                final List<MapTileArea> areas = new ArrayList<>();
+                for (final MapTileArea area : coverage.getList()) {
+                    if (area.getZoom() == zoom && area.getWidth() > 0 && area.getHeight() > 0) { // size() may overflow
+                        areas.add(area);
+                    }
+                }
+                if (!areas.isEmpty()) {
+                    routesPerZoom.get(zoom).add(new Route(archiveFile, areas.toArray(new MapTileArea[0])));
+                }
+            }
+        }
+        for (int zoom = 0; zoom < mRoutesPerZoom.length; zoom++) {
+            final List<Route> routes = routesPerZoom.get(zoom);
+            mRoutesPerZoom[zoom] = routes.isEmpty() ? NO_ROUTE : routes.toArray(new Route[0]);
+        }
+    }
+
+    /**
+     * @return the archives that may contain that tile; thread-safe
+     */
+    public List<IArchiveFile> getCandidates(final long pMapTileIndex) {
+        final List<IArchiveFile> result = new ArrayList<>();
+        final int zoom = MapTileIndex.getZoom(pMapTileIndex);
+        if (zoom < 0 || zoom >= mRoutesPerZoom.length) {
+            return result;
+        }
+        for (final Route route : mRoutesPerZoom[zoom]) {
+            if (route.mayContain(pMapTileIndex)) {
+                result.add(route.mArchiveFile);
+            }
+        }
+        return result;
+    }
+}
@@ -161,6 +161,9 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
                 return null;
             }
             try {
+                if (isCancelled()) { // no longer needed after waiting for a connection slot
+                    return null;
+                }
                 return mTileDownloader.downloadTile(pMapTileIndex, redirectCount, targetUrl, mFilesystemCache, tileSource);
             } finally {
                 tileSource.release();
@@ -211,7 +214,10 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
             // that we might not even be interested in any more
             pState.getCallback().mapTileRequestCompleted(pState, null);
             // We want to return the Bitmap to the BitmapPool if applicable
-            BitmapPool.getInstance().asyncRecycle(pDrawable);
+            // - unless it was also given to another consumer that keeps it
+            if (!MapTileInFlightRegistry.getInstance().isShared(pDrawable)) {
+                BitmapPool.getInstance().asyncRecycle(pDrawable);
+            }
         }
 
     }
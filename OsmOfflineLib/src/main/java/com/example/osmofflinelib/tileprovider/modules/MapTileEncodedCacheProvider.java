@@ -0,0 +1,117 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import com.example.osmofflinelib.api.IMapView;
+import com.example.osmofflinelib.config.Configuration;
+import com.example.osmofflinelib.tileprovider.ExpirableBitmapDrawable;
+import com.example.osmofflinelib.tileprovider.MapTileEncodedCache;
+import com.example.osmofflinelib.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import com.example.osmofflinelib.tileprovider.tilesource.BitmapTileSourceBase;
+import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
+import com.example.osmofflinelib.tileprovider.utils.Counters;
+import com.example.osmofflinelib.utils.MapTileIndex;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serves tiles decoded from the encoded bytes kept in memory by {@link MapTileEncodedCache}.
+ * Meant to be the first provider of the chain: on a miss in the bitmap cache, the tile is decoded
+ * on this provider's threads, without any disk read.
+ *
+ * @since 6.2.1
+ */
+public class MapTileEncodedCacheProvider extends MapTileModuleProviderBase {
+
+    /**
+     * @since 6.2.1
+     */
+    public static final String COUNTER_HIT = "encodedCacheHit";
+    public static final String COUNTER_MISS = "encodedCacheMiss";
+
+    private final AtomicReference<ITileSource> mTileSource = new AtomicReference<>();
+
+    public MapTileEncodedCacheProvider(final ITileSource pTileSource) {
+        this(pTileSource,
+                Configuration.getInstance().getTileFileSystemThreads(),
+                Configuration.getInstance().getTileFileSystemMaxQueueSize());
+    }
+
+    public MapTileEncodedCacheProvider(final ITileSource pTileSource,
+                                       final int pThreadPoolSize, final int pPendingQueueSize) {
+        super(pThreadPoolSize, pPendingQueueSize);
+        setTileSource(pTileSource);
+    }
+
+    @Override
+    public boolean getUsesDataConnection() {
+        return false;
+    }
+
+    @Override
+    protected String getName() {
+        return "Encoded Memory Cache Provider";
+    }
+
+    @Override
+    protected String getThreadGroupName() {
+        return "decode";
+    }
+
+    @Override
+    protected int getLane() {
+        return MapTileWorkerPool.LANE_DECODE;
+    }
+
+    @Override
+    public TileLoader getTileLoader() {
+        return new TileLoader();
+    }
+
+    @Override
+    public int getMinimumZoomLevel() {
+        final ITileSource tileSource = mTileSource.get();
+        return tileSource != null ? tileSource.getMinimumZoomLevel() : OpenStreetMapTileProviderConstants.MINIMUM_ZOOMLEVEL;
+    }
+
+    @Override
+    public int getMaximumZoomLevel() {
+        final ITileSource tileSource = mTileSource.get();
+        return tileSource != null ? tileSource.getMaximumZoomLevel()
+                : com.example.osmofflinelib.utils.TileSystem.getMaximumZoomLevel();
+    }
+
+    @Override
+    public void setTileSource(final ITileSource pTileSource) {
+        mTileSource.set(pTileSource);
+    }
+
+    protected class TileLoader extends MapTileModuleProviderBase.TileLoader {
+
+        @Override
+        public Drawable loadTile(final long pMapTileIndex) throws CantContinueException {
+            final ITileSource tileSource = mTileSource.get();
+            if (tileSource == null) {
+                return null;
+            }
+            final MapTileEncodedCache.Entry entry = MapTileEncodedCache.getInstance().get(tileSource, pMapTileIndex);
+            if (entry == null) {
+                Counters.increment(COUNTER_MISS);
+                return null;
+            }
+            Counters.increment(COUNTER_HIT);
+            try {
+                final Drawable drawable = tileSource.getDrawable(new ByteArrayInputStream(entry.getBytes()));
+                if (drawable != null && entry.isExpired(System.currentTimeMillis())) {
+                    ExpirableBitmapDrawable.setState(drawable, ExpirableBitmapDrawable.EXPIRED);
+                }
+                return drawable;
+            } catch (final BitmapTileSourceBase.LowMemoryException e) {
+                Log.w(IMapView.LOGTAG, "LowMemoryException decoding MapTile: " + MapTileIndex.toString(pMapTileIndex) + " : " + e);
+                Counters.countOOM++;
+                throw new CantContinueException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import android.util.Log;
+import com.example.osmofflinelib.api.IMapView;
+import com.example.osmofflinelib.config.Configuration;
+import com.example.osmofflinelib.tileprovider.utils.Counters;
+import com.example.osmofflinelib.utils.MapTileBloomFilter;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-memory existence index of the tiles stored in a tile cache, one Bloom filter per tile source
+ * <p>
+ * Tells for sure when a tile is not in the cache, so that the storage is not even queried.
+ * The filter of a tile source is built in the background from the cache content on first use;
+ * until it's ready, every tile is considered as possibly in the cache.
+ * Tiles stored in the cache must be declared with {@link #add(String, long)}, even during the build.
+ * Removed tiles cannot be removed from a Bloom filter: they just become false positives,
+ * until the filter is rebuilt after {@link #invalidate(String)}, or lazily once {@link #removed(String, int)}
+ * reported too many of them.
+ *
+ * @since 6.2.1
+ */
+
+public class MapTileExistenceIndex {
+
+    public static final String COUNTER_DEFINITE_MISS = "tileExistenceDefiniteMiss";
+
+    /**
+     * Room for the tiles added after the build, before the filter gets too inaccurate
+     */
+    private static final int GROWTH_FACTOR = 2;
+    private static final int MIN_CAPACITY = 16 * 1024;
+
+    /**
+     * The cache content, as seen by the index
+     */
+    public interface Source {
+
+        /**
+         * @return the number of tiles of that tile source in the cache
+         */
+        long count(final String pTileSource);
+
+        /**
+         * Adds all the tile keys of that tile source to the filter
+         */
+        void scan(final String pTileSource, final MapTileBloomFilter pFilter);
+    }
+
+    private static class Entry {
+        private MapTileBloomFilter mFilter;
+        private boolean mReady;
+        private int mAdded;
+        private int mRemoved;
+    }
+
+    private final Source mSource;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY, "tileExistenceIndex"));
+
+    public MapTileExistenceIndex(final Source pSource) {
+        mSource = pSource;
+    }
+
+    /**
+     * Builds the filter of that tile source in the background, if not done yet
+     */
+    public void prepare(final String pTileSource) {
+        getEntry(pTileSource);
+    }
+
+    /**
+     * @return false if the tile is definitely not in the cache
+     */
+    public boolean mightContain(final String pTileSource, final long pKey) {
+        final Entry entry = getEntry(pTileSource);
+        final MapTileBloomFilter filter;
+        synchronized (mEntries) {
+            if (!entry.mReady) {
+                return true;
+            }
+            filter = entry.mFilter;
+        }
+        if (filter.mightContain(pKey)) {
+            return true;
+        }
+        Counters.increment(COUNTER_DEFINITE_MISS);
+        return false;
+    }
+
+    /**
+     * To be called once the tile is actually stored (and visible to {@link Source#scan})
+     */
+    public void add(final String pTileSource, final long pKey) {
+        final MapTileBloomFilter filter;
+        synchronized (mEntries) {
+            final Entry entry = mEntries.get(pTileSource);
+            if (entry == null || entry.mFilter == null) { // the scan to come will find it
+                return;
+            }
+            filter = entry.mFilter;
+            if (entry.mReady && ++entry.mAdded > filter.getCapacity() / GROWTH_FACTOR) {
+                mEntries.remove(pTileSource); // too many tiles for that filter size
+            }
+        }
+        filter.add(pKey);
+    }
+
+    /**
+     * To be called after tiles were removed, when a rebuild is not worth it yet:
+     * the filter stays correct, just less selective, and is rebuilt on next use
+     * only once the stale tiles are too many for its size
+     *
+     * @param pTileSource the tile source, or null if unknown (counted for all tile sources)
+     */
+    public void removed(final String pTileSource, final int pCount) {
+        synchronized (mEntries) {
+            final Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<String, Entry> item = iterator.next();
+                if (pTileSource != null && !pTileSource.equals(item.getKey())) {
+                    continue;
+                }
+                final Entry entry = item.getValue();
+                entry.mRemoved += pCount;
+                if (entry.mReady && entry.mRemoved > entry.mFilter.getCapacity() / GROWTH_FACTOR) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * To be called after tiles were removed in bulk: the filter will be rebuilt
+     *
+     * @param pTileSource the tile source, or null for all tile sources
+     */
+    public void invalidate(final String pTileSource) {
+        synchronized (mEntries) {
+            if (pTileSource == null) {
+                mEntries.clear();
+            } else {
+                mEntries.remove(pTileSource);
+            }
+        }
+    }
+
+    private Entry getEntry(final String pTileSource) {
+        final Entry entry;
+        synchronized (mEntries) {
+            final Entry existing = mEntries.get(pTileSource);
+            if (existing != null) {
+                return existing;
+            }
+            entry = new Entry();
+            mEntries.put(pTileSource, entry);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                build(pTileSource, entry);
+            }
+        });
+        return entry;
+    }
+
+    private void build(final String pTileSource, final Entry pEntry) {
+        final long start = System.currentTimeMillis();
+        try {
+            final long count = mSource.count(pTileSource);
+            final MapTileBloomFilter filter = new MapTileBloomFilter(
+                    (int) Math.min(Integer.MAX_VALUE / GROWTH_FACTOR, Math.max(MIN_CAPACITY, count) * GROWTH_FACTOR));
+            synchronized (mEntries) {
+                if (mEntries.get(pTileSource) != pEntry) { // invalidated in the meantime
+                    return;
+                }
+                pEntry.mFilter = filter; // from now on the additions go to the new filter
+            }
+            mSource.scan(pTileSource, filter);
+            synchronized (mEntries) {
+                pEntry.mReady = true;
+            }
+            if (Configuration.getInstance().isDebugMode()) {
+                Log.d(IMapView.LOGTAG, "Existence index of " + count + " tiles for " + pTileSource
+                        + " built in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        } catch (Exception e) {
+            Log.w(IMapView.LOGTAG, "Unable to build the existence index for " + pTileSource, e);
+            invalidate(pTileSource); // will be retried later
+        }
+    }
+}
@@ -6,16 +6,21 @@ import android.util.Log;
 import com.example.osmofflinelib.api.IMapView;
 import com.example.osmofflinelib.config.Configuration;
 import com.example.osmofflinelib.tileprovider.IRegisterReceiver;
+import com.example.osmofflinelib.tileprovider.MapTileEncodedCache;
 import com.example.osmofflinelib.tileprovider.MapTileProviderBase;
 import com.example.osmofflinelib.tileprovider.constants.OpenStreetMapTileProviderConstants;
 import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
 import com.example.osmofflinelib.tileprovider.utils.StreamUtils;
+import com.example.osmofflinelib.tileprovider.utils.TileBytes;
 import com.example.osmofflinelib.utils.MapTileIndex;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A tile provider that can serve tiles from an archive using the supplied tile source. The tile
@@ -37,6 +42,21 @@ public class MapTileFileArchiveProvider extends MapTileFileStorageProviderBase {
 
     private final ArrayList<IArchiveFile> mArchiveFiles = new ArrayList<IArchiveFile>();
 
+    /**
+     * Snapshot of {@link #mArchiveFiles} read by the loader threads without locking
+     *
+     * @since 6.2.1
+     */
+    private volatile MapTileArchiveRouter mRouter = MapTileArchiveRouter.EMPTY;
+
+    /**
+     * Held for reading by the loader threads while they use the archives of a router snapshot,
+     * and for writing while the archives are closed
+     *
+     * @since 6.2.1
+     */
+    private final ReadWriteLock mArchivesLock = new ReentrantReadWriteLock();
+
     private final AtomicReference<ITileSource> mTileSource = new AtomicReference<ITileSource>();
 
     /**
@@ -82,6 +102,7 @@ public class MapTileFileArchiveProvider extends MapTileFileStorageProviderBase {
             for (int i = pArchives.length - 1; i >= 0; i--) {
                 mArchiveFiles.add(pArchives[i]);
             }
+            mRouter = new MapTileArchiveRouter(mArchiveFiles);
         }
 
     }
@@ -157,12 +178,19 @@ public class MapTileFileArchiveProvider extends MapTileFileStorageProviderBase {
         super.detach();
     }
 
-    private void clearArcives() {
-        while (!mArchiveFiles.isEmpty()) {
-            IArchiveFile t = mArchiveFiles.get(0);
-            if (t != null)
-                t.close();
-            mArchiveFiles.remove(0);
+    private synchronized void clearArcives() {
+        mRouter = MapTileArchiveRouter.EMPTY;
+        // the reads in progress on the former snapshot must end before the archives are closed
+        mArchivesLock.writeLock().lock();
+        try {
+            while (!mArchiveFiles.isEmpty()) {
+                IArchiveFile t = mArchiveFiles.get(0);
+                if (t != null)
+                    t.close();
+                mArchiveFiles.remove(0);
+            }
+        } finally {
+            mArchivesLock.writeLock().unlock();
         }
     }
 
@@ -170,7 +198,7 @@ public class MapTileFileArchiveProvider extends MapTileFileStorageProviderBase {
     // Methods
     // ===========================================================
 
-    private void findArchiveFiles() {
+    private synchronized void findArchiveFiles() {
         clearArcives();
 
         // path should be optionally configurable
@@ -187,25 +215,55 @@ public class MapTileFileArchiveProvider extends MapTileFileStorageProviderBase {
                 }
             }
         }
+        mRouter = new MapTileArchiveRouter(mArchiveFiles);
     }
 
-    private synchronized InputStream getInputStream(final long pMapTileIndex,
-                                                    final ITileSource tileSource) {
-        for (final IArchiveFile archiveFile : mArchiveFiles) {
-            if (archiveFile != null) {
-                final InputStream in = archiveFile.getInputStream(tileSource, pMapTileIndex);
-                if (in != null) {
-                    if (Configuration.getInstance().isDebugMode()) {
-                        Log.d(IMapView.LOGTAG, "Found tile " + MapTileIndex.toString(pMapTileIndex) + " in " + archiveFile);
-                    }
-                    return in;
+    /**
+     * Not synchronized: only the archives that may contain the tile are queried,
+     * concurrently by the loader threads.
+     * To be called with the read lock of {@link #mArchivesLock}, kept until the stream is closed.
+     */
+    private InputStream getInputStream(final long pMapTileIndex,
+                                       final ITileSource tileSource) {
+        for (final IArchiveFile archiveFile : mRouter.getCandidates(pMapTileIndex)) {
+            final InputStream in;
+            if (archiveFile instanceof IBoundedArchiveFile) {
+                in = archiveFile.getInputStream(tileSource, pMapTileIndex);
+            } else { // not known as thread-safe
+                synchronized (archiveFile) {
+                    in = archiveFile.getInputStream(tileSource, pMapTileIndex);
                 }
             }
+            if (in != null) {
+                if (Configuration.getInstance().isDebugMode()) {
+                    Log.d(IMapView.LOGTAG, "Found tile " + MapTileIndex.toString(pMapTileIndex) + " in " + archiveFile);
+                }
+                return in;
+            }
         }
 
         return null;
     }
 
+    /**
+     * Reads the bytes once, for both the encoded cache and the decoder, without copy
+     * if the archive already has them in an array; the archives are only used under the read lock
+     *
+     * @return the tile bytes, or null if not found
+     * @since 6.2.1
+     */
+    private byte[] read(final long pMapTileIndex, final ITileSource pTileSource) throws IOException {
+        InputStream inputStream = null;
+        mArchivesLock.readLock().lock();
+        try {
+            inputStream = getInputStream(pMapTileIndex, pTileSource);
+            return inputStream == null ? null : TileBytes.read(inputStream, -1);
+        } finally {
+            StreamUtils.closeStream(inputStream);
+            mArchivesLock.readLock().unlock();
+        }
+    }
+
     // ===========================================================
     // Inner and Anonymous Classes
     // ===========================================================
@@ -221,26 +279,24 @@ public class MapTileFileArchiveProvider extends MapTileFileStorageProviderBase {
                 return null;
             }
 
-            InputStream inputStream = null;
             try {
                 if (Configuration.getInstance().isDebugMode()) {
                     Log.d(IMapView.LOGTAG, "Archives - Tile doesn't exist: " + MapTileIndex.toString(pMapTileIndex));
                 }
 
-                inputStream = getInputStream(pMapTileIndex, tileSource);
-                if (inputStream != null) {
+                final byte[] data = read(pMapTileIndex, tileSource);
+                if (data != null) {
                     if (Configuration.getInstance().isDebugMode()) {
                         Log.d(IMapView.LOGTAG, "Use tile from archive: " + MapTileIndex.toString(pMapTileIndex));
                     }
-                    final Drawable drawable = tileSource.getDrawable(inputStream);
-                    returnValue = drawable;
+                    final MapTileEncodedCache encodedCache = MapTileEncodedCache.getInstance();
+                    if (encodedCache.isEnabled()) {
+                        encodedCache.put(tileSource, pMapTileIndex, data, null);
+                    }
+                    returnValue = tileSource.getDrawable(TileBytes.wrap(data));
                 }
             } catch (final Throwable e) {
                 Log.e(IMapView.LOGTAG, "Error loading tile", e);
-            } finally {
-                if (inputStream != null) {
-                    StreamUtils.closeStream(inputStream);
-                }
             }
 
             return returnValue;
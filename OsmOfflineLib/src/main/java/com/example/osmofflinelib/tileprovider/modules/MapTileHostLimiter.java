@@ -0,0 +1,252 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import com.example.osmofflinelib.tileprovider.tilesource.TileSourcePolicy;
+import com.example.osmofflinelib.tileprovider.utils.Counters;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-host limits of the tile downloads
+ * <p>
+ * A single instance is shared by all the downloads, interactive ({@link MapTileDownloader})
+ * and bulk ({@link com.example.osmofflinelib.tileprovider.cachemanager.CacheManager}),
+ * so that they share the same host budget. Each host has:<ul>
+ * <li>a token bucket, refilled at {@link TileSourcePolicy#getMaxRequestsPerSecond()} (no limit if 0)</li>
+ * <li>a concurrency limit adapted to the server (AIMD): slowly increased while the requests succeed
+ * with a normal latency and the limit is actually used, halved on a "429 Too Many Requests"
+ * or a "503 Service Unavailable" answer, and slightly reduced when the latency gets far above
+ * the best latency observed; never above {@link TileSourcePolicy#getMaxConcurrent()}
+ * (or {@link #MAX_CONCURRENCY} if 0)</li>
+ * </ul>
+ * A "Retry-After" header on a 429 or 503 answer pauses the host.
+ * When several tile sources share a host, the strictest policy applies.
+ * <p>
+ * The current concurrency limit of each host is published in {@link Counters},
+ * as {@link #COUNTER_CONCURRENCY_PREFIX} + host.
+ *
+ * @since 6.2.1
+ */
+
+public class MapTileHostLimiter {
+
+    public static final String COUNTER_THROTTLED = "tileHostThrottled";
+    public static final String COUNTER_CONCURRENCY_PREFIX = "tileHostConcurrency:";
+
+    public static final int MAX_CONCURRENCY = 16;
+    private static final int INITIAL_CONCURRENCY = 2;
+
+    /**
+     * Decrease factor on an explicit throttling answer, and on a latency increase
+     */
+    private static final double THROTTLED_DECREASE = .5;
+    private static final double LATENCY_DECREASE = .9;
+
+    /**
+     * A smoothed latency above the best latency times that factor is seen as congestion
+     */
+    private static final double LATENCY_TOLERANCE = 2;
+    private static final double LATENCY_SMOOTHING = .2;
+
+    /**
+     * Part of the gap with the smoothed latency that the best latency recovers on each success,
+     * so that a former best latency (e.g. on another network) is eventually forgotten
+     */
+    private static final double BEST_LATENCY_DRIFT = .01;
+
+    private static final long MIN_DECREASE_INTERVAL_MILLIS = 100;
+    private static final long MAX_RETRY_AFTER_MILLIS = 5 * 60 * 1000L;
+
+    private static final MapTileHostLimiter sInstance = new MapTileHostLimiter();
+
+    public static MapTileHostLimiter getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * The right to send a request to a host, to be released once the response is consumed
+     */
+    public static class Permit {
+
+        private final Host mHost;
+        private final long mStart = System.currentTimeMillis();
+        private int mCode = -1;
+        private String mRetryAfter;
+        private boolean mReleased;
+
+        private Permit(final Host pHost) {
+            mHost = pHost;
+        }
+
+        /**
+         * @param pRetryAfter value of the Retry-After header, possibly null
+         */
+        public void setResponse(final int pCode, final String pRetryAfter) {
+            mCode = pCode;
+            mRetryAfter = pRetryAfter;
+        }
+
+        /**
+         * Can be called several times; only the first call counts
+         */
+        public void release() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            mHost.release(mCode, mRetryAfter, System.currentTimeMillis() - mStart);
+        }
+    }
+
+    private static class Host {
+
+        private final String mName;
+        private int mCeiling;
+        private double mRate;
+        private double mLimit;
+        private int mPublishedLimit;
+        private int mInFlight;
+        private double mTokens;
+        private long mRefillTime;
+        private long mPausedUntil;
+        private double mBestLatency = Double.MAX_VALUE;
+        private double mSmoothedLatency;
+        private long mLastDecrease;
+
+        private Host(final String pName) {
+            mName = pName;
+            mCeiling = MAX_CONCURRENCY;
+            mLimit = INITIAL_CONCURRENCY;
+            mRefillTime = System.currentTimeMillis();
+            publish();
+        }
+
+        private synchronized void applyPolicy(final TileSourcePolicy pPolicy) {
+            if (pPolicy.getMaxConcurrent() > 0 && pPolicy.getMaxConcurrent() < mCeiling) {
+                mCeiling = pPolicy.getMaxConcurrent();
+                mLimit = Math.min(mLimit, mCeiling);
+                publish();
+            }
+            final double rate = pPolicy.getMaxRequestsPerSecond();
+            if (rate > 0 && (mRate == 0 || rate < mRate)) {
+                mRate = rate;
+                mTokens = Math.min(mTokens, getBurst());
+            }
+        }
+
+        private synchronized void acquire() throws InterruptedException {
+            while (true) {
+                final long now = System.currentTimeMillis();
+                long wait = 0; // 0 means: until a release
+                if (now < mPausedUntil) {
+                    wait = mPausedUntil - now;
+                } else if (mInFlight < (int) mLimit) {
+                    if (mRate <= 0) {
+                        mInFlight++;
+                        return;
+                    }
+                    mTokens = Math.min(getBurst(), mTokens + (now - mRefillTime) * mRate / 1000);
+                    mRefillTime = now;
+                    if (mTokens >= 1) {
+                        mTokens--;
+                        mInFlight++;
+                        return;
+                    }
+                    wait = Math.max(1, (long) Math.ceil((1 - mTokens) * 1000 / mRate));
+                }
+                wait(wait);
+            }
+        }
+
+        private synchronized void release(final int pCode, final String pRetryAfter, final long pLatency) {
+            mInFlight--;
+            final long now = System.currentTimeMillis();
+            if (pCode == 429 || pCode == 503) {
+                Counters.increment(COUNTER_THROTTLED);
+                decrease(now, THROTTLED_DECREASE);
+                pause(now, pRetryAfter);
+            } else if (pCode >= 200 && pCode < 400) {
+                mSmoothedLatency = mSmoothedLatency == 0
+                        ? pLatency : mSmoothedLatency + (pLatency - mSmoothedLatency) * LATENCY_SMOOTHING;
+                mBestLatency = Math.min(pLatency, mBestLatency + (mSmoothedLatency - mBestLatency) * BEST_LATENCY_DRIFT);
+                if (mSmoothedLatency > Math.max(mBestLatency, 1) * LATENCY_TOLERANCE) {
+                    decrease(now, LATENCY_DECREASE);
+                } else if (mInFlight + 1 >= (int) mLimit) { // only if the limit was reached
+                    mLimit = Math.min(mCeiling, mLimit + 1 / mLimit); // about +1 per round of requests
+                }
+            }
+            publish();
+            notifyAll();
+        }
+
+        /**
+         * At most once per round trip, as the answers of a same round reflect the same congestion
+         */
+        private void decrease(final long pNow, final double pFactor) {
+            if (pNow - mLastDecrease < Math.max(MIN_DECREASE_INTERVAL_MILLIS, mSmoothedLatency)) {
+                return;
+            }
+            mLastDecrease = pNow;
+            mLimit = Math.max(1, mLimit * pFactor);
+        }
+
+        private void pause(final long pNow, final String pRetryAfter) {
+            if (pRetryAfter == null) {
+                return;
+            }
+            try {
+                final long delay = Math.min(MAX_RETRY_AFTER_MILLIS, Long.parseLong(pRetryAfter.trim()) * 1000);
+                mPausedUntil = Math.max(mPausedUntil, pNow + delay);
+            } catch (NumberFormatException e) {
+                // an http date: ignored, the concurrency decrease will do
+            }
+        }
+
+        private double getBurst() {
+            return Math.max(1, mRate);
+        }
+
+        private void publish() {
+            final int limit = (int) mLimit;
+            if (limit != mPublishedLimit) {
+                mPublishedLimit = limit;
+                Counters.set(COUNTER_CONCURRENCY_PREFIX + mName, limit);
+            }
+        }
+    }
+
+    private final Map<String, Host> mHosts = new HashMap<>();
+
+    /**
+     * Waits until a request can be sent to that host
+     */
+    public Permit acquire(final String pHost, final TileSourcePolicy pPolicy) throws InterruptedException {
+        Host host;
+        synchronized (mHosts) {
+            host = mHosts.get(pHost);
+            if (host == null) {
+                host = new Host(pHost);
+                mHosts.put(pHost, host);
+            }
+        }
+        host.applyPolicy(pPolicy);
+        host.acquire();
+        return new Permit(host);
+    }
+
+    /**
+     * @return the current concurrency limit of that host, or 0 if unknown
+     */
+    public int getConcurrencyLimit(final String pHost) {
+        final Host host;
+        synchronized (mHosts) {
+            host = mHosts.get(pHost);
+        }
+        if (host == null) {
+            return 0;
+        }
+        synchronized (host) {
+            return (int) host.mLimit;
+        }
+    }
+}
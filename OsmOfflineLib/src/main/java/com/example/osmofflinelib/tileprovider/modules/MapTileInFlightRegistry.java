@@ -0,0 +1,165 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import android.graphics.drawable.Drawable;
+import com.example.osmofflinelib.tileprovider.utils.Counters;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Registry of the tile loads in progress, so that the same load is not run twice at the same time.
+ * <p>
+ * A load is identified by a scope (e.g. the module provider, or the cache a download is saved to),
+ * a tile source and a tile index. When a load is requested while the same load is in progress - typically by
+ * {@link com.example.osmofflinelib.tileprovider.MapTilePreCache} and by a regular request, or by
+ * {@link com.example.osmofflinelib.tileprovider.cachemanager.CacheManager} and by
+ * {@link MapTileDownloader} on the same cache - the caller waits for the result of the first load
+ * instead of reading, decoding or downloading the tile again.
+ * The scope must therefore include everything that the load does besides returning its result.
+ * <p>
+ * A result given to several callers is marked as shared: it must not be recycled by a caller
+ * that does not keep it, cf. {@link #isShared(Drawable)}.
+ *
+ * @since 6.2.1
+ */
+
+public class MapTileInFlightRegistry {
+
+    /**
+     * Counter tag for the loads that waited for an identical load in progress
+     */
+    public static final String COUNTER_COALESCED = "tileLoadCoalesced";
+
+    public interface Loader {
+        Drawable load() throws CantContinueException;
+    }
+
+    private static class Key {
+        private final Object mScope;
+        private final String mTileSource;
+        private final long mMapTileIndex;
+
+        private Key(final Object pScope, final String pTileSource, final long pMapTileIndex) {
+            mScope = pScope;
+            mTileSource = pTileSource == null ? "" : pTileSource;
+            mMapTileIndex = pMapTileIndex;
+        }
+
+        @Override
+        public boolean equals(final Object pOther) {
+            if (!(pOther instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) pOther;
+            return mScope == other.mScope
+                    && mMapTileIndex == other.mMapTileIndex
+                    && mTileSource.equals(other.mTileSource);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (mMapTileIndex ^ (mMapTileIndex >>> 32)) * 31
+                    + System.identityHashCode(mScope) * 17 + mTileSource.hashCode();
+        }
+    }
+
+    private static class InFlight {
+        private Drawable mResult;
+        private CantContinueException mException;
+        private boolean mDone;
+        private int mWaiters;
+
+        private synchronized void complete(final Drawable pResult, final CantContinueException pException) {
+            mResult = pResult;
+            mException = pException;
+            mDone = true;
+            notifyAll();
+        }
+
+        private synchronized Drawable await() throws CantContinueException {
+            while (!mDone) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (mException != null) {
+                throw mException;
+            }
+            return mResult;
+        }
+    }
+
+    private final Map<Key, InFlight> mInFlight = new HashMap<>();
+    private final Map<Drawable, Boolean> mShared = new WeakHashMap<>();
+
+    //singleton: begin
+    private MapTileInFlightRegistry() {
+    }
+
+    private static final MapTileInFlightRegistry sInstance = new MapTileInFlightRegistry();
+
+    public static MapTileInFlightRegistry getInstance() {
+        return sInstance;
+    }
+    //singleton: end
+
+    /**
+     * Runs the load, or waits for the result of the same load if already in progress
+     */
+    public Drawable load(final Object pScope, final String pTileSource, final long pMapTileIndex,
+                         final Loader pLoader) throws CantContinueException {
+        final Key key = new Key(pScope, pTileSource, pMapTileIndex);
+        final InFlight inFlight;
+        final boolean owner;
+        synchronized (mInFlight) {
+            final InFlight existing = mInFlight.get(key);
+            owner = existing == null;
+            if (owner) {
+                inFlight = new InFlight();
+                mInFlight.put(key, inFlight);
+            } else {
+                existing.mWaiters++;
+                inFlight = existing;
+            }
+        }
+        if (!owner) {
+            Counters.increment(COUNTER_COALESCED);
+            return inFlight.await();
+        }
+        Drawable result = null;
+        CantContinueException exception = null;
+        try {
+            result = pLoader.load();
+            return result;
+        } catch (final CantContinueException e) {
+            exception = e;
+            throw e;
+        } finally {
+            synchronized (mInFlight) {
+                mInFlight.remove(key);
+                if (inFlight.mWaiters > 0 && result != null) {
+                    synchronized (mShared) {
+                        mShared.put(result, Boolean.TRUE);
+                    }
+                }
+            }
+            inFlight.complete(result, exception);
+        }
+    }
+
+    /**
+     * @return true if that load result was given to several callers
+     */
+    public boolean isShared(final Drawable pDrawable) {
+        if (pDrawable == null) {
+            return false;
+        }
+        synchronized (mShared) {
+            return mShared.containsKey(pDrawable);
+        }
+    }
+}
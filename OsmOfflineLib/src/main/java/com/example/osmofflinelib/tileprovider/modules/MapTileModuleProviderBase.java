@@ -5,15 +5,20 @@ import android.util.Log;
 import com.example.osmofflinelib.api.IMapView;
 import com.example.osmofflinelib.config.Configuration;
 import com.example.osmofflinelib.tileprovider.ExpirableBitmapDrawable;
+import com.example.osmofflinelib.tileprovider.IMapTileProviderCallback;
+import com.example.osmofflinelib.tileprovider.MapTileCache;
+import com.example.osmofflinelib.tileprovider.MapTileProviderBase;
 import com.example.osmofflinelib.tileprovider.MapTileRequestState;
 import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
+import com.example.osmofflinelib.tileprovider.utils.Counters;
 import com.example.osmofflinelib.utils.MapTileIndex;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.RejectedExecutionException;
 
 /**
@@ -24,6 +29,23 @@ import java.util.concurrent.RejectedExecutionException;
  */
 public abstract class MapTileModuleProviderBase {
 
+    /**
+     * Counter tags for the requests dropped because their tile was no longer needed:
+     * before being processed, and while being processed
+     *
+     * @since 6.2.1
+     */
+    public static final String COUNTER_CANCELLED = "tileRequestCancelled";
+    public static final String COUNTER_ABORTED = "tileRequestAborted";
+
+    /**
+     * Maximum number of tiles a loader processes before yielding its worker thread,
+     * so that a provider with a long queue doesn't monopolize a lane of the shared pool
+     *
+     * @since 6.2.1
+     */
+    private static final int LOADER_BATCH_SIZE = 4;
+
     /**
      * Gets the human-friendly name assigned to this tile provider.
      *
@@ -84,60 +106,84 @@ public abstract class MapTileModuleProviderBase {
      */
     public abstract void setTileSource(ITileSource tileSource);
 
-    private final ExecutorService mExecutor;
+    /**
+     * Maximum number of loaders of this provider running at the same time
+     */
+    private final int mThreadPoolSize;
+    /**
+     * Number of loaders of this provider currently submitted to the worker pool
+     *
+     * @since 6.2.1
+     */
+    private int mRunning;
+    /**
+     * @since 6.2.1
+     */
+    private volatile boolean mDetached;
 
     protected final Object mQueueLockObject = new Object();
-    protected final HashMap<Long, MapTileRequestState> mWorking;
-    protected final LinkedHashMap<Long, MapTileRequestState> mPending;
+    /**
+     * @since 6.2.1
+     */
+    protected final MapTileRequestQueue mQueue;
 
     public MapTileModuleProviderBase(int pThreadPoolSize, final int pPendingQueueSize) {
         if (pPendingQueueSize < pThreadPoolSize) {
             Log.w(IMapView.LOGTAG, "The pending queue size is smaller than the thread pool size. Automatically reducing the thread pool size.");
             pThreadPoolSize = pPendingQueueSize;
         }
-        mExecutor = Executors.newFixedThreadPool(pThreadPoolSize,
-                new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, getThreadGroupName()));
+        mThreadPoolSize = pThreadPoolSize;
 
-        mWorking = new HashMap<>();
-        mPending = new LinkedHashMap<Long, MapTileRequestState>(pPendingQueueSize + 2, 0.1f,
-                true) {
+        mQueue = new MapTileRequestQueue(pPendingQueueSize);
+    }
 
-            private static final long serialVersionUID = 6455337315681858866L;
+    /**
+     * @return a snapshot of the requests waiting for a worker, the next one to be processed first
+     * @deprecated The former {@code mPending} field was replaced by {@link #mQueue}
+     */
+    @Deprecated
+    protected Map<Long, MapTileRequestState> getPending() {
+        final Map<Long, MapTileRequestState> result = new LinkedHashMap<>();
+        synchronized (mQueueLockObject) {
+            mQueue.getPending(result);
+        }
+        return Collections.unmodifiableMap(result);
+    }
 
-            @Override
-            protected boolean removeEldestEntry(
-                    final Entry<Long, MapTileRequestState> pEldest) {
-                if (size() <= pPendingQueueSize) {
-                    return false;
-                }
-                // get the oldest tile that isn't in the mWorking queue
-                final Iterator<Long> iterator = mPending.keySet().iterator();
-                while (iterator.hasNext()) {
-                    final long mapTileIndex = iterator.next();
-                    if (!mWorking.containsKey(mapTileIndex)) {
-                        final MapTileRequestState state = mPending.get(mapTileIndex);
-                        if (state != null) { // check for concurrency reasons
-                            removeTileFromQueues(mapTileIndex);
-                            state.getCallback().mapTileRequestFailedExceedsMaxQueueSize(state);
-                            return false;
-                        }
-                    }
-                }
-                return false;
-            }
-        };
+    /**
+     * @return a snapshot of the requests being processed
+     * @deprecated The former {@code mWorking} field was replaced by {@link #mQueue}
+     */
+    @Deprecated
+    protected Map<Long, MapTileRequestState> getWorking() {
+        final Map<Long, MapTileRequestState> result = new HashMap<>();
+        synchronized (mQueueLockObject) {
+            mQueue.getWorking(result);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @return the lane of the shared worker pool this provider runs on:
+     * network if it uses a data connection, disk I/O otherwise
+     * @since 6.2.1
+     */
+    protected int getLane() {
+        return getUsesDataConnection() ? MapTileWorkerPool.LANE_NETWORK : MapTileWorkerPool.LANE_IO;
     }
 
     public void loadMapTileAsync(final MapTileRequestState pState) {
         // Make sure we're not detached
-        if (mExecutor.isShutdown())
+        if (mDetached)
             return;
 
+        final MapTileRequestState dropped;
+        final boolean startLoader;
         synchronized (mQueueLockObject) {
             if (Configuration.getInstance().isDebugTileProviders()) {
                 Log.d(IMapView.LOGTAG, "MapTileModuleProviderBase.loadMaptileAsync() on provider: "
                         + getName() + " for tile: " + MapTileIndex.toString(pState.getMapTile()));
-                if (mPending.containsKey(pState.getMapTile()))
+                if (mQueue.containsKey(pState.getMapTile()))
                     Log.d(IMapView.LOGTAG, "MapTileModuleProviderBase.loadMaptileAsync() tile already exists in request queue for modular provider. Moving to front of queue.");
                 else
                     Log.d(IMapView.LOGTAG, "MapTileModuleProviderBase.loadMaptileAsync() adding tile to request queue for modular provider.");
@@ -145,19 +191,80 @@ public abstract class MapTileModuleProviderBase {
 
             // this will put the tile in the queue, or move it to the front of
             // the queue if it's already present
-            mPending.put(pState.getMapTile(), pState);
+            dropped = mQueue.put(pState);
+
+            // start another loader, within this provider's limit
+            startLoader = mRunning < mThreadPoolSize;
+            if (startLoader) {
+                mRunning++;
+            }
+        }
+        if (dropped != null) {
+            dropped.getCallback().mapTileRequestFailedExceedsMaxQueueSize(dropped);
+        }
+        if (!startLoader) {
+            return;
         }
         try {
-            mExecutor.execute(getTileLoader());
+            MapTileWorkerPool.getInstance().execute(getLane(), getTileLoader());
         } catch (final RejectedExecutionException e) {
             Log.w(IMapView.LOGTAG, "RejectedExecutionException", e);
+            synchronized (mQueueLockObject) {
+                mRunning--;
+            }
+        }
+    }
+
+    /**
+     * Recomputes the priorities of the pending requests
+     *
+     * @since 6.2.1
+     */
+    public void updatePriorities(final MapTileCache pCache) {
+        synchronized (mQueueLockObject) {
+            mQueue.updatePriorities(pCache);
+        }
+    }
+
+    /**
+     * Cancels the requests of tiles no longer needed, typically after a viewport change.
+     * Pending requests are dropped; requests being processed are marked as cancelled, so that
+     * the loaders abort them when they can.
+     *
+     * @since 6.2.1
+     */
+    public void cancelStaleRequests(final MapTileCache pCache) {
+        final List<MapTileRequestState> cancelled = new ArrayList<>();
+        final int aborted;
+        synchronized (mQueueLockObject) {
+            aborted = mQueue.cancelStale(pCache, cancelled);
+        }
+        for (int i = 0; i < aborted; i++) {
+            Counters.increment(COUNTER_ABORTED);
+        }
+        for (final MapTileRequestState state : cancelled) {
+            notifyCancelled(state);
+        }
+    }
+
+    /**
+     * Callbacks other than {@link MapTileProviderBase} see a cancellation as a failure
+     *
+     * @since 6.2.1
+     */
+    private void notifyCancelled(final MapTileRequestState pState) {
+        Counters.increment(COUNTER_CANCELLED);
+        final IMapTileProviderCallback callback = pState.getCallback();
+        if (callback instanceof MapTileProviderBase) {
+            ((MapTileProviderBase) callback).mapTileRequestCancelled(pState);
+        } else {
+            callback.mapTileRequestFailed(pState);
         }
     }
 
     private void clearQueue() {
         synchronized (mQueueLockObject) {
-            mPending.clear();
-            mWorking.clear();
+            mQueue.clear();
         }
     }
 
@@ -165,9 +272,8 @@ public abstract class MapTileModuleProviderBase {
      * Detach, we're shutting down - Stops all workers.
      */
     public void detach() {
+        mDetached = true;
         this.clearQueue();
-        this.mExecutor.shutdown();
-
     }
 
     protected void removeTileFromQueues(final long pMapTileIndex) {
@@ -176,8 +282,7 @@ public abstract class MapTileModuleProviderBase {
                 Log.d(IMapView.LOGTAG, "MapTileModuleProviderBase.removeTileFromQueues() on provider: "
                         + getName() + " for tile: " + MapTileIndex.toString(pMapTileIndex));
             }
-            mPending.remove(pMapTileIndex);
-            mWorking.remove(pMapTileIndex);
+            mQueue.remove(pMapTileIndex);
         }
     }
 
@@ -188,6 +293,11 @@ public abstract class MapTileModuleProviderBase {
      */
     public abstract class TileLoader implements Runnable {
 
+        /**
+         * @since 6.2.1
+         */
+        private volatile MapTileRequestState mCurrentState;
+
         /**
          * Actual load of the requested tile.
          * Do implement this method, but call {@link #loadTileIfReachable(long)} instead
@@ -208,7 +318,14 @@ public abstract class MapTileModuleProviderBase {
             if (!isTileReachable(pMapTileIndex)) {
                 return null;
             }
-            return loadTile(pMapTileIndex);
+            // the same tile may be loaded at the same time by the pre-cache and by a request
+            return MapTileInFlightRegistry.getInstance().load(MapTileModuleProviderBase.this, null, pMapTileIndex,
+                    new MapTileInFlightRegistry.Loader() {
+                        @Override
+                        public Drawable load() throws CantContinueException {
+                            return loadTile(pMapTileIndex);
+                        }
+                    });
         }
 
         @Deprecated
@@ -228,34 +345,13 @@ public abstract class MapTileModuleProviderBase {
         protected MapTileRequestState nextTile() {
 
             synchronized (mQueueLockObject) {
-                Long result = null;
-
-                // get the most recently accessed tile
-                // - the last item in the iterator that's not already being
-                // processed
-                Iterator<Long> iterator = mPending.keySet().iterator();
-
-                // TODO this iterates the whole list, make this faster...
-                while (iterator.hasNext()) {
-                    final Long mapTileIndex = iterator.next();
-                    if (!mWorking.containsKey(mapTileIndex)) {
-                        if (Configuration.getInstance().isDebugTileProviders()) {
-                            Log.d(IMapView.LOGTAG, "TileLoader.nextTile() on provider: " + getName()
-                                    + " found tile in working queue: " + MapTileIndex.toString(mapTileIndex));
-                        }
-                        result = mapTileIndex;
-                    }
+                // get the most recently requested tile that's not already being processed
+                final MapTileRequestState result = mQueue.next();
+                if (result != null && Configuration.getInstance().isDebugTileProviders()) {
+                    Log.d(IMapView.LOGTAG, "TileLoader.nextTile() on provider: " + getName()
+                            + " adding tile to working queue: " + MapTileIndex.toString(result.getMapTile()));
                 }
-
-                if (result != null) {
-                    if (Configuration.getInstance().isDebugTileProviders()) {
-                        Log.d(IMapView.LOGTAG, "TileLoader.nextTile() on provider: " + getName()
-                                + " adding tile to working queue: " + result);
-                    }
-                    mWorking.put(result, mPending.get(result));
-                }
-
-                return (result != null ? mPending.get(result) : null);
+                return result;
             }
         }
 
@@ -297,6 +393,30 @@ public abstract class MapTileModuleProviderBase {
         }
 
 
+        /**
+         * The request was cancelled while being processed: the tile is no longer needed
+         *
+         * @since 6.2.1
+         */
+        protected void tileLoadedCancelled(final MapTileRequestState pState) {
+            if (Configuration.getInstance().isDebugTileProviders()) {
+                Log.d(IMapView.LOGTAG, "TileLoader.tileLoadedCancelled() on provider: " + getName()
+                        + " with tile: " + MapTileIndex.toString(pState.getMapTile()));
+            }
+            removeTileFromQueues(pState.getMapTile());
+            notifyCancelled(pState);
+        }
+
+        /**
+         * @return true if the tile currently processed by this loader is no longer needed,
+         * for implementations that can abort a load before a costly step
+         * @since 6.2.1
+         */
+        protected boolean isCancelled() {
+            final MapTileRequestState state = mCurrentState;
+            return state != null && state.isCancelled();
+        }
+
         protected void tileLoadedFailed(final MapTileRequestState pState) {
             if (Configuration.getInstance().isDebugTileProviders()) {
                 Log.d(IMapView.LOGTAG, "TileLoader.tileLoadedFailed() on provider: " + getName()
@@ -316,12 +436,31 @@ public abstract class MapTileModuleProviderBase {
 
             MapTileRequestState state;
             Drawable result = null;
-            while ((state = nextTile()) != null) {
+            int processed = 0;
+            boolean yield = false;
+            while (true) {
+                if (processed++ == LOADER_BATCH_SIZE) {
+                    yield = true;
+                    break;
+                }
+                synchronized (mQueueLockObject) {
+                    state = nextTile();
+                    if (state == null) {
+                        // atomically with the empty queue check, cf. loadMapTileAsync
+                        mRunning--;
+                        break;
+                    }
+                }
+                if (state.isCancelled()) {
+                    tileLoadedCancelled(state);
+                    continue;
+                }
+                mCurrentState = state;
                 if (Configuration.getInstance().isDebugTileProviders()) {
                     Log.d(IMapView.LOGTAG, "TileLoader.run() processing next tile: "
                             + MapTileIndex.toString(state.getMapTile())
-                            + ", pending:" + mPending.size()
-                            + ", working:" + mWorking.size()
+                            + ", pending:" + mQueue.getPendingSize()
+                            + ", working:" + mQueue.getWorkingSize()
                     );
                 }
                 try {
@@ -334,7 +473,10 @@ public abstract class MapTileModuleProviderBase {
                     Log.i(IMapView.LOGTAG, "Error downloading tile: " + MapTileIndex.toString(state.getMapTile()), e);
                 }
 
-                if (result == null) {
+                mCurrentState = null;
+                if (result == null && state.isCancelled()) {
+                    tileLoadedCancelled(state);
+                } else if (result == null) {
                     tileLoadedFailed(state);
                 } else if (ExpirableBitmapDrawable.getState(result) == ExpirableBitmapDrawable.EXPIRED) {
                     tileLoadedExpired(state, result);
@@ -346,6 +488,31 @@ public abstract class MapTileModuleProviderBase {
             }
 
             onTileLoaderShutdown();
+
+            if (yield) {
+                // back in the lane queue, behind the loaders of the other providers
+                resubmit();
+            }
+        }
+
+        /**
+         * @since 6.2.1
+         */
+        private void resubmit() {
+            if (mDetached) {
+                synchronized (mQueueLockObject) {
+                    mRunning--;
+                }
+                return;
+            }
+            try {
+                MapTileWorkerPool.getInstance().execute(getLane(), this);
+            } catch (final RejectedExecutionException e) {
+                Log.w(IMapView.LOGTAG, "RejectedExecutionException", e);
+                synchronized (mQueueLockObject) {
+                    mRunning--;
+                }
+            }
         }
     }
 }
@@ -0,0 +1,223 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import com.example.osmofflinelib.tileprovider.MapTileCache;
+import com.example.osmofflinelib.tileprovider.MapTileRequestState;
+import com.example.osmofflinelib.utils.MapTileLinkedMap;
+import com.example.osmofflinelib.utils.MapTileList;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Request queue of a {@link MapTileModuleProviderBase}
+ * <p>
+ * Requests waiting for a worker ("pending") are kept apart from the requests being processed
+ * ("working"), in one map per priority (cf. {@link MapTileRequestState#getPriority()}), each
+ * ordered by request time. Requests are dispatched by priority, then the most recent first.
+ * Taking the next request, moving a re-requested tile to the front and dropping the least
+ * urgent request are all O(1).
+ * <p>
+ * Not thread-safe: callers are expected to synchronize.
+ *
+ * @since 6.2.1
+ */
+
+public class MapTileRequestQueue {
+
+    private final MapTileLinkedMap<MapTileRequestState>[] mPending;
+    private final HashMap<Long, MapTileRequestState> mWorking = new HashMap<>();
+    private final int mMaxSize;
+    private long mClock;
+    private int mPendingSize;
+    private final MapTileList mKeys = new MapTileList();
+
+    /**
+     * @param pMaxSize maximum number of requests, pending and working
+     */
+    @SuppressWarnings("unchecked")
+    public MapTileRequestQueue(final int pMaxSize) {
+        mMaxSize = pMaxSize;
+        mPending = (MapTileLinkedMap<MapTileRequestState>[]) new MapTileLinkedMap<?>[MapTileRequestState.PRIORITY_COUNT];
+        for (int i = 0; i < mPending.length; i++) {
+            mPending[i] = new MapTileLinkedMap<>(i == 0 ? pMaxSize + 1 : 16);
+        }
+    }
+
+    /**
+     * Adds a request, or moves it to the front of the queue if already pending.
+     * Does nothing if the tile is already being processed.
+     *
+     * @return the eldest of the least urgent pending requests, removed because the queue was full,
+     * or null
+     */
+    public MapTileRequestState put(final MapTileRequestState pState) {
+        final long mapTileIndex = pState.getMapTile();
+        if (mWorking.containsKey(mapTileIndex)) {
+            return null;
+        }
+        removePending(mapTileIndex);
+        mPending[getBucket(pState)].put(mapTileIndex, pState, ++mClock);
+        mPendingSize++;
+        if (size() <= mMaxSize) {
+            return null;
+        }
+        for (int i = mPending.length - 1; i >= 0; i--) {
+            if (!mPending[i].isEmpty()) {
+                mPendingSize--;
+                return mPending[i].remove(mPending[i].getEldestKey());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the most recent pending request to the working requests
+     *
+     * @return that request, or null if there's no pending request
+     */
+    public MapTileRequestState next() {
+        for (final MapTileLinkedMap<MapTileRequestState> pending : mPending) {
+            if (!pending.isEmpty()) {
+                final long mapTileIndex = pending.getLatestKey();
+                final MapTileRequestState state = pending.remove(mapTileIndex);
+                mPendingSize--;
+                mWorking.put(mapTileIndex, state);
+                return state;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Recomputes the priority of each pending request, typically after a viewport change.
+     * Requests keep their relative order within each priority.
+     */
+    public void updatePriorities(final MapTileCache pCache) {
+        for (int priority = 0; priority < mPending.length; priority++) {
+            final MapTileLinkedMap<MapTileRequestState> pending = mPending[priority];
+            mKeys.clear();
+            pending.getKeys(mKeys);
+            for (int i = 0; i < mKeys.getSize(); i++) {
+                final long mapTileIndex = mKeys.get(i);
+                final MapTileRequestState state = pending.peek(mapTileIndex);
+                state.setPriority(pCache.getPriority(mapTileIndex));
+                final int bucket = getBucket(state);
+                if (bucket != priority) {
+                    pending.remove(mapTileIndex);
+                    mPending[bucket].put(mapTileIndex, state, ++mClock);
+                }
+            }
+        }
+        mKeys.clear();
+    }
+
+    /**
+     * Removes the pending requests of tiles no longer needed, and marks as cancelled the
+     * working requests of tiles no longer needed - or as not cancelled if needed again
+     *
+     * @param pCancelled populated with the removed pending requests
+     * @return the number of working requests marked as cancelled
+     */
+    public int cancelStale(final MapTileCache pCache, final List<MapTileRequestState> pCancelled) {
+        for (final MapTileLinkedMap<MapTileRequestState> pending : mPending) {
+            mKeys.clear();
+            pending.getKeys(mKeys);
+            for (int i = 0; i < mKeys.getSize(); i++) {
+                final long mapTileIndex = mKeys.get(i);
+                if (pCache.isStale(mapTileIndex)) {
+                    final MapTileRequestState state = pending.remove(mapTileIndex);
+                    mPendingSize--;
+                    state.setCancelled(true);
+                    pCancelled.add(state);
+                }
+            }
+        }
+        mKeys.clear();
+        int aborted = 0;
+        for (final MapTileRequestState state : mWorking.values()) {
+            final boolean stale = pCache.isStale(state.getMapTile());
+            if (stale && !state.isCancelled()) {
+                aborted++;
+            }
+            // not cancelled anymore if the viewport came back
+            state.setCancelled(stale);
+        }
+        return aborted;
+    }
+
+    public void remove(final long pMapTileIndex) {
+        removePending(pMapTileIndex);
+        mWorking.remove(pMapTileIndex);
+    }
+
+    public boolean containsKey(final long pMapTileIndex) {
+        if (mWorking.containsKey(pMapTileIndex)) {
+            return true;
+        }
+        for (final MapTileLinkedMap<MapTileRequestState> pending : mPending) {
+            if (pending.containsKey(pMapTileIndex)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clear() {
+        for (final MapTileLinkedMap<MapTileRequestState> pending : mPending) {
+            pending.clear();
+        }
+        mPendingSize = 0;
+        mWorking.clear();
+    }
+
+    /**
+     * @return the number of requests, pending and working
+     */
+    public int size() {
+        return mPendingSize + mWorking.size();
+    }
+
+    public int getPendingSize() {
+        return mPendingSize;
+    }
+
+    public int getWorkingSize() {
+        return mWorking.size();
+    }
+
+    /**
+     * @param pPending populated with the pending requests, the most urgent first
+     */
+    public void getPending(final Map<Long, MapTileRequestState> pPending) {
+        for (final MapTileLinkedMap<MapTileRequestState> pending : mPending) {
+            mKeys.clear();
+            pending.getKeys(mKeys);
+            for (int i = mKeys.getSize() - 1; i >= 0; i--) {
+                final long mapTileIndex = mKeys.get(i);
+                pPending.put(mapTileIndex, pending.peek(mapTileIndex));
+            }
+        }
+        mKeys.clear();
+    }
+
+    /**
+     * @param pWorking populated with the working requests
+     */
+    public void getWorking(final Map<Long, MapTileRequestState> pWorking) {
+        pWorking.putAll(mWorking);
+    }
+
+    private void removePending(final long pMapTileIndex) {
+        for (final MapTileLinkedMap<MapTileRequestState> pending : mPending) {
+            if (pending.remove(pMapTileIndex) != null) {
+                mPendingSize--;
+                return;
+            }
+        }
+    }
+
+    private int getBucket(final MapTileRequestState pState) {
+        return Math.max(0, Math.min(mPending.length - 1, pState.getPriority()));
+    }
+}
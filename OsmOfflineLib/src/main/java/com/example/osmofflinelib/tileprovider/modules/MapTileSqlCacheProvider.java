@@ -55,8 +55,8 @@ public class MapTileSqlCacheProvider extends MapTileFileStorageProviderBase {
                 Configuration.getInstance().getTileFileSystemThreads(),
                 Configuration.getInstance().getTileFileSystemMaxQueueSize());
 
+        mWriter = new SqlTileWriter(); // first, as the tile source existence index needs the database
         setTileSource(pTileSource);
-        mWriter = new SqlTileWriter();
     }
 
     // ===========================================================
@@ -115,6 +115,9 @@ public class MapTileSqlCacheProvider extends MapTileFileStorageProviderBase {
     @Override
     public void setTileSource(final ITileSource pTileSource) {
         mTileSource.set(pTileSource);
+        if (pTileSource != null) {
+            SqlTileWriter.getExistenceIndex().prepare(pTileSource.name());
+        }
     }
 
     @Override
@@ -0,0 +1,126 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import android.os.Environment;
+import com.example.osmofflinelib.config.Configuration;
+
+import java.io.File;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide worker threads of the {@link MapTileModuleProviderBase}s, instead of one thread
+ * pool per provider and per map.
+ * <p>
+ * Work is split into lanes, so that a slow network does not starve the disk, and vice versa:
+ * <ul>
+ * <li>{@link #LANE_IO}: reads from the disk (SQLite cache, archives, files, assets),
+ * sized from the number of cores - and smaller on removable storage, that performs poorly
+ * with parallel random reads</li>
+ * <li>{@link #LANE_DECODE}: CPU-only work (decoding from memory, approximating),
+ * sized from the number of cores</li>
+ * <li>{@link #LANE_NETWORK}: downloads, sized from the configured download threads</li>
+ * </ul>
+ * Idle threads stop after a while. Each provider still limits its own concurrency
+ * (cf. its thread pool size), within the lane, and its loaders yield their thread after a few
+ * tiles, so that the providers sharing a lane take turns.
+ * <p>
+ * The lanes are sized from {@link Configuration} when the pool is first used,
+ * and resized when the thread counts change there.
+ *
+ * @since 6.2.1
+ */
+
+public class MapTileWorkerPool {
+
+    public static final int LANE_IO = 0;
+    public static final int LANE_DECODE = 1;
+    public static final int LANE_NETWORK = 2;
+
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private final ThreadPoolExecutor[] mLanes = new ThreadPoolExecutor[3];
+
+    //singleton: begin
+    private MapTileWorkerPool() {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        mLanes[LANE_IO] = createLane(computeIOThreads(cores), "tile-io");
+        mLanes[LANE_DECODE] = createLane(Math.max(1, cores - 1), "tile-decode");
+        mLanes[LANE_NETWORK] = createLane(
+                Math.max(1, Configuration.getInstance().getTileDownloadThreads()), "tile-network");
+    }
+
+    private static MapTileWorkerPool sInstance;
+
+    /**
+     * Created on first use, so that the thread counts set in {@link Configuration} before
+     * the first tile request are taken into account
+     */
+    public static synchronized MapTileWorkerPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new MapTileWorkerPool();
+        }
+        return sInstance;
+    }
+    //singleton: end
+
+    /**
+     * Resizes the lanes after a change of the thread counts in {@link Configuration};
+     * nothing to do if the pool hasn't been used yet
+     */
+    public static synchronized void updateThreadCounts() {
+        if (sInstance == null) {
+            return;
+        }
+        final int cores = Runtime.getRuntime().availableProcessors();
+        resize(sInstance.mLanes[LANE_IO], computeIOThreads(cores));
+        resize(sInstance.mLanes[LANE_NETWORK], Math.max(1, Configuration.getInstance().getTileDownloadThreads()));
+    }
+
+    private static void resize(final ThreadPoolExecutor pLane, final int pThreads) {
+        // the core size can never exceed the maximum size
+        if (pThreads > pLane.getMaximumPoolSize()) {
+            pLane.setMaximumPoolSize(pThreads);
+            pLane.setCorePoolSize(pThreads);
+        } else {
+            pLane.setCorePoolSize(pThreads);
+            pLane.setMaximumPoolSize(pThreads);
+        }
+    }
+
+    public void execute(final int pLane, final Runnable pRunnable) {
+        mLanes[pLane].execute(pRunnable);
+    }
+
+    /**
+     * @return the number of threads of a lane
+     */
+    public int getThreadCount(final int pLane) {
+        return mLanes[pLane].getMaximumPoolSize();
+    }
+
+    private static ThreadPoolExecutor createLane(final int pThreads, final String pName) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(pThreads, pThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, pName));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static int computeIOThreads(final int pCores) {
+        final int threads = Math.max(2, Math.min(pCores,
+                Configuration.getInstance().getTileFileSystemThreads()));
+        return isRemovableStorage(Configuration.getInstance().getOsmdroidTileCache()) ? Math.min(2, threads) : threads;
+    }
+
+    private static boolean isRemovableStorage(final File pFile) {
+        if (pFile == null) {
+            return false;
+        }
+        try {
+            return Environment.isExternalStorageRemovable(pFile);
+        } catch (final IllegalArgumentException e) { // not a storage device path
+            return false;
+        }
+    }
+}
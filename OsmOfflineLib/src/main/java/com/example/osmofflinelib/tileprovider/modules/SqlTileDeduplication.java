@@ -0,0 +1,185 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed storage of the tile images in a sqlite tile database
+ * <p>
+ * Large areas are full of byte-identical tiles (sea, empty land, blank overlays).
+ * With this layout each distinct image is stored once in the {@value #TABLE_BLOBS} table,
+ * keyed by a hash of its content, and the {@value DatabaseFileArchive#TABLE} rows point to it
+ * through their {@value #COLUMN_HASH} column, with a null {@value DatabaseFileArchive#COLUMN_TILE}.
+ * Rows with an inline tile image are still supported, so both layouts can be mixed.
+ * Triggers maintain the reference count of each image, and delete it with its last tile.
+ * <p>
+ * Reading a tile stays a single query, with {@link #getTileColumn()} and {@link #getTileJoin()}.
+ * <p>
+ * The hash is the first 64 bits of the SHA-1 of the image, checked against the image length
+ * on a match; on the unlikely collision the image is stored inline.
+ *
+ * @since 6.2.1
+ */
+
+public class SqlTileDeduplication {
+
+    public static final String TABLE_BLOBS = "blobs";
+    public static final String COLUMN_HASH = "hash";
+    public static final String COLUMN_REFS = "refs";
+    public static final String COLUMN_REFS_INDEX = "blobs_refs_index";
+
+    private static final String TILES = DatabaseFileArchive.TABLE;
+    private static final String KEY = DatabaseFileArchive.COLUMN_KEY;
+    private static final String PROVIDER = DatabaseFileArchive.COLUMN_PROVIDER;
+    private static final String TILE = DatabaseFileArchive.COLUMN_TILE;
+
+    private static final ThreadLocal<MessageDigest> sDigest = new ThreadLocal<>();
+
+    private final SQLiteStatement mInsertBlob;
+    private final SQLiteStatement mBlobLength;
+
+    /**
+     * @param pDb a database whose schema was created with {@link #createSchema(SQLiteDatabase)}
+     */
+    public SqlTileDeduplication(final SQLiteDatabase pDb) {
+        mInsertBlob = pDb.compileStatement("INSERT OR IGNORE INTO " + TABLE_BLOBS
+                + " (" + COLUMN_HASH + ", " + TILE + ") VALUES (?, ?)");
+        mBlobLength = pDb.compileStatement("SELECT IFNULL((SELECT LENGTH(" + TILE + ") FROM " + TABLE_BLOBS
+                + " WHERE " + COLUMN_HASH + " = ?), -1)");
+    }
+
+    /**
+     * @return true if the database already uses the deduplicated layout
+     */
+    public static boolean hasSchema(final SQLiteDatabase pDb) {
+        final Cursor cursor = pDb.rawQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{TABLE_BLOBS});
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Creates the blob table and the reference counting triggers, and adds the hash column
+     * to an existing tile table
+     */
+    public static void createSchema(final SQLiteDatabase pDb) {
+        if (!hasColumn(pDb, TILES, COLUMN_HASH)) {
+            pDb.execSQL("ALTER TABLE " + TILES + " ADD COLUMN " + COLUMN_HASH + " INTEGER;");
+        }
+        pDb.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_BLOBS + " (" + COLUMN_HASH + " INTEGER PRIMARY KEY, "
+                + TILE + " BLOB, " + COLUMN_REFS + " INTEGER NOT NULL DEFAULT 0);");
+        pDb.execSQL("CREATE INDEX IF NOT EXISTS " + COLUMN_REFS_INDEX + " ON " + TABLE_BLOBS + " (" + COLUMN_REFS + ");");
+        // an INSERT OR REPLACE does not fire the delete triggers: the replaced row is dereferenced here
+        pDb.execSQL("CREATE TRIGGER IF NOT EXISTS " + TILES + "_blob_replace BEFORE INSERT ON " + TILES + " BEGIN "
+                + "UPDATE " + TABLE_BLOBS + " SET " + COLUMN_REFS + " = " + COLUMN_REFS + " - 1 WHERE " + COLUMN_HASH
+                + " = (SELECT " + COLUMN_HASH + " FROM " + TILES + " WHERE " + KEY + " = new." + KEY
+                + " AND " + PROVIDER + " = new." + PROVIDER + "); END;");
+        pDb.execSQL("CREATE TRIGGER IF NOT EXISTS " + TILES + "_blob_ref AFTER INSERT ON " + TILES
+                + " WHEN new." + COLUMN_HASH + " IS NOT NULL BEGIN "
+                + "UPDATE " + TABLE_BLOBS + " SET " + COLUMN_REFS + " = " + COLUMN_REFS + " + 1 WHERE "
+                + COLUMN_HASH + " = new." + COLUMN_HASH + "; END;");
+        pDb.execSQL("CREATE TRIGGER IF NOT EXISTS " + TILES + "_blob_unref AFTER DELETE ON " + TILES
+                + " WHEN old." + COLUMN_HASH + " IS NOT NULL BEGIN "
+                + "UPDATE " + TABLE_BLOBS + " SET " + COLUMN_REFS + " = " + COLUMN_REFS + " - 1 WHERE "
+                + COLUMN_HASH + " = old." + COLUMN_HASH + "; "
+                + "DELETE FROM " + TABLE_BLOBS + " WHERE " + COLUMN_HASH + " = old." + COLUMN_HASH
+                + " AND " + COLUMN_REFS + " <= 0; END;");
+    }
+
+    /**
+     * Deletes the images that are no longer referenced, e.g. after a tile was replaced
+     *
+     * @return the number of deleted images
+     */
+    public static int purgeOrphans(final SQLiteDatabase pDb) {
+        return pDb.delete(TABLE_BLOBS, COLUMN_REFS + " <= 0", null);
+    }
+
+    /**
+     * @return the column expression of the tile image, inline or deduplicated
+     */
+    public static String getTileColumn() {
+        return "IFNULL(" + TILES + "." + TILE + ", " + TABLE_BLOBS + "." + TILE + ")";
+    }
+
+    /**
+     * @return the join clause to be appended to "FROM tiles" for {@link #getTileColumn()}
+     */
+    public static String getTileJoin() {
+        return " LEFT JOIN " + TABLE_BLOBS + " ON " + TABLE_BLOBS + "." + COLUMN_HASH + " = " + TILES + "." + COLUMN_HASH;
+    }
+
+    /**
+     * Stores an image, if not already stored.
+     * To be called in the same transaction as the insertion of the tile row that references it,
+     * or the image could be deleted in between as unreferenced.
+     *
+     * @return the hash to store in the tile row, or null if the image is to be stored inline
+     */
+    public Long store(final byte[] pBits) {
+        final long hash = hash(pBits);
+        mInsertBlob.bindLong(1, hash);
+        mInsertBlob.bindBlob(2, pBits);
+        try {
+            if (mInsertBlob.executeInsert() != -1) {
+                return hash;
+            }
+        } finally {
+            mInsertBlob.clearBindings();
+        }
+        // already there: same image unless the hash collides
+        mBlobLength.bindLong(1, hash);
+        if (mBlobLength.simpleQueryForLong() == pBits.length) {
+            return hash;
+        }
+        return null;
+    }
+
+    /**
+     * Releases the compiled statements
+     */
+    public void close() {
+        mInsertBlob.close();
+        mBlobLength.close();
+    }
+
+    public static long hash(final byte[] pBits) {
+        MessageDigest digest = sDigest.get();
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // SHA-1 is always available on Android
+            }
+            sDigest.set(digest);
+        }
+        final byte[] sha = digest.digest(pBits);
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (sha[i] & 0xFF);
+        }
+        return result;
+    }
+
+    private static boolean hasColumn(final SQLiteDatabase pDb, final String pTable, final String pColumn) {
+        final Cursor cursor = pDb.rawQuery("PRAGMA table_info(" + pTable + ")", null);
+        try {
+            final int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                if (pColumn.equals(cursor.getString(nameIndex))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+}
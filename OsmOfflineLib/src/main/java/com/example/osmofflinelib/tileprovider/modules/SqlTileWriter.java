@@ -2,26 +2,41 @@ package com.example.osmofflinelib.tileprovider.modules;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 import com.example.osmofflinelib.api.IMapView;
 import com.example.osmofflinelib.config.Configuration;
 import com.example.osmofflinelib.tileprovider.ExpirableBitmapDrawable;
+import com.example.osmofflinelib.tileprovider.MapTileEncodedCache;
 import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
 import com.example.osmofflinelib.tileprovider.utils.Counters;
 import com.example.osmofflinelib.tileprovider.utils.StreamUtils;
+import com.example.osmofflinelib.tileprovider.utils.TileBytes;
 import com.example.osmofflinelib.utils.GarbageCollector;
+import com.example.osmofflinelib.utils.MapTileBloomFilter;
 import com.example.osmofflinelib.utils.MapTileIndex;
+import com.example.osmofflinelib.utils.MapTileLinkedMap;
+import com.example.osmofflinelib.utils.MapTileList;
 import com.example.osmofflinelib.utils.SplashScreenable;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.example.osmofflinelib.tileprovider.modules.DatabaseFileArchive.*;
 
@@ -31,17 +46,28 @@ import static com.example.osmofflinelib.tileprovider.modules.DatabaseFileArchive
  * of expired
  * <p>
  * If the database exceeds {@link Configuration#getInstance()#getTileFileSystemCacheTrimBytes()}
- * cache exceeds 600 Mb then it will be trimmed to 500 Mb by deleting files that expire first.
+ * cache exceeds 600 Mb then it will be trimmed to 500 Mb by deleting the least recently used tiles first.
  *
  * @author Alex O'Ree
  * @see DatabaseFileArchive
  * @see SqliteArchiveTileWriter
  * @since 5.1
  */
-public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
+public class SqlTileWriter implements IRevalidatingFilesystemCache, SplashScreenable {
     public static final String DATABASE_FILENAME = "cache.db";
     public static final String COLUMN_EXPIRES = "expires";
     public static final String COLUMN_EXPIRES_INDEX = "expires_index";
+    /**
+     * @since 6.2.1
+     */
+    public static final String COLUMN_SIZE = "size";
+    public static final String COLUMN_ACCESSED = "accessed";
+    public static final String COLUMN_ACCESSED_INDEX = "accessed_index";
+    /**
+     * @since 6.2.1
+     */
+    public static final String COLUMN_ETAG = "etag";
+    public static final String COLUMN_LAST_MODIFIED = "last_modified";
 
     private static boolean cleanOnStartup = true;
 
@@ -57,6 +83,203 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
         cleanOnStartup = value;
     }
 
+    /**
+     * Write-behind mode: maximum number of tiles per transaction, maximum delay before a
+     * transaction, and maximum size of the tiles waiting to be written
+     *
+     * @since 6.2.1
+     */
+    public static final int WRITE_BEHIND_BATCH_SIZE = 64;
+    public static final long WRITE_BEHIND_WINDOW_MILLIS = 500;
+    public static final long WRITE_BEHIND_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * A batch that could not be written stays queued and is retried after a pause
+     * (times the number of attempts); its tiles are dropped after that many attempts
+     *
+     * @since 6.2.1
+     */
+    public static final long WRITE_BEHIND_RETRY_MILLIS = 1000;
+    public static final int WRITE_BEHIND_MAX_ATTEMPTS = 5;
+
+    /**
+     * A tile waiting to be written in write-behind mode
+     *
+     * @since 6.2.1
+     */
+    private static class PendingTile {
+        private final String mProvider;
+        private final long mMapTileIndex;
+        private final byte[] mBytes;
+        private final Long mExpirationTime;
+        private final String mETag;
+        private final String mLastModified;
+        private int mAttempts; // failed writes, only accessed under sFlushLock
+
+        private PendingTile(final String pProvider, final long pMapTileIndex,
+                            final byte[] pBytes, final Long pExpirationTime,
+                            final String pETag, final String pLastModified) {
+            mProvider = pProvider;
+            mMapTileIndex = pMapTileIndex;
+            mBytes = pBytes;
+            mExpirationTime = pExpirationTime;
+            mETag = pETag;
+            mLastModified = pLastModified;
+        }
+    }
+
+    /**
+     * Tiles waiting to be written, per provider: still visible to the reads until written
+     *
+     * @since 6.2.1
+     */
+    private static final Map<String, MapTileLinkedMap<PendingTile>> sPending = new HashMap<>();
+    private static int sPendingCount;
+    private static long sPendingBytes;
+    private static long sPendingClock;
+    private static boolean sFlushScheduled;
+    private static final Object sFlushLock = new Object();
+    private static SqlTileWriter sFlushWriter;
+    private static final ExecutorService sFlushExecutor = Executors.newSingleThreadExecutor(
+            new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY, "sqlTileWriteBehind"));
+    private static final Runnable sFlusher = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (sPending) {
+                        final long deadline = System.currentTimeMillis() + WRITE_BEHIND_WINDOW_MILLIS;
+                        long remaining;
+                        while (sPendingCount < WRITE_BEHIND_BATCH_SIZE
+                                && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                            try {
+                                sPending.wait(remaining);
+                            } catch (InterruptedException e) {
+                                break;
+                            }
+                        }
+                        if (sPendingCount == 0) {
+                            sFlushScheduled = false;
+                            return;
+                        }
+                    }
+                    final int attempts = flushBatch();
+                    if (attempts > 0) {
+                        try {
+                            Thread.sleep(WRITE_BEHIND_RETRY_MILLIS * attempts);
+                        } catch (InterruptedException e) {
+                            // retry now
+                        }
+                    }
+                }
+            } finally {
+                synchronized (sPending) {
+                    if (sFlushScheduled) { // stopped by an unexpected Throwable
+                        sFlushScheduled = false;
+                        if (sPendingCount > 0) {
+                            scheduleFlush();
+                        }
+                        sPending.notifyAll();
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * WAL mode: number of written tiles after which a background checkpoint is run
+     *
+     * @since 6.2.1
+     */
+    public static final int CHECKPOINT_TILES = 256;
+
+    /**
+     * WAL size above which the background checkpoint waits for the readers and truncates the WAL,
+     * as the passive checkpoints may never complete while tiles are being read
+     *
+     * @since 6.2.1
+     */
+    public static final long CHECKPOINT_TRUNCATE_BYTES = 8 * 1024 * 1024;
+    private static final AtomicInteger sWrittenSinceCheckpoint = new AtomicInteger();
+    private static final GarbageCollector sCheckpointer = new GarbageCollector(new Runnable() {
+        @Override
+        public void run() {
+            checkpoint();
+        }
+    });
+
+    /**
+     * Resolution of the stored tile access times, and number of tile accesses
+     * recorded in memory before being written in the database
+     *
+     * @since 6.2.1
+     */
+    public static final long ACCESS_RESOLUTION_MILLIS = 60 * 60 * 1000;
+    public static final int ACCESS_BATCH_SIZE = 256;
+    private static final Map<String, MapTileLinkedMap<Long>> sAccessed = new HashMap<>();
+    private static int sAccessedCount;
+    private static final GarbageCollector sAccessFlusher = new GarbageCollector(new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flushAccesses();
+            } finally {
+                releaseStatements(); // a new thread each time
+            }
+        }
+    });
+
+    /**
+     * Tells for sure when a tile is not in the database, so that it's not even queried
+     *
+     * @since 6.2.1
+     */
+    private static final MapTileExistenceIndex sExistenceIndex = new MapTileExistenceIndex(
+            new MapTileExistenceIndex.Source() {
+                @Override
+                public long count(final String pTileSource) {
+                    final SQLiteDatabase db = getOpenDb();
+                    final SQLiteStatement statement = db.compileStatement(
+                            "SELECT COUNT(*) FROM " + TABLE + " WHERE " + COLUMN_PROVIDER + "=?");
+                    try {
+                        statement.bindString(1, pTileSource);
+                        return statement.simpleQueryForLong();
+                    } finally {
+                        statement.close();
+                    }
+                }
+
+                @Override
+                public void scan(final String pTileSource, final MapTileBloomFilter pFilter) {
+                    final Cursor cursor = getOpenDb().rawQuery(
+                            "SELECT " + COLUMN_KEY + " FROM " + TABLE + " WHERE " + COLUMN_PROVIDER + "=?",
+                            new String[]{pTileSource});
+                    try {
+                        while (cursor.moveToNext()) {
+                            pFilter.add(cursor.getLong(0));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+
+                private SQLiteDatabase getOpenDb() {
+                    final SQLiteDatabase db = mDb;
+                    if (db == null || !db.isOpen()) {
+                        throw new IllegalStateException("database not available");
+                    }
+                    return db;
+                }
+            });
+
+    /**
+     * True if the database has the deduplicated layout (not necessarily used for all the tiles)
+     *
+     * @see SqlTileDeduplication
+     * @since 6.2.1
+     */
+    private static volatile boolean sDeduplicated;
+
     private static final Object mLock = new Object();
     protected static File db_file;
     protected static SQLiteDatabase mDb;
@@ -64,7 +287,11 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
     private final GarbageCollector garbageCollector = new GarbageCollector(new Runnable() {
         @Override
         public void run() {
-            runCleanupOperation();
+            try {
+                runCleanupOperation();
+            } finally {
+                releaseStatements(); // a new thread each time
+            }
         }
     });
 
@@ -102,7 +329,15 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
         // therefore potentially on a small table, for better index creation performances
         createIndex(db);
 
-        final long dbLength = db_file.length();
+        if (sDeduplicated) {
+            try {
+                SqlTileDeduplication.purgeOrphans(db);
+            } catch (Exception ex) {
+                catchException(ex);
+            }
+        }
+
+        final long dbLength = getSize();
         if (dbLength <= Configuration.getInstance().getTileFileSystemCacheMaxBytes()) {
             return;
         }
@@ -112,34 +347,39 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
                 Configuration.getInstance().getTileGCBulkSize(),
                 Configuration.getInstance().getTileGCBulkPauseInMillis(),
                 true);
+        checkpoint(); // we're already in a background thread
     }
 
     @Override
     public boolean saveFile(final ITileSource pTileSourceInfo, final long pMapTileIndex, final InputStream pStream, final Long pExpirationTime) {
+        return saveFile(pTileSourceInfo, pMapTileIndex, pStream, pExpirationTime, null, null);
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public boolean saveFile(final ITileSource pTileSourceInfo, final long pMapTileIndex, final InputStream pStream, final Long pExpirationTime,
+                            final String pETag, final String pLastModified) {
         final SQLiteDatabase db = getDb();
         if (db == null || !db.isOpen()) {
             Log.d(IMapView.LOGTAG, "Unable to store cached tile from " + pTileSourceInfo.name() + " " + MapTileIndex.toString(pMapTileIndex) + ", database not available.");
             Counters.fileCacheSaveErrors++;
             return false;
         }
-        ByteArrayOutputStream bos = null;
         try {
-            ContentValues cv = new ContentValues();
+            final ThreadStatements statements = getStatements(db);
+            final byte[] bits = statements.read(pStream);
+
+            if (Configuration.getInstance().isSqlCacheWriteBehind()) {
+                enqueue(new PendingTile(pTileSourceInfo.name(), pMapTileIndex, bits, pExpirationTime, pETag, pLastModified));
+                return true;
+            }
+
             final long index = getIndex(pMapTileIndex);
-            cv.put(DatabaseFileArchive.COLUMN_PROVIDER, pTileSourceInfo.name());
-
-            byte[] buffer = new byte[512];
-            int l;
-            bos = new ByteArrayOutputStream();
-            while ((l = pStream.read(buffer)) != -1)
-                bos.write(buffer, 0, l);
-            byte[] bits = bos.toByteArray(); // if a variable is required at all
-
-            cv.put(DatabaseFileArchive.COLUMN_KEY, index);
-            cv.put(DatabaseFileArchive.COLUMN_TILE, bits);
-            if (pExpirationTime != null)
-                cv.put(COLUMN_EXPIRES, pExpirationTime);
-            db.replaceOrThrow(TABLE, null, cv);
+            statements.insert(index, pTileSourceInfo.name(), bits, pExpirationTime, pETag, pLastModified);
+            sExistenceIndex.add(pTileSourceInfo.name(), index);
+            onTilesWritten(1);
             if (Configuration.getInstance().isDebugMode())
                 Log.d(IMapView.LOGTAG, "tile inserted " + pTileSourceInfo.name() + MapTileIndex.toString(pMapTileIndex));
             if (System.currentTimeMillis() > lastSizeCheck + Configuration.getInstance().getTileGCFrequencyInMillis()) {
@@ -158,23 +398,284 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
             Log.e(IMapView.LOGTAG, "Unable to store cached tile from " + pTileSourceInfo.name() + " " + MapTileIndex.toString(pMapTileIndex) + " db is " + (db == null ? "null" : "not null"), ex);
             Counters.fileCacheSaveErrors++;
             catchException(ex);
-        } finally {
-            try {
-                bos.close();
-            } catch (IOException e) {
+        }
+        return false;
+    }
 
+    /**
+     * Queues a tile to be written in the next batch; blocks while the queue is full
+     *
+     * @since 6.2.1
+     */
+    private static void enqueue(final PendingTile pTile) throws InterruptedException {
+        synchronized (sPending) {
+            while (sPendingCount > 0 && sPendingBytes + pTile.mBytes.length > WRITE_BEHIND_MAX_BYTES) {
+                sPending.notifyAll(); // no need to wait for the end of the window
+                sPending.wait();
+            }
+            MapTileLinkedMap<PendingTile> tiles = sPending.get(pTile.mProvider);
+            if (tiles == null) {
+                tiles = new MapTileLinkedMap<>();
+                sPending.put(pTile.mProvider, tiles);
             }
+            final PendingTile previous = tiles.put(pTile.mMapTileIndex, pTile, ++sPendingClock);
+            if (previous != null) {
+                sPendingBytes -= previous.mBytes.length;
+            } else {
+                sPendingCount++;
+            }
+            sPendingBytes += pTile.mBytes.length;
+            if (!scheduleFlush() && sPendingCount >= WRITE_BEHIND_BATCH_SIZE) {
+                sPending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts the background writes unless already running; to be called under the lock of sPending
+     *
+     * @return true if started
+     * @since 6.2.1
+     */
+    private static boolean scheduleFlush() {
+        if (sFlushScheduled) {
+            return false;
+        }
+        sFlushScheduled = true;
+        sFlushExecutor.execute(sFlusher);
+        return true;
+    }
+
+    /**
+     * @return the tile waiting to be written, or null
+     * @since 6.2.1
+     */
+    private static PendingTile getPending(final String pProvider, final long pMapTileIndex) {
+        synchronized (sPending) {
+            if (sPendingCount == 0) {
+                return null;
+            }
+            final MapTileLinkedMap<PendingTile> tiles = sPending.get(pProvider);
+            return tiles == null ? null : tiles.peek(pMapTileIndex);
+        }
+    }
+
+    /**
+     * Updates the expiration timestamp and the validators of a tile waiting to be written
+     *
+     * @param pETag         null to keep the current value
+     * @param pLastModified null to keep the current value
+     * @return true if the tile was waiting
+     * @since 6.2.1
+     */
+    private static boolean updatePending(final String pProvider, final long pMapTileIndex, final long pExpirationTime,
+                                         final String pETag, final String pLastModified) {
+        synchronized (sPending) {
+            final MapTileLinkedMap<PendingTile> tiles = sPending.get(pProvider);
+            final PendingTile tile = tiles == null ? null : tiles.peek(pMapTileIndex);
+            if (tile == null) {
+                return false;
+            }
+            // a new instance: a batch being written with the former one keeps the new one queued
+            tiles.put(pMapTileIndex, new PendingTile(pProvider, pMapTileIndex, tile.mBytes, pExpirationTime,
+                    pETag != null ? pETag : tile.mETag,
+                    pLastModified != null ? pLastModified : tile.mLastModified), ++sPendingClock);
+            return true;
+        }
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    private static void removePending(final String pProvider, final long pMapTileIndex) {
+        synchronized (sPending) {
+            final MapTileLinkedMap<PendingTile> tiles = sPending.get(pProvider);
+            if (tiles == null) {
+                return;
+            }
+            final PendingTile removed = tiles.remove(pMapTileIndex);
+            if (removed != null) {
+                sPendingCount--;
+                sPendingBytes -= removed.mBytes.length;
+                sPending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @param pProvider the provider, or null for all providers
+     * @since 6.2.1
+     */
+    private static void clearPending(final String pProvider) {
+        synchronized (sPending) {
+            for (final Map.Entry<String, MapTileLinkedMap<PendingTile>> entry : sPending.entrySet()) {
+                if (pProvider == null || pProvider.equals(entry.getKey())) {
+                    final MapTileList keys = new MapTileList();
+                    entry.getValue().getKeys(keys);
+                    for (int i = 0; i < keys.getSize(); i++) {
+                        final PendingTile removed = entry.getValue().remove(keys.get(i));
+                        sPendingCount--;
+                        sPendingBytes -= removed.mBytes.length;
+                    }
+                }
+            }
+            sPending.notifyAll();
+        }
+    }
+
+    /**
+     * Writes all the tiles waiting to be written.
+     * If a batch cannot be written, its tiles stay queued for the background retries.
+     *
+     * @since 6.2.1
+     */
+    public static void flush() {
+        while (true) {
+            synchronized (sPending) {
+                if (sPendingCount == 0) {
+                    return;
+                }
+            }
+            if (flushBatch() > 0) {
+                synchronized (sPending) {
+                    if (sPendingCount > 0) {
+                        scheduleFlush();
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of waiting tiles in a single transaction.
+     * The tiles stay visible to the reads until committed, and stay queued if the write fails.
+     *
+     * @return 0 if written (or nothing to write), else the number of failed attempts of the batch
+     * @since 6.2.1
+     */
+    private static int flushBatch() {
+        synchronized (sFlushLock) {
+            final List<PendingTile> batch = new ArrayList<>();
+            synchronized (sPending) {
+                final MapTileList keys = new MapTileList();
+                for (final MapTileLinkedMap<PendingTile> tiles : sPending.values()) {
+                    keys.clear();
+                    tiles.getKeys(keys);
+                    for (int i = 0; i < keys.getSize() && batch.size() < WRITE_BEHIND_BATCH_SIZE; i++) {
+                        batch.add(tiles.peek(keys.get(i)));
+                    }
+                }
+            }
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            if (sFlushWriter == null) {
+                sFlushWriter = new SqlTileWriter();
+            }
+            int attempts = 0;
+            final boolean written = sFlushWriter.writeBatch(batch);
+            if (!written) {
+                for (final PendingTile tile : batch) {
+                    attempts = Math.max(attempts, ++tile.mAttempts);
+                }
+                if (attempts < WRITE_BEHIND_MAX_ATTEMPTS) {
+                    return attempts;
+                }
+                Log.e(IMapView.LOGTAG, "Dropping " + batch.size() + " cached tiles after "
+                        + attempts + " failed attempts");
+                Counters.fileCacheSaveErrors += batch.size();
+            }
+            synchronized (sPending) {
+                for (final PendingTile tile : batch) {
+                    final MapTileLinkedMap<PendingTile> tiles = sPending.get(tile.mProvider);
+                    // unless replaced or removed in the meantime
+                    if (tiles != null && tiles.peek(tile.mMapTileIndex) == tile) {
+                        tiles.remove(tile.mMapTileIndex);
+                        sPendingCount--;
+                        sPendingBytes -= tile.mBytes.length;
+                    }
+                }
+                sPending.notifyAll();
+            }
+            return written ? 0 : attempts;
+        }
+    }
+
+    /**
+     * @return true if the whole batch was written
+     * @since 6.2.1
+     */
+    private boolean writeBatch(final List<PendingTile> pBatch) {
+        final SQLiteDatabase db = getDb();
+        if (db == null || !db.isOpen()) {
+            Log.d(IMapView.LOGTAG, "Unable to store " + pBatch.size() + " cached tiles, database not available.");
+            return false;
+        }
+        try {
+            final ThreadStatements statements = getStatements(db);
+            db.beginTransactionNonExclusive(); // readers are not blocked in WAL mode anyway
+            try {
+                for (final PendingTile tile : pBatch) {
+                    statements.insert(getIndex(tile.mMapTileIndex), tile.mProvider, tile.mBytes, tile.mExpirationTime,
+                            tile.mETag, tile.mLastModified);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            for (final PendingTile tile : pBatch) {
+                sExistenceIndex.add(tile.mProvider, getIndex(tile.mMapTileIndex));
+            }
+            onTilesWritten(pBatch.size());
+            if (Configuration.getInstance().isDebugMode())
+                Log.d(IMapView.LOGTAG, pBatch.size() + " tiles inserted in one transaction");
+            if (System.currentTimeMillis() > lastSizeCheck + Configuration.getInstance().getTileGCFrequencyInMillis()) {
+                lastSizeCheck = System.currentTimeMillis();
+                garbageCollector.gc();
+            }
+            return true;
+        } catch (SQLiteFullException ex) {
+            Log.e(IMapView.LOGTAG, "SQLiteFullException while saving tiles.", ex);
+            garbageCollector.gc(); // room for the retry
+            catchException(ex);
+        } catch (Exception ex) {
+            Log.e(IMapView.LOGTAG, "Unable to store " + pBatch.size() + " cached tiles", ex);
+            catchException(ex);
         }
         return false;
     }
 
+    /**
+     * @since 6.2.1
+     */
+    public static MapTileExistenceIndex getExistenceIndex() {
+        return sExistenceIndex;
+    }
+
     /**
      * Returns true if the given tile source and tile coordinates exist in the cache
      *
      * @since 5.6
      */
     public boolean exists(final String pTileSource, final long pMapTileIndex) {
-        return 1 == getRowCount(primaryKey, getPrimaryKeyParameters(getIndex(pMapTileIndex), pTileSource));
+        if (getPending(pTileSource, pMapTileIndex) != null) {
+            return true;
+        }
+        if (!sExistenceIndex.mightContain(pTileSource, getIndex(pMapTileIndex))) {
+            return false;
+        }
+        final SQLiteDatabase db = getDb();
+        if (db == null || !db.isOpen()) {
+            return false;
+        }
+        try {
+            return getStatements(db).count(getIndex(pMapTileIndex), pTileSource) == 1;
+        } catch (Exception ex) {
+            Log.e(IMapView.LOGTAG, "Unable to check if the tile exists", ex);
+            catchException(ex);
+            return false;
+        }
     }
 
     /**
@@ -189,9 +690,13 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
 
     /**
      * Now we use only one static instance of database, which should never be closed
+     * The tiles waiting to be written in write-behind mode are written now.
      */
     @Override
     public void onDetach() {
+        flush();
+        sAccessFlusher.gc();
+        sCheckpointer.gc();
     }
 
     /**
@@ -204,7 +709,9 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
         final SQLiteDatabase db = getDb();
         if (db != null && db.isOpen()) {
             try {
+                clearPending(null);
                 db.delete(TABLE, null, null);
+                sExistenceIndex.invalidate(null);
                 return true;
             } catch (Exception e) {
                 Log.w(IMapView.LOGTAG, "Error purging the db", e);
@@ -224,7 +731,9 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
         final SQLiteDatabase db = getDb();
         if (db != null && db.isOpen()) {
             try {
+                clearPending(mTileSourceName);
                 db.delete(TABLE, COLUMN_PROVIDER + " = ?", new String[]{mTileSourceName});
+                sExistenceIndex.invalidate(mTileSourceName);
                 return true;
             } catch (Exception e) {
                 Log.w(IMapView.LOGTAG, "Error purging the db", e);
@@ -293,9 +802,11 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
                                                                     }
                                                                     cv.put(DatabaseFileArchive.COLUMN_KEY, index);
                                                                     cv.put(DatabaseFileArchive.COLUMN_TILE, bits);
+                                                                    cv.put(COLUMN_SIZE, bits.length);
 
                                                                     long insert = db.insert(TABLE, null, cv);
                                                                     if (insert > 0) {
+                                                                        sExistenceIndex.add(tileSources[i].getName(), index);
                                                                         if (Configuration.getInstance().isDebugMode())
                                                                             Log.d(IMapView.LOGTAG, "tile inserted " + tileSources[i].getName() + "/" + z1 + "/" + x1 + "/" + y1);
                                                                         ret[0]++;
@@ -383,7 +894,9 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
         }
         try {
             final long index = getIndex(pMapTileIndex);
+            removePending(pTileSourceInfo.name(), pMapTileIndex);
             db.delete(DatabaseFileArchive.TABLE, primaryKey, getPrimaryKeyParameters(index, pTileSourceInfo));
+            MapTileEncodedCache.getInstance().remove(pTileSourceInfo, pMapTileIndex);
             return true;
         } catch (Exception ex) {
             //note, although we check for db null state at the beginning of this method, it's possible for the
@@ -458,10 +971,10 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
     }
 
     /**
-     * Returns the size of the database file in bytes.
+     * Returns the size of the database file in bytes, including the not yet checkpointed WAL.
      */
     public long getSize() {
-        return db_file.length();
+        return db_file.length() + new File(db_file.getAbsolutePath() + "-wal").length();
     }
 
     /**
@@ -526,15 +1039,46 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
 
     @Override
     public Long getExpirationTimestamp(final ITileSource pTileSource, final long pMapTileIndex) {
-        Cursor cursor = null;
+        final PendingTile pending = getPending(pTileSource.name(), pMapTileIndex);
+        if (pending != null) {
+            return pending.mExpirationTime == null ? Long.valueOf(0) : pending.mExpirationTime;
+        }
+        if (!sExistenceIndex.mightContain(pTileSource.name(), getIndex(pMapTileIndex))) {
+            return null;
+        }
         try {
-            cursor = getTileCursor(getPrimaryKeyParameters(getIndex(pMapTileIndex), pTileSource), expireQueryColumn);
-            if (cursor.moveToNext()) {
-                return cursor.getLong(0);
+            final long expires = getStatements(getDb()).expires(getIndex(pMapTileIndex), pTileSource.name());
+            if (expires != ThreadStatements.NOT_FOUND) {
+                return expires;
             }
         } catch (Exception ex) {
             Log.e(IMapView.LOGTAG, "error getting expiration date from the tile cache", ex);
             catchException(ex);
+        }
+        return null;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public String[] getValidators(final ITileSource pTileSource, final long pMapTileIndex) {
+        final PendingTile pending = getPending(pTileSource.name(), pMapTileIndex);
+        if (pending != null) {
+            return new String[]{pending.mETag, pending.mLastModified};
+        }
+        if (!sExistenceIndex.mightContain(pTileSource.name(), getIndex(pMapTileIndex))) {
+            return null;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = getTileCursor(getPrimaryKeyParameters(getIndex(pMapTileIndex), pTileSource), validatorColumns);
+            if (cursor.moveToFirst()) {
+                return new String[]{cursor.getString(0), cursor.getString(1)};
+            }
+        } catch (Exception ex) {
+            Log.e(IMapView.LOGTAG, "error getting validators from the tile cache", ex);
+            catchException(ex);
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -543,6 +1087,37 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
         return null;
     }
 
+    /**
+     * @since 6.2.1
+     */
+    private static final String[] validatorColumns = {COLUMN_ETAG, COLUMN_LAST_MODIFIED};
+
+    /**
+     * @since 6.2.1
+     */
+    @Override
+    public boolean updateExpirationTimestamp(final ITileSource pTileSource, final long pMapTileIndex,
+                                             final long pExpirationTime, final String pETag, final String pLastModified) {
+        // the tile may still be waiting to be written, and may be in the database too (older version)
+        final boolean pending = updatePending(pTileSource.name(), pMapTileIndex, pExpirationTime, pETag, pLastModified);
+        final SQLiteDatabase db = getDb();
+        if (db == null || !db.isOpen()) {
+            return pending;
+        }
+        try {
+            final boolean updated = getStatements(db).updateExpires(getIndex(pMapTileIndex), pTileSource.name(),
+                    pExpirationTime, pETag, pLastModified);
+            if (updated) {
+                onTilesWritten(1);
+            }
+            return pending || updated;
+        } catch (Exception ex) {
+            Log.e(IMapView.LOGTAG, "Unable to update the expiration timestamp of the cached tile", ex);
+            catchException(ex);
+            return pending;
+        }
+    }
+
     /**
      * @since 5.6.5
      */
@@ -583,31 +1158,26 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
         return db.query(DatabaseFileArchive.TABLE, pColumns, primaryKey, pPrimaryKeyParameters, null, null, null);
     }
 
-    /**
-     * For optimization reasons
-     *
-     * @since 5.6.5
-     */
-    private static final String[] queryColumns = {DatabaseFileArchive.COLUMN_TILE, SqlTileWriter.COLUMN_EXPIRES};
-
-    /**
-     * For optimization reasons
-     *
-     * @since 5.6.5
-     */
-    private static final String[] expireQueryColumn = {SqlTileWriter.COLUMN_EXPIRES};
-
     @Override
     public Drawable loadTile(final ITileSource pTileSource, final long pMapTileIndex) throws Exception {
         byte[] bits = null;
         long expirationTimestamp = 0;
         Cursor cur = null;
-        try {
-            final long index = getIndex(pMapTileIndex);
-            cur = getTileCursor(getPrimaryKeyParameters(index, pTileSource), queryColumns);
+        final PendingTile pending = getPending(pTileSource.name(), pMapTileIndex);
+        if (pending != null) {
+            bits = pending.mBytes;
+            expirationTimestamp = pending.mExpirationTime == null ? 0 : pending.mExpirationTime;
+        } else if (!sExistenceIndex.mightContain(pTileSource.name(), getIndex(pMapTileIndex))) {
+            return null;
+        } else try {
+            cur = getStatements(getDb()).query(getIndex(pMapTileIndex), pTileSource.name());
             if (cur.moveToFirst()) {
                 bits = cur.getBlob(0);
                 expirationTimestamp = cur.getLong(1);
+                final long accessTime = getAccessTime(System.currentTimeMillis());
+                if (cur.getLong(2) < accessTime) {
+                    recordAccess(pTileSource.name(), pMapTileIndex, accessTime);
+                }
             }
             if (bits == null) {
                 if (Configuration.getInstance().isDebugMode()) {
@@ -624,6 +1194,8 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
             }
         }
 
+        MapTileEncodedCache.getInstance().put(pTileSource, pMapTileIndex, bits, expirationTimestamp);
+
         InputStream inputStream = null;
         try {
             inputStream = new ByteArrayInputStream(bits);
@@ -652,6 +1224,7 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
      * @param pPauseMillis      Pause between bulk actions, in order not to play it not aggressive on the CPU
      * @param pIncludeUnexpired Should we also delete tiles that are not expired?
      * @since 6.0.2
+     * Since 6.2.1 the least recently used tiles are deleted first, instead of the tiles that expire first
      */
     public void runCleanupOperation(final long pToBeDeleted, final int pBulkSize,
                                     final long pPauseMillis, final boolean pIncludeUnexpired) {
@@ -660,6 +1233,7 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
         String sep;
         boolean first = true;
         final SQLiteDatabase db = getDb();
+        flushAccesses(); // so that the least recently used tiles are actually the least recently used
         while (diff > 0) {
             if (first) {
                 first = false;
@@ -675,13 +1249,20 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
             final long now = System.currentTimeMillis();
             final Cursor cur;
             try {
+                // the stored size may be missing for tiles written before the migration:
+                // LENGTH on a BLOB reads the record header, not the content.
+                // A deduplicated image still referenced by other tiles frees nothing when this tile goes
+                // (two tiles of the same batch sharing an image are both counted as 0: a slight overshoot)
+                final String size = "IFNULL(" + COLUMN_SIZE + ",LENGTH(" + TABLE + "." + COLUMN_TILE + "))";
                 cur = db.rawQuery(
-                        "SELECT " + COLUMN_KEY + ",LENGTH(HEX(" + COLUMN_TILE + "))/2 " +
-                                "FROM " + DatabaseFileArchive.TABLE + " " +
-                                "WHERE " +
-                                COLUMN_EXPIRES + " IS NOT NULL " +
-                                (pIncludeUnexpired ? "" : "AND " + COLUMN_EXPIRES + " < " + now + " ") +
-                                "ORDER BY " + COLUMN_EXPIRES + " ASC " +
+                        "SELECT " + TABLE + ".rowid," + (sDeduplicated
+                                ? "CASE WHEN " + SqlTileDeduplication.TABLE_BLOBS + "." + SqlTileDeduplication.COLUMN_REFS
+                                + " > 1 THEN 0 ELSE " + size + " END "
+                                : size + " ") +
+                                "FROM " + DatabaseFileArchive.TABLE +
+                                (sDeduplicated ? SqlTileDeduplication.getTileJoin() : "") + " " +
+                                (pIncludeUnexpired ? "" : "WHERE " + COLUMN_EXPIRES + " < " + now + " ") +
+                                "ORDER BY " + COLUMN_ACCESSED + " ASC " +
                                 "LIMIT " + pBulkSize, null);
             } catch (Exception e) {
                 catchException(e);
@@ -689,14 +1270,14 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
             }
             cur.moveToFirst();
             where.setLength(0);
-            where.append(COLUMN_KEY + " in (");
+            where.append("rowid in (");
             sep = "";
             while (!cur.isAfterLast()) {
-                final long key = cur.getLong(0);
+                final long rowId = cur.getLong(0);
                 final long size = cur.getLong(1);
                 cur.moveToNext();
 
-                where.append(sep).append(key);
+                where.append(sep).append(rowId);
                 sep = ",";
                 diff -= size;
                 if (diff <= 0) { // we already have enough tiles to delete
@@ -709,7 +1290,8 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
             }
             where.append(')');
             try {
-                db.delete(TABLE, where.toString(), null);
+                final int deleted = db.delete(TABLE, where.toString(), null);
+                sExistenceIndex.removed(null, deleted); // no full rebuild scan while the storage is short
             } catch (SQLiteFullException e) {
                 Log.e(IMapView.LOGTAG, "SQLiteFullException while cleanup.", e);
                 catchException(e);
@@ -720,6 +1302,364 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
         }
     }
 
+    /**
+     * @return the access time as stored in the database, with a coarse resolution
+     * @since 6.2.1
+     */
+    private static long getAccessTime(final long pMillis) {
+        return pMillis - pMillis % ACCESS_RESOLUTION_MILLIS;
+    }
+
+    /**
+     * Records that a tile was read; the access times are written in batches
+     *
+     * @since 6.2.1
+     */
+    private static void recordAccess(final String pProvider, final long pMapTileIndex, final long pAccessTime) {
+        synchronized (sAccessed) {
+            MapTileLinkedMap<Long> tiles = sAccessed.get(pProvider);
+            if (tiles == null) {
+                tiles = new MapTileLinkedMap<>();
+                sAccessed.put(pProvider, tiles);
+            }
+            if (tiles.put(pMapTileIndex, pAccessTime, 0) == null) {
+                sAccessedCount++;
+            }
+            if (sAccessedCount < ACCESS_BATCH_SIZE) {
+                return;
+            }
+        }
+        sAccessFlusher.gc();
+    }
+
+    /**
+     * Writes the recorded access times in a single transaction
+     *
+     * @since 6.2.1
+     */
+    private static void flushAccesses() {
+        final List<String> providers = new ArrayList<>();
+        final List<MapTileLinkedMap<Long>> accesses = new ArrayList<>();
+        synchronized (sAccessed) {
+            if (sAccessedCount == 0) {
+                return;
+            }
+            for (final Map.Entry<String, MapTileLinkedMap<Long>> entry : sAccessed.entrySet()) {
+                providers.add(entry.getKey());
+                accesses.add(entry.getValue());
+            }
+            sAccessed.clear();
+            sAccessedCount = 0;
+        }
+        final SQLiteDatabase db = mDb;
+        if (db == null || !db.isOpen()) {
+            return;
+        }
+        final MapTileList keys = new MapTileList();
+        try {
+            final ThreadStatements statements = getStatements(db);
+            db.beginTransactionNonExclusive();
+            try {
+                for (int i = 0; i < providers.size(); i++) {
+                    final MapTileLinkedMap<Long> tiles = accesses.get(i);
+                    keys.clear();
+                    tiles.getKeys(keys);
+                    for (int j = 0; j < keys.getSize(); j++) {
+                        final long mapTileIndex = keys.get(j);
+                        statements.touch(getIndex(mapTileIndex), providers.get(i), tiles.peek(mapTileIndex));
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception ex) {
+            Log.w(IMapView.LOGTAG, "Unable to store the tile access times", ex);
+        }
+    }
+
+    /**
+     * Adds the columns introduced in 6.2.1 to a database created by a previous version.
+     * The previous tiles are considered as never accessed, and their size is computed when needed.
+     *
+     * @since 6.2.1
+     */
+    private static void migrate(final SQLiteDatabase pDb) {
+        boolean hasSize = false;
+        boolean hasAccessed = false;
+        boolean hasValidators = false;
+        final Cursor cursor = pDb.rawQuery("PRAGMA table_info(" + TABLE + ")", null);
+        try {
+            final int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                final String name = cursor.getString(nameIndex);
+                if (COLUMN_SIZE.equals(name)) {
+                    hasSize = true;
+                } else if (COLUMN_ACCESSED.equals(name)) {
+                    hasAccessed = true;
+                } else if (COLUMN_ETAG.equals(name)) {
+                    hasValidators = true;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!hasSize) {
+            pDb.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_SIZE + " INTEGER;");
+        }
+        if (!hasAccessed) {
+            pDb.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_ACCESSED + " INTEGER NOT NULL DEFAULT 0;");
+        }
+        if (!hasValidators) {
+            pDb.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_ETAG + " TEXT;");
+            pDb.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_LAST_MODIFIED + " TEXT;");
+        }
+    }
+
+    /**
+     * Statements compiled once per thread and per database instance.
+     * Meant for the long-lived threads (tile loaders, write-behind);
+     * a short-lived thread releases them with {@link #releaseStatements()} before it ends.
+     *
+     * @since 6.2.1
+     */
+    private static final ThreadLocal<ThreadStatements> sStatements = new ThreadLocal<>();
+
+    /**
+     * @since 6.2.1
+     */
+    private static ThreadStatements getStatements(final SQLiteDatabase pDb) {
+        ThreadStatements statements = sStatements.get();
+        if (statements == null || statements.mDb != pDb) { // first use or database reopened
+            statements = new ThreadStatements(pDb);
+            sStatements.set(statements);
+        }
+        return statements;
+    }
+
+    /**
+     * Closes the statements of the current thread, if any
+     *
+     * @since 6.2.1
+     */
+    private static void releaseStatements() {
+        final ThreadStatements statements = sStatements.get();
+        if (statements != null) {
+            sStatements.remove();
+            statements.close();
+        }
+    }
+
+    /**
+     * Compiled statements and reusable buffers of the current thread, so that the read and
+     * write paths don't build SQL, parameter arrays or ContentValues for each tile.
+     *
+     * @since 6.2.1
+     */
+    private static final class ThreadStatements {
+
+        private static final long NOT_FOUND = -1;
+
+        private final SQLiteDatabase mDb;
+        private final String mQuerySql;
+        private final SqlTileDeduplication mDeduplication;
+        private final SQLiteStatement mInsert;
+        private final SQLiteStatement mCount;
+        private final SQLiteStatement mExpires;
+        private final SQLiteStatement mTouch;
+        private final SQLiteStatement mUpdateExpires;
+        private long mQueryIndex;
+        private String mQueryProvider;
+        /**
+         * Binds the key as an integer, without building a String parameter array for each tile
+         */
+        private final SQLiteDatabase.CursorFactory mQueryFactory = new SQLiteDatabase.CursorFactory() {
+            @Override
+            public Cursor newCursor(final SQLiteDatabase pDb, final SQLiteCursorDriver pDriver,
+                                    final String pEditTable, final SQLiteQuery pQuery) {
+                pQuery.bindLong(1, mQueryIndex);
+                pQuery.bindString(2, mQueryProvider);
+                return new SQLiteCursor(pDriver, pEditTable, pQuery);
+            }
+        };
+        private byte[] mBuffer = new byte[16 * 1024];
+
+        private ThreadStatements(final SQLiteDatabase pDb) {
+            mDb = pDb;
+            if (sDeduplicated) {
+                mDeduplication = new SqlTileDeduplication(pDb);
+                mQuerySql = "SELECT " + SqlTileDeduplication.getTileColumn() + ", " + COLUMN_EXPIRES
+                        + ", " + COLUMN_ACCESSED + " FROM " + TABLE + SqlTileDeduplication.getTileJoin()
+                        + " WHERE " + TABLE + "." + DatabaseFileArchive.COLUMN_KEY + "=? and "
+                        + TABLE + "." + DatabaseFileArchive.COLUMN_PROVIDER + "=?";
+                mInsert = pDb.compileStatement("INSERT OR REPLACE INTO " + TABLE + " ("
+                        + DatabaseFileArchive.COLUMN_KEY + ", " + DatabaseFileArchive.COLUMN_PROVIDER + ", "
+                        + DatabaseFileArchive.COLUMN_TILE + ", " + COLUMN_EXPIRES + ", "
+                        + COLUMN_SIZE + ", " + COLUMN_ACCESSED + ", " + COLUMN_ETAG + ", " + COLUMN_LAST_MODIFIED + ", "
+                        + SqlTileDeduplication.COLUMN_HASH + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            } else {
+                mDeduplication = null;
+                mQuerySql = "SELECT " + DatabaseFileArchive.COLUMN_TILE + ", " + COLUMN_EXPIRES
+                        + ", " + COLUMN_ACCESSED + " FROM " + TABLE + " WHERE " + primaryKey;
+                mInsert = pDb.compileStatement("INSERT OR REPLACE INTO " + TABLE + " ("
+                        + DatabaseFileArchive.COLUMN_KEY + ", " + DatabaseFileArchive.COLUMN_PROVIDER + ", "
+                        + DatabaseFileArchive.COLUMN_TILE + ", " + COLUMN_EXPIRES + ", "
+                        + COLUMN_SIZE + ", " + COLUMN_ACCESSED + ", " + COLUMN_ETAG + ", " + COLUMN_LAST_MODIFIED
+                        + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+            }
+            mUpdateExpires = pDb.compileStatement("UPDATE " + TABLE + " SET " + COLUMN_EXPIRES + " = ?, "
+                    + COLUMN_ETAG + " = IFNULL(?, " + COLUMN_ETAG + "), "
+                    + COLUMN_LAST_MODIFIED + " = IFNULL(?, " + COLUMN_LAST_MODIFIED + ") WHERE " + primaryKey);
+            mTouch = pDb.compileStatement("UPDATE " + TABLE + " SET " + COLUMN_ACCESSED + " = ? WHERE "
+                    + primaryKey + " and " + COLUMN_ACCESSED + " < ?");
+            mCount = pDb.compileStatement("SELECT COUNT(*) FROM " + TABLE + " WHERE " + primaryKey);
+            mExpires = pDb.compileStatement("SELECT IFNULL((SELECT IFNULL(" + COLUMN_EXPIRES + ", 0) FROM "
+                    + TABLE + " WHERE " + primaryKey + "), " + NOT_FOUND + ")");
+        }
+
+        private void insert(final long pIndex, final String pProvider, final byte[] pBits, final Long pExpirationTime,
+                            final String pETag, final String pLastModified) {
+            if (mDeduplication == null) {
+                insert(pIndex, pProvider, pBits, pExpirationTime, pETag, pLastModified, null);
+                return;
+            }
+            mDb.beginTransactionNonExclusive(); // the image and its reference, or nothing
+            try {
+                final Long hash = Configuration.getInstance().isSqlCacheDeduplication()
+                        ? mDeduplication.store(pBits) : null;
+                insert(pIndex, pProvider, pBits, pExpirationTime, pETag, pLastModified, hash);
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+
+        /**
+         * @param pHash the hash of the deduplicated image, or null to store it inline
+         */
+        private void insert(final long pIndex, final String pProvider, final byte[] pBits, final Long pExpirationTime,
+                            final String pETag, final String pLastModified, final Long pHash) {
+            mInsert.bindLong(1, pIndex);
+            mInsert.bindString(2, pProvider);
+            if (pHash == null) {
+                mInsert.bindBlob(3, pBits);
+            } else {
+                mInsert.bindNull(3);
+            }
+            if (pExpirationTime != null) {
+                mInsert.bindLong(4, pExpirationTime);
+            } else {
+                mInsert.bindNull(4);
+            }
+            mInsert.bindLong(5, pBits.length);
+            mInsert.bindLong(6, getAccessTime(System.currentTimeMillis()));
+            bindStringOrNull(mInsert, 7, pETag);
+            bindStringOrNull(mInsert, 8, pLastModified);
+            if (mDeduplication != null) {
+                if (pHash == null) {
+                    mInsert.bindNull(9);
+                } else {
+                    mInsert.bindLong(9, pHash);
+                }
+            }
+            try {
+                mInsert.executeInsert();
+            } finally {
+                mInsert.clearBindings(); // don't keep the blob alive
+            }
+        }
+
+        private void bindStringOrNull(final SQLiteStatement pStatement, final int pIndex, final String pValue) {
+            if (pValue != null) {
+                pStatement.bindString(pIndex, pValue);
+            } else {
+                pStatement.bindNull(pIndex);
+            }
+        }
+
+        private boolean updateExpires(final long pIndex, final String pProvider, final long pExpirationTime,
+                                      final String pETag, final String pLastModified) {
+            mUpdateExpires.bindLong(1, pExpirationTime);
+            bindStringOrNull(mUpdateExpires, 2, pETag);
+            bindStringOrNull(mUpdateExpires, 3, pLastModified);
+            mUpdateExpires.bindLong(4, pIndex);
+            mUpdateExpires.bindString(5, pProvider);
+            return mUpdateExpires.executeUpdateDelete() > 0;
+        }
+
+        private void touch(final long pIndex, final String pProvider, final long pAccessTime) {
+            mTouch.bindLong(1, pAccessTime);
+            mTouch.bindLong(2, pIndex);
+            mTouch.bindString(3, pProvider);
+            mTouch.bindLong(4, pAccessTime);
+            mTouch.executeUpdateDelete();
+        }
+
+        private long count(final long pIndex, final String pProvider) {
+            mCount.bindLong(1, pIndex);
+            mCount.bindString(2, pProvider);
+            return mCount.simpleQueryForLong();
+        }
+
+        /**
+         * @return the expiration timestamp (0 if none), or {@link #NOT_FOUND}
+         */
+        private long expires(final long pIndex, final String pProvider) {
+            mExpires.bindLong(1, pIndex);
+            mExpires.bindString(2, pProvider);
+            return mExpires.simpleQueryForLong();
+        }
+
+        /**
+         * The blob column cannot be read through a compiled statement: hence a cursor,
+         * but with a constant SQL and the parameters bound by {@link #mQueryFactory}.
+         * Still one allocation per tile: Cursor.getBlob returns a new array, and there is
+         * no API to read a blob in a reused buffer.
+         */
+        private Cursor query(final long pIndex, final String pProvider) {
+            mQueryIndex = pIndex;
+            mQueryProvider = pProvider;
+            try {
+                return mDb.rawQueryWithFactory(mQueryFactory, mQuerySql, null, null);
+            } finally {
+                mQueryProvider = null;
+            }
+        }
+
+        private void close() {
+            mInsert.close();
+            mCount.close();
+            mExpires.close();
+            mTouch.close();
+            mUpdateExpires.close();
+            if (mDeduplication != null) {
+                mDeduplication.close();
+            }
+        }
+
+        /**
+         * Reads the stream in the reused buffer
+         *
+         * @return a copy of the exact length, as expected by the blob binding,
+         * or the array itself for a downloaded tile
+         */
+        private byte[] read(final InputStream pStream) throws IOException {
+            final byte[] bytes = TileBytes.getBytes(pStream);
+            if (bytes != null) {
+                return bytes;
+            }
+            int length = 0;
+            int read;
+            while ((read = pStream.read(mBuffer, length, mBuffer.length - length)) != -1) {
+                length += read;
+                if (length == mBuffer.length) {
+                    mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+                }
+            }
+            return Arrays.copyOf(mBuffer, length);
+        }
+    }
+
     /**
      * @since 6.0.2
      */
@@ -732,8 +1672,21 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
             db_file = new File(Configuration.getInstance().getOsmdroidTileCache().getAbsolutePath() + File.separator + DATABASE_FILENAME);
             if (mDb == null) {
                 try {
-                    mDb = SQLiteDatabase.openOrCreateDatabase(db_file, null);
-                    mDb.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + " (" + DatabaseFileArchive.COLUMN_KEY + " INTEGER , " + DatabaseFileArchive.COLUMN_PROVIDER + " TEXT, " + DatabaseFileArchive.COLUMN_TILE + " BLOB, " + COLUMN_EXPIRES + " INTEGER, PRIMARY KEY (" + DatabaseFileArchive.COLUMN_KEY + ", " + DatabaseFileArchive.COLUMN_PROVIDER + "));");
+                    // published only once the schema is ready
+                    final SQLiteDatabase db = SQLiteDatabase.openDatabase(db_file.getAbsolutePath(), null,
+                            SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+                    if (db.isWriteAheadLoggingEnabled()) {
+                        disableAutoCheckpoint(db);
+                    }
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + " (" + DatabaseFileArchive.COLUMN_KEY + " INTEGER , " + DatabaseFileArchive.COLUMN_PROVIDER + " TEXT, " + DatabaseFileArchive.COLUMN_TILE + " BLOB, " + COLUMN_EXPIRES + " INTEGER, " + COLUMN_SIZE + " INTEGER, " + COLUMN_ACCESSED + " INTEGER NOT NULL DEFAULT 0, " + COLUMN_ETAG + " TEXT, " + COLUMN_LAST_MODIFIED + " TEXT, PRIMARY KEY (" + DatabaseFileArchive.COLUMN_KEY + ", " + DatabaseFileArchive.COLUMN_PROVIDER + "));");
+                    migrate(db);
+                    // once deduplicated, always deduplicated: the reads need the joined blob table
+                    sDeduplicated = Configuration.getInstance().isSqlCacheDeduplication()
+                            || SqlTileDeduplication.hasSchema(db);
+                    if (sDeduplicated) {
+                        SqlTileDeduplication.createSchema(db);
+                    }
+                    mDb = db;
                 } catch (Exception ex) {
                     Log.e(IMapView.LOGTAG, "Unable to start the sqlite tile writer. Check external storage availability.", ex);
                     catchException(ex);
@@ -744,6 +1697,69 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
         return mDb;
     }
 
+    /**
+     * In WAL mode the checkpoints are by default run by the writer that commits past the
+     * threshold, i.e. on a tile loading thread. We run them in the background instead.
+     * The pragma is a setting of the connection: run in a transaction, so that it's applied
+     * to the primary (writing) connection and not to a pooled reading connection.
+     *
+     * @since 6.2.1
+     */
+    private static void disableAutoCheckpoint(final SQLiteDatabase pDb) {
+        Cursor cursor = null;
+        try {
+            pDb.beginTransaction();
+            try {
+                cursor = pDb.rawQuery("PRAGMA wal_autocheckpoint=0", null);
+                cursor.moveToFirst();
+                pDb.setTransactionSuccessful();
+            } finally {
+                pDb.endTransaction();
+            }
+        } catch (Exception ex) {
+            Log.w(IMapView.LOGTAG, "Unable to disable the sqlite auto checkpoint", ex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    private static void onTilesWritten(final int pCount) {
+        if (sWrittenSinceCheckpoint.addAndGet(pCount) >= CHECKPOINT_TILES && sCheckpointer.gc()) {
+            sWrittenSinceCheckpoint.set(0);
+        }
+    }
+
+    /**
+     * Copies the WAL content back into the database, without blocking readers or writers;
+     * or, if the WAL got too big, waiting for them and truncating the WAL.
+     * A checkpoint applies to the database, whatever the connection it runs on.
+     *
+     * @since 6.2.1
+     */
+    private static void checkpoint() {
+        final SQLiteDatabase db = mDb;
+        if (db == null || !db.isOpen() || !db.isWriteAheadLoggingEnabled()) {
+            return;
+        }
+        final boolean truncate = new File(db_file.getAbsolutePath() + "-wal").length() > CHECKPOINT_TRUNCATE_BYTES;
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("PRAGMA wal_checkpoint(" + (truncate ? "TRUNCATE" : "PASSIVE") + ")", null);
+            cursor.moveToFirst();
+        } catch (Exception ex) {
+            Log.w(IMapView.LOGTAG, "Unable to checkpoint the sqlite tile cache", ex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * @since 6.0.2
      */
@@ -802,6 +1818,7 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
      */
     private void createIndex(final SQLiteDatabase pDb) {
         pDb.execSQL("CREATE INDEX IF NOT EXISTS " + COLUMN_EXPIRES_INDEX + " ON " + TABLE + " (" + COLUMN_EXPIRES + ");");
+        pDb.execSQL("CREATE INDEX IF NOT EXISTS " + COLUMN_ACCESSED_INDEX + " ON " + TABLE + " (" + COLUMN_ACCESSED + ");");
     }
 
     /**
@@ -908,10 +1925,14 @@ public class SqlTileWriter implements IFilesystemCache, SplashScreenable {
             if (db == null || !db.isOpen()) {
                 return -1;
             }
-            return db.delete(TABLE,
+            final long deleted = db.delete(TABLE,
                     getWhereClause(pZoom, pInclude, pExclude)
                             + (pTileSourceName != null ? " and " + COLUMN_PROVIDER + "=?" : ""),
                     pTileSourceName != null ? new String[]{pTileSourceName} : null);
+            if (deleted > 0) {
+                sExistenceIndex.invalidate(pTileSourceName);
+            }
+            return deleted;
         } catch (Exception ex) {
             catchException(ex);
             return 0;
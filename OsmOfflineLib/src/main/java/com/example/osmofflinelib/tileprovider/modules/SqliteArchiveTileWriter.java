@@ -30,8 +30,23 @@ public class SqliteArchiveTileWriter implements IFilesystemCache {
     final SQLiteDatabase mDatabase;
     final int questimate = 8000;
     static boolean hasInited = false;
+    /**
+     * @since 6.2.1
+     */
+    private final SqlTileDeduplication mDeduplication;
+    private final boolean mDeduplicated;
 
     public SqliteArchiveTileWriter(String outputFile) throws Exception {
+        this(outputFile, false);
+    }
+
+    /**
+     * @param pDeduplicate if true, identical tile images are stored only once.
+     *                     Such archives are read by {@link DatabaseFileArchive}, but not by MOBAC-like tools.
+     * @see SqlTileDeduplication
+     * @since 6.2.1
+     */
+    public SqliteArchiveTileWriter(String outputFile, boolean pDeduplicate) throws Exception {
         // do this in the background because it takes a long time
         db_file = new File(outputFile);
         try {
@@ -47,6 +62,11 @@ public class SqliteArchiveTileWriter implements IFilesystemCache {
             Log.d(IMapView.LOGTAG, "error setting db schema, it probably exists already", t);
             // throw new IOException("Trouble creating database file"+ t.getMessage());
         }
+        mDeduplicated = pDeduplicate || SqlTileDeduplication.hasSchema(mDatabase);
+        if (mDeduplicated) {
+            SqlTileDeduplication.createSchema(mDatabase);
+        }
+        mDeduplication = pDeduplicate ? new SqlTileDeduplication(mDatabase) : null;
     }
 
     @Override
@@ -71,10 +91,28 @@ public class SqliteArchiveTileWriter implements IFilesystemCache {
             byte[] bits = bos.toByteArray(); // if a variable is required at all
 
             cv.put(DatabaseFileArchive.COLUMN_KEY, index);
-            cv.put(DatabaseFileArchive.COLUMN_TILE, bits);
-            mDatabase.insert(DatabaseFileArchive.TABLE, null, cv);
-            returnValue = true;
-            if (Configuration.getInstance().isDebugMode())
+            if (mDeduplication == null) {
+                cv.put(DatabaseFileArchive.COLUMN_TILE, bits);
+                returnValue = mDatabase.insert(DatabaseFileArchive.TABLE, null, cv) != -1;
+            } else {
+                mDatabase.beginTransaction(); // the image and its reference, or nothing
+                try {
+                    final Long hash = mDeduplication.store(bits);
+                    if (hash == null) {
+                        cv.put(DatabaseFileArchive.COLUMN_TILE, bits);
+                    } else {
+                        cv.put(SqlTileDeduplication.COLUMN_HASH, hash);
+                    }
+                    // on a failed insert (e.g. tile already there) the rollback drops the unreferenced image
+                    returnValue = mDatabase.insert(DatabaseFileArchive.TABLE, null, cv) != -1;
+                    if (returnValue) {
+                        mDatabase.setTransactionSuccessful();
+                    }
+                } finally {
+                    mDatabase.endTransaction();
+                }
+            }
+            if (returnValue && Configuration.getInstance().isDebugMode())
                 Log.d(IMapView.LOGTAG, "tile inserted " + pTileSourceInfo.name() + MapTileIndex.toString(pMapTileIndex));
         } catch (Throwable ex) {
             Log.e(IMapView.LOGTAG, "Unable to store cached tile from " + pTileSourceInfo.name() + " " + MapTileIndex.toString(pMapTileIndex), ex);
@@ -138,6 +176,12 @@ public class SqliteArchiveTileWriter implements IFilesystemCache {
             Log.w(IMapView.LOGTAG, "Skipping SqlArchiveTileWriter getTileCursor, database is closed");
             return null;
         }
+        if (mDeduplicated) {
+            return mDatabase.rawQuery("SELECT " + SqlTileDeduplication.getTileColumn() + " AS " + DatabaseFileArchive.COLUMN_TILE
+                    + " FROM " + DatabaseFileArchive.TABLE + SqlTileDeduplication.getTileJoin()
+                    + " WHERE " + DatabaseFileArchive.TABLE + "." + DatabaseFileArchive.COLUMN_KEY + "=? and "
+                    + DatabaseFileArchive.TABLE + "." + DatabaseFileArchive.COLUMN_PROVIDER + "=?", pPrimaryKeyParameters);
+        }
         return mDatabase.query(DatabaseFileArchive.TABLE, queryColumns, SqlTileWriter.getPrimaryKey(), pPrimaryKeyParameters, null, null, null);
     }
 
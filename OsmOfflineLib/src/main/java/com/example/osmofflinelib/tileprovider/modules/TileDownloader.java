@@ -1,26 +1,24 @@
 package com.example.osmofflinelib.tileprovider.modules;
 
 import android.graphics.drawable.Drawable;
-import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
 import com.example.osmofflinelib.api.IMapView;
 import com.example.osmofflinelib.config.Configuration;
+import com.example.osmofflinelib.tileprovider.MapTileEncodedCache;
 import com.example.osmofflinelib.tileprovider.constants.OpenStreetMapTileProviderConstants;
 import com.example.osmofflinelib.tileprovider.tilesource.BitmapTileSourceBase;
 import com.example.osmofflinelib.tileprovider.tilesource.OnlineTileSourceBase;
 import com.example.osmofflinelib.tileprovider.tilesource.TileSourcePolicy;
 import com.example.osmofflinelib.tileprovider.utils.Counters;
 import com.example.osmofflinelib.tileprovider.utils.StreamUtils;
+import com.example.osmofflinelib.tileprovider.utils.TileBytes;
 import com.example.osmofflinelib.utils.MapTileIndex;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
 import java.net.*;
-import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -29,7 +27,29 @@ import java.util.Map;
  */
 public class TileDownloader {
 
-    private boolean compatibilitySocketFactorySet;
+    /**
+     * Tiles actually downloaded, and expired tiles revalidated by a "304 Not Modified" answer
+     *
+     * @since 6.2.1
+     */
+    public static final String COUNTER_DOWNLOADED = "tileDownloaded";
+    public static final String COUNTER_REVALIDATED = "tileRevalidated";
+
+    private ITileHttpTransport mTransport = HttpURLConnectionTileTransport.getInstance(); // default value
+
+    /**
+     * @since 6.2.1
+     */
+    public ITileHttpTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * @since 6.2.1
+     */
+    public void setTransport(final ITileHttpTransport pTransport) {
+        mTransport = pTransport;
+    }
 
     public Drawable downloadTile(final long pMapTileIndex,
                                  final IFilesystemCache pFilesystemCache, final OnlineTileSourceBase pTileSource) throws CantContinueException {
@@ -39,9 +59,35 @@ public class TileDownloader {
     /**
      * downloads a tile and follows http redirects
      * Code used to be in MapTileDownloader.TileLoader.downloadTile
+     * Concurrent downloads of the same tile into the same cache (e.g. by {@link MapTileDownloader} and by
+     * {@link com.example.osmofflinelib.tileprovider.cachemanager.CacheManager}) are coalesced;
+     * downloads into different caches are not, as only the first download would save the tile.
      */
     public Drawable downloadTile(final long pMapTileIndex, final int redirectCount, final String targetUrl,
                                  final IFilesystemCache pFilesystemCache, final OnlineTileSourceBase pTileSource) throws CantContinueException {
+        if (redirectCount > 0) {
+            return download(pMapTileIndex, redirectCount, targetUrl, pFilesystemCache, pTileSource, true);
+        }
+        // the target cache is the scope: a CacheManager writing to its own archive must not
+        // get a tile that was only saved in the interactive cache
+        final Object scope = pFilesystemCache != null ? pFilesystemCache : TileDownloader.class;
+        return MapTileInFlightRegistry.getInstance().load(scope, pTileSource.name(), pMapTileIndex,
+                new MapTileInFlightRegistry.Loader() {
+                    @Override
+                    public Drawable load() throws CantContinueException {
+                        return download(pMapTileIndex, redirectCount, targetUrl, pFilesystemCache, pTileSource, true);
+                    }
+                });
+    }
+
+    /**
+     * @param pConditional if true and if the cache keeps the http validators of the tile,
+     *                     the request is conditional: the tile is not downloaded again if not modified
+     * @since 6.2.1
+     */
+    private Drawable download(final long pMapTileIndex, final int redirectCount, final String targetUrl,
+                              final IFilesystemCache pFilesystemCache, final OnlineTileSourceBase pTileSource,
+                              final boolean pConditional) throws CantContinueException {
 
         // prevent infinite looping of redirects, rare but very possible for misconfigured servers
         if (redirectCount > 3) {
@@ -60,10 +106,8 @@ public class TileDownloader {
             return null;
         }
         InputStream in = null;
-        OutputStream out = null;
-        HttpURLConnection c = null;
-        ByteArrayInputStream byteStream = null;
-        ByteArrayOutputStream dataStream = null;
+        ITileHttpTransport.Response response = null;
+        MapTileHostLimiter.Permit permit = null;
         try {
             final String tileURLString = targetUrl;
 
@@ -75,39 +119,68 @@ public class TileDownloader {
                 return null;
             }
 
-            // Try to enable TLSv1.2 and/or disable SSLv3 on older devices
-            // see:
-            // https://stackoverflow.com/questions/33567596/android-https-web-service-communication-ssl-tls-1-2/33567745#33567745
-            // https://stackoverflow.com/questions/26649389/how-to-disable-sslv3-in-android-for-httpsurlconnection#29946540
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT_WATCH && !compatibilitySocketFactorySet) {
-                SSLSocketFactory socketFactory = new CompatibilitySocketFactory(
-                        HttpsURLConnection.getDefaultSSLSocketFactory());
-                HttpsURLConnection.setDefaultSSLSocketFactory(socketFactory);
-                compatibilitySocketFactorySet = true;
+            final Map<String, String> headers = new HashMap<>();
+            headers.put(Configuration.getInstance().getUserAgentHttpHeader(), userAgent);
+            headers.putAll(Configuration.getInstance().getAdditionalHttpRequestProperties());
+            final IRevalidatingFilesystemCache revalidatingCache = pFilesystemCache instanceof IRevalidatingFilesystemCache
+                    ? (IRevalidatingFilesystemCache) pFilesystemCache : null;
+            final String[] validators = pConditional && revalidatingCache != null
+                    ? revalidatingCache.getValidators(pTileSource, pMapTileIndex) : null;
+            boolean conditional = false;
+            if (validators != null) {
+                if (validators[IRevalidatingFilesystemCache.VALIDATOR_ETAG] != null) {
+                    headers.put("If-None-Match", validators[IRevalidatingFilesystemCache.VALIDATOR_ETAG]);
+                    conditional = true;
+                }
+                if (validators[IRevalidatingFilesystemCache.VALIDATOR_LAST_MODIFIED] != null) {
+                    headers.put("If-Modified-Since", validators[IRevalidatingFilesystemCache.VALIDATOR_LAST_MODIFIED]);
+                    conditional = true;
+                }
             }
-
-            if (Configuration.getInstance().getHttpProxy() != null) {
-                c = (HttpURLConnection) new URL(tileURLString).openConnection(Configuration.getInstance().getHttpProxy());
-            } else {
-                c = (HttpURLConnection) new URL(tileURLString).openConnection();
+            try {
+                permit = MapTileHostLimiter.getInstance().acquire(
+                        new URL(tileURLString).getHost(), pTileSource.getTileSourcePolicy());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
             }
-            c.setUseCaches(true);
-            c.setRequestProperty(Configuration.getInstance().getUserAgentHttpHeader(), userAgent);
-            for (final Map.Entry<String, String> entry : Configuration.getInstance().getAdditionalHttpRequestProperties().entrySet()) {
-                c.setRequestProperty(entry.getKey(), entry.getValue());
+            response = mTransport.get(tileURLString, headers, pTileSource);
+            permit.setResponse(response.getCode(), response.getHeader("Retry-After"));
+
+            if (conditional && response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // only the expiration timestamp (and possibly the validators) change:
+                // no body, no rewrite of the cached tile
+                final long expirationTime = pTileSource.getTileSourcePolicy().computeExpirationTime(
+                        response, System.currentTimeMillis());
+                final String eTag = response.getHeader("ETag");
+                final String lastModified = response.getHeader("Last-Modified");
+                response.close();
+                permit.release();
+                if (revalidatingCache.updateExpirationTimestamp(pTileSource, pMapTileIndex, expirationTime,
+                        eTag, lastModified)) {
+                    final Drawable drawable = revalidatingCache.loadTile(pTileSource, pMapTileIndex);
+                    if (drawable != null) {
+                        Counters.increment(COUNTER_REVALIDATED);
+                        if (Configuration.getInstance().isDebugMapTileDownloader()) {
+                            Log.d(IMapView.LOGTAG, tileURLString + " not modified");
+                        }
+                        return drawable;
+                    }
+                }
+                // the cached tile vanished in the meantime
+                return download(pMapTileIndex, redirectCount, targetUrl, pFilesystemCache, pTileSource, false);
             }
-            c.connect();
 
             // Check to see if we got success
-            if (c.getResponseCode() != 200) {
-                switch (c.getResponseCode()) {
+            if (response.getCode() != 200) {
+                switch (response.getCode()) {
                     case 301:
                     case 302:
                     case 307:
                     case 308:
                         if (Configuration.getInstance().isMapTileDownloaderFollowRedirects()) {
                             //this is a redirect, check the header for a 'Location' header
-                            String redirectUrl = c.getHeaderField("Location");
+                            String redirectUrl = response.getHeader("Location");
                             if (redirectUrl != null) {
                                 if (redirectUrl.startsWith("/")) {
                                     //in this case we need to stitch together a full url
@@ -123,24 +196,25 @@ public class TileDownloader {
 
                                     redirectUrl = (secure ? "https://" : "http") + old.getHost() + ":" + port + redirectUrl;
                                 }
-                                Log.i(IMapView.LOGTAG, "Http redirect for MapTile: " + MapTileIndex.toString(pMapTileIndex) + " HTTP response: " + c.getResponseMessage() + " to url " + redirectUrl);
+                                Log.i(IMapView.LOGTAG, "Http redirect for MapTile: " + MapTileIndex.toString(pMapTileIndex) + " HTTP response: " + response.getMessage() + " to url " + redirectUrl);
+                                response.close(); // not to hold a connection of the host while following
+                                permit.release();
                                 return downloadTile(pMapTileIndex, redirectCount + 1, redirectUrl, pFilesystemCache, pTileSource);
                             }
                             break;
                         }    //else follow through the normal path of aborting the download
                     default: {
-                        Log.w(IMapView.LOGTAG, "Problem downloading MapTile: " + MapTileIndex.toString(pMapTileIndex) + " HTTP response: " + c.getResponseMessage());
+                        Log.w(IMapView.LOGTAG, "Problem downloading MapTile: " + MapTileIndex.toString(pMapTileIndex) + " HTTP response: " + response.getMessage());
                         if (Configuration.getInstance().isDebugMapTileDownloader()) {
                             Log.d(IMapView.LOGTAG, tileURLString);
                         }
                         Counters.tileDownloadErrors++;
-                        in = c.getErrorStream(); // in order to have the error stream purged by the finally block
                         return null;
                     }
                 }
             }
 
-            String mime = c.getHeaderField("Content-Type");
+            String mime = response.getHeader("Content-Type");
             if (Configuration.getInstance().isDebugMapTileDownloader()) {
                 Log.d(IMapView.LOGTAG, tileURLString + " success, mime is " + mime);
             }
@@ -148,20 +222,30 @@ public class TileDownloader {
                 Log.w(IMapView.LOGTAG, tileURLString + " success, however the mime type does not appear to be an image " + mime);
             }
 
-            in = c.getInputStream();
+            in = response.getBody();
 
-            dataStream = new ByteArrayOutputStream();
-            out = new BufferedOutputStream(dataStream, StreamUtils.IO_BUFFER_SIZE);
             final long expirationTime = pTileSource.getTileSourcePolicy().computeExpirationTime(
-                    c, System.currentTimeMillis());
-            StreamUtils.copy(in, out);
-            out.flush();
-            final byte[] data = dataStream.toByteArray();
-            byteStream = new ByteArrayInputStream(data);
+                    response, System.currentTimeMillis());
+            final String eTag = response.getHeader("ETag");
+            final String lastModified = response.getHeader("Last-Modified");
+            // the only copy of the tile, shared by the caches and the decoder
+            final byte[] data = TileBytes.read(in, getContentLength(response));
+            // the server part is over: the local work (caches, decoding) neither holds
+            // a slot of the host nor counts in its latency
+            response.close();
+            permit.release();
+            final ByteArrayInputStream byteStream = TileBytes.wrap(data);
+            MapTileEncodedCache.getInstance().put(pTileSource, pMapTileIndex, data, expirationTime);
+
+            Counters.increment(COUNTER_DOWNLOADED);
 
             // Save the data to the cache
             // this is the only point in which we insert tiles to the db or local file system.
-            if (pFilesystemCache != null) {
+            if (revalidatingCache != null) {
+                revalidatingCache.saveFile(pTileSource, pMapTileIndex, byteStream, expirationTime,
+                        eTag, lastModified);
+                byteStream.reset();
+            } else if (pFilesystemCache != null) {
                 pFilesystemCache.saveFile(pTileSource, pMapTileIndex, byteStream, expirationTime);
                 byteStream.reset();
             }
@@ -185,18 +269,33 @@ public class TileDownloader {
             Log.e(IMapView.LOGTAG, "Error downloading MapTile: " + MapTileIndex.toString(pMapTileIndex), e);
         } finally {
             StreamUtils.closeStream(in);
-            StreamUtils.closeStream(out);
-            StreamUtils.closeStream(byteStream);
-            StreamUtils.closeStream(dataStream);
-            try {
-                c.disconnect();
-            } catch (Exception ex) {
+            if (response != null) {
+                response.close(); // back to the keep-alive pool
+            }
+            if (permit != null) {
+                permit.release();
             }
         }
 
         return null;
     }
 
+    /**
+     * @return the announced length of the body, or -1 if unknown
+     * @since 6.2.1
+     */
+    private int getContentLength(final ITileHttpTransport.Response pResponse) {
+        final String contentLength = pResponse.getHeader("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Integer.parseInt(contentLength.trim());
+            } catch (NumberFormatException e) {
+                // unknown length
+            }
+        }
+        return -1;
+    }
+
     /**
      * @return the Epoch timestamp corresponding to the http header (in milliseconds), or null
      * @since 6.0.3
@@ -268,97 +367,4 @@ public class TileDownloader {
 
         return pNow + OpenStreetMapTileProviderConstants.DEFAULT_MAXIMUM_CACHED_FILE_AGE + extension;
     }
-
-    /**
-     * Proxy for {@link SSLSocketFactory} that tries to enable TLSv1.2 and/or disable SSLv3 on
-     * older devices to improve security and compatibility with modern https server configurations
-     *
-     * @since 6.1.7
-     */
-    private static class CompatibilitySocketFactory extends SSLSocketFactory {
-        SSLSocketFactory sslSocketFactory;
-
-        CompatibilitySocketFactory(SSLSocketFactory sslSocketFactory) {
-            super();
-            this.sslSocketFactory = sslSocketFactory;
-        }
-
-        @Override
-        public String[] getDefaultCipherSuites() {
-            return sslSocketFactory.getDefaultCipherSuites();
-        }
-
-        @Override
-        public String[] getSupportedCipherSuites() {
-            return sslSocketFactory.getSupportedCipherSuites();
-        }
-
-        @Override
-        public Socket createSocket() throws IOException {
-            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket();
-            return upgradeTlsAndRemoveSsl(socket);
-        }
-
-        @Override
-        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
-            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(s, host, port, autoClose);
-            return upgradeTlsAndRemoveSsl(socket);
-        }
-
-        @Override
-        public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
-            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(host, port);
-            return upgradeTlsAndRemoveSsl(socket);
-        }
-
-        @Override
-        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException,
-                UnknownHostException {
-            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(host, port, localHost, localPort);
-            return upgradeTlsAndRemoveSsl(socket);
-        }
-
-        @Override
-        public Socket createSocket(InetAddress host, int port) throws IOException {
-            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(host, port);
-            return upgradeTlsAndRemoveSsl(socket);
-        }
-
-        @Override
-        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
-                throws IOException {
-            SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(address, port, localAddress, localPort);
-            return upgradeTlsAndRemoveSsl(socket);
-        }
-
-        private SSLSocket upgradeTlsAndRemoveSsl(SSLSocket socket) {
-            String[] supportedProtocols = socket.getSupportedProtocols();
-            String[] enabledProtocols = socket.getEnabledProtocols();
-            String[] newEnabledProtocols;
-
-            // If TLS 1.2 is supported just set it as the only enabled protocol an be done with it,
-            // as it's guaranteed to be the most modern protocol on devices on API<21 (1.3 only
-            // exists since August 2018)
-            if (Arrays.binarySearch(supportedProtocols, "TLSv1.2") >= 0) {
-                newEnabledProtocols = new String[]{"TLSv1.2"};
-            } else {
-                int sslEnabled = Arrays.binarySearch(enabledProtocols, "SSLv3");
-                if (sslEnabled >= 0) {
-                    newEnabledProtocols = new String[enabledProtocols.length - 1];
-                    System.arraycopy(enabledProtocols, 0, newEnabledProtocols, 0, sslEnabled);
-                    if (newEnabledProtocols.length > sslEnabled) {
-                        System.arraycopy(
-                                enabledProtocols, sslEnabled + 1,
-                                newEnabledProtocols, sslEnabled,
-                                newEnabledProtocols.length - sslEnabled);
-                    }
-                } else {
-                    newEnabledProtocols = enabledProtocols;
-                }
-            }
-
-            socket.setEnabledProtocols(newEnabledProtocols);
-            return socket;
-        }
-    }
 }
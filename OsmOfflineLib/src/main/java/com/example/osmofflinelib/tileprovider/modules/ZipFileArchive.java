@@ -3,28 +3,75 @@ package com.example.osmofflinelib.tileprovider.modules;
 import android.util.Log;
 import com.example.osmofflinelib.api.IMapView;
 import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
+import com.example.osmofflinelib.utils.MapTileArea;
+import com.example.osmofflinelib.utils.MapTileAreaList;
 import com.example.osmofflinelib.utils.MapTileIndex;
+import com.example.osmofflinelib.utils.MapTileLinkedMap;
+import com.example.osmofflinelib.utils.MapTileList;
+import com.example.osmofflinelib.utils.TileSystem;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
-public class ZipFileArchive implements IArchiveFile {
+/**
+ * Tiles stored in a ZIP file, as "tile source/zoom/x/y.extension" entries
+ * <p>
+ * The entry names are indexed by tile when the archive is opened, in the same pass as the scan
+ * of the tile sources: a tile lookup is then a primitive hash table lookup, without building a path.
+ * Only the names are kept, not the {@link ZipEntry}s, which are much larger.
+ * As {@link ZipFile} already reads the whole central directory when it opens the file,
+ * a persisted index would save very little.
+ */
+public class ZipFileArchive implements IBoundedArchiveFile {
+
+    private static final String ZOOM_0_TILE = "/0/0/0";
+
+    /**
+     * The file extension assumed when the tile source is ignored
+     */
+    private static final String DEFAULT_ENDING = ".png";
+
+    private static final MapTileLinkedMap<String> NO_ENTRY = new MapTileLinkedMap<>();
 
     protected ZipFile mZipFile;
     private boolean mIgnoreTileSource = false;
 
+    /**
+     * Entry names by tile source and file extension, in the order of the ZIP file;
+     * read-only once indexed, hence the unsynchronized lookups
+     */
+    private final Map<String, MapTileLinkedMap<String>> mTables = new LinkedHashMap<>();
+    private final Set<String> mTileSources = new HashSet<>();
+    private boolean mIndexed;
+    private MapTileAreaList mCoverage;
+
+    /**
+     * Tables by {@link ITileSource#name()}; null value if the paths of the tile source
+     * cannot be matched with the index
+     */
+    private final Map<String, MapTileLinkedMap<String>> mTablesByTileSource = new HashMap<>();
+
+    /**
+     * All the {@link #DEFAULT_ENDING} entries, for {@link #setIgnoreTileSource(boolean)}
+     */
+    private volatile MapTileLinkedMap<String> mAnySourceTable;
+
     public ZipFileArchive() {
     }
 
     private ZipFileArchive(final ZipFile pZipFile) {
         mZipFile = pZipFile;
+        index();
     }
 
     public static ZipFileArchive getZipFileArchive(final File pFile) throws ZipException, IOException {
@@ -36,37 +83,39 @@ public class ZipFileArchive implements IArchiveFile {
      * If set to true, tiles from this archive will be loaded regardless of their associated tile source name
      */
     public void setIgnoreTileSource(boolean pIgnoreTileSource) {
+        if (pIgnoreTileSource && mAnySourceTable == null) {
+            // the first tile source in ZIP internal order wins
+            final MapTileLinkedMap<String> table = new MapTileLinkedMap<>();
+            for (final Map.Entry<String, MapTileLinkedMap<String>> entry : mTables.entrySet()) {
+                if (entry.getKey().endsWith(getTableKey("", DEFAULT_ENDING))) {
+                    putAbsent(table, entry.getValue());
+                }
+            }
+            mAnySourceTable = table;
+        }
         mIgnoreTileSource = pIgnoreTileSource;
     }
 
     @Override
     public void init(File pFile) throws Exception {
         mZipFile = new ZipFile(pFile);
+        index();
     }
 
     @Override
     public InputStream getInputStream(final ITileSource pTileSource, final long pMapTileIndex) {
         try {
+            final String name;
             if (!mIgnoreTileSource) {
-                final String path = pTileSource.getTileRelativeFilenameString(pMapTileIndex);
-                final ZipEntry entry = mZipFile.getEntry(path);
-                if (entry != null) {
-                    return mZipFile.getInputStream(entry);
-                }
+                final MapTileLinkedMap<String> table = getTable(pTileSource);
+                name = table != null ? table.peek(pMapTileIndex)
+                        : pTileSource.getTileRelativeFilenameString(pMapTileIndex);
             } else {
-                // Search all sources in ZIP internal order
-                Enumeration<? extends ZipEntry> entries = mZipFile.entries();
-                while (entries.hasMoreElements()) {
-                    ZipEntry nextElement = entries.nextElement();
-                    String str = nextElement.getName();
-                    if (str.contains("/")) {
-                        String path = getTileRelativeFilenameString(pMapTileIndex, str.split("/")[0]);
-                        ZipEntry entry = mZipFile.getEntry(path);
-                        if (entry != null) {
-                            return mZipFile.getInputStream(entry);
-                        }
-                    }
-                }
+                name = mAnySourceTable.peek(pMapTileIndex);
+            }
+            final ZipEntry entry = name == null ? null : mZipFile.getEntry(name);
+            if (entry != null) {
+                return mZipFile.getInputStream(entry);
             }
         } catch (final IOException e) {
             Log.w(IMapView.LOGTAG, "Error getting zip stream: " + MapTileIndex.toString(pMapTileIndex), e);
@@ -74,37 +123,8 @@ public class ZipFileArchive implements IArchiveFile {
         return null;
     }
 
-    /**
-     * @since 6.0
-     * Creating paths for ZIP scanning
-     */
-    private String getTileRelativeFilenameString(final long pMapTileIndex, final String pathBase) {
-        final StringBuilder sb = new StringBuilder();
-        sb.append(pathBase);
-        sb.append('/');
-        sb.append(MapTileIndex.getZoom(pMapTileIndex));
-        sb.append('/');
-        sb.append(MapTileIndex.getX(pMapTileIndex));
-        sb.append('/');
-        sb.append(MapTileIndex.getY(pMapTileIndex));
-        sb.append(".png");
-        return sb.toString();
-    }
-
     public Set<String> getTileSources() {
-        Set<String> ret = new HashSet<String>();
-        try {
-            Enumeration<? extends ZipEntry> entries = mZipFile.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry nextElement = entries.nextElement();
-                String str = nextElement.getName();
-                if (str.contains("/"))
-                    ret.add(str.split("/")[0]);
-            }
-        } catch (final Exception e) {
-            Log.w(IMapView.LOGTAG, "Error getting tile sources: ", e);
-        }
-        return ret;
+        return new HashSet<>(mTileSources);
     }
 
     @Override
@@ -115,9 +135,157 @@ public class ZipFileArchive implements IArchiveFile {
         }
     }
 
+    /**
+     * @return for each zoom level, the rectangle containing all the tiles of the ZIP file,
+     * or null if some files could not be read as tiles: then only a lookup by path can find them
+     * @since 6.2.1
+     */
+    @Override
+    public MapTileAreaList getCoverage() {
+        return mCoverage;
+    }
+
     @Override
     public String toString() {
         return "ZipFileArchive [mZipFile=" + mZipFile.getName() + "]";
     }
 
+    /**
+     * Scans all the entries once
+     */
+    private void index() {
+        boolean covered = true;
+        final int[][] bounds = new int[TileSystem.primaryKeyMaxZoomLevel + 1][]; // xMin, yMin, xMax, yMax
+        try {
+            final Enumeration<? extends ZipEntry> entries = mZipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final String name = entry.getName();
+                final int firstSlash = name.indexOf('/');
+                if (firstSlash == -1) {
+                    continue;
+                }
+                mTileSources.add(name.substring(0, firstSlash));
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                // ".../zoom/x/y.extension"
+                final int ySlash = name.lastIndexOf('/');
+                final int xSlash = ySlash <= 0 ? -1 : name.lastIndexOf('/', ySlash - 1);
+                final int zoomSlash = xSlash <= 0 ? -1 : name.lastIndexOf('/', xSlash - 1);
+                if (zoomSlash <= 0) {
+                    covered = false; // another path layout: maybe tiles, out of the coverage
+                    continue;
+                }
+                int dot = name.indexOf('.', ySlash);
+                if (dot == -1) {
+                    dot = name.length();
+                }
+                final int zoom = parse(name, zoomSlash + 1, xSlash);
+                final int x = parse(name, xSlash + 1, ySlash);
+                final int y = parse(name, ySlash + 1, dot);
+                if (zoom < 0 || zoom > TileSystem.primaryKeyMaxZoomLevel
+                        || x < 0 || x >= 1 << zoom || y < 0 || y >= 1 << zoom) {
+                    covered = false;
+                    continue;
+                }
+                final String key = getTableKey(name.substring(0, zoomSlash), name.substring(dot));
+                MapTileLinkedMap<String> table = mTables.get(key);
+                if (table == null) {
+                    table = new MapTileLinkedMap<>();
+                    mTables.put(key, table);
+                }
+                table.put(MapTileIndex.getTileIndex(zoom, x, y), name, 0);
+                final int[] zoomBounds = bounds[zoom];
+                if (zoomBounds == null) {
+                    bounds[zoom] = new int[]{x, y, x, y};
+                } else {
+                    zoomBounds[0] = Math.min(zoomBounds[0], x);
+                    zoomBounds[1] = Math.min(zoomBounds[1], y);
+                    zoomBounds[2] = Math.max(zoomBounds[2], x);
+                    zoomBounds[3] = Math.max(zoomBounds[3], y);
+                }
+            }
+        } catch (final Exception e) {
+            Log.w(IMapView.LOGTAG, "Error indexing zip file: " + mZipFile.getName(), e);
+            return; // not indexed, no coverage: the archive remains a candidate for all tiles
+        }
+        mIndexed = true;
+        if (!covered) {
+            return;
+        }
+        final MapTileAreaList coverage = new MapTileAreaList();
+        for (int zoom = 0; zoom < bounds.length; zoom++) {
+            if (bounds[zoom] != null) {
+                coverage.getList().add(new MapTileArea().set(zoom,
+                        bounds[zoom][0], bounds[zoom][1], bounds[zoom][2], bounds[zoom][3]));
+            }
+        }
+        mCoverage = coverage;
+    }
+
+    /**
+     * @return the table of that tile source, or null if its paths cannot be matched with the index
+     */
+    private MapTileLinkedMap<String> getTable(final ITileSource pTileSource) {
+        if (!mIndexed) {
+            return null;
+        }
+        final String name = pTileSource.name();
+        synchronized (mTablesByTileSource) {
+            if (mTablesByTileSource.containsKey(name)) {
+                return mTablesByTileSource.get(name);
+            }
+        }
+        // the path layout of the tile source, from a sample path
+        final String sample = pTileSource.getTileRelativeFilenameString(MapTileIndex.getTileIndex(0, 0, 0));
+        final int index = sample.lastIndexOf(ZOOM_0_TILE);
+        MapTileLinkedMap<String> table = null;
+        if (index != -1) {
+            table = mTables.get(getTableKey(sample.substring(0, index), sample.substring(index + ZOOM_0_TILE.length())));
+            if (table == null) {
+                table = NO_ENTRY;
+            }
+        }
+        synchronized (mTablesByTileSource) {
+            mTablesByTileSource.put(name, table);
+        }
+        return table;
+    }
+
+    private static String getTableKey(final String pPathBase, final String pEnding) {
+        return pPathBase + '*' + pEnding;
+    }
+
+    /**
+     * @return the decimal value, or -1 if not a number
+     */
+    private static int parse(final String pString, final int pStart, final int pEnd) {
+        if (pStart >= pEnd || pEnd - pStart > 9) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = pStart; i < pEnd; i++) {
+            final char c = pString.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /**
+     * Adds the tiles of another table that are not already there
+     */
+    private static void putAbsent(final MapTileLinkedMap<String> pTable, final MapTileLinkedMap<String> pOther) {
+        final MapTileList keys = new MapTileList();
+        pOther.getKeys(keys);
+        for (int i = 0; i < keys.getSize(); i++) {
+            final long key = keys.get(i);
+            if (!pTable.containsKey(key)) {
+                pTable.put(key, pOther.peek(key), 0);
+            }
+        }
+    }
 }
@@ -5,6 +5,7 @@ import com.example.osmofflinelib.api.IMapView;
 import com.example.osmofflinelib.config.Configuration;
 import com.example.osmofflinelib.config.DefaultConfigurationProvider;
 import com.example.osmofflinelib.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import com.example.osmofflinelib.tileprovider.modules.ITileHttpTransport;
 import com.example.osmofflinelib.tileprovider.modules.TileDownloader;
 
 import java.net.HttpURLConnection;
@@ -13,6 +14,7 @@ import java.util.Date;
 /**
  * Online Tile Source Usage Policy, including<ul>
  * <li>the max number of concurrent downloads</li>
+ * <li>the max number of requests per second</li>
  * <li>if it accepts a meaningless user agent</li>
  * <li>if it accepts bulk downloads</li>
  * <li>if the user agent must be normalized</li>
@@ -50,20 +52,46 @@ public class TileSourcePolicy {
 
     private final int mFlags;
 
+    /**
+     * maximum number of requests per second to a host of the tile source
+     *
+     * @since 6.2.1
+     */
+    private final double mMaxRequestsPerSecond;
+
     public TileSourcePolicy() {
         this(0, 0);
     }
 
     public TileSourcePolicy(final int pMaxConcurrent,
                             final int pFlags) {
+        this(pMaxConcurrent, pFlags, 0);
+    }
+
+    /**
+     * @param pMaxRequestsPerSecond 0 for no limit
+     * @since 6.2.1
+     */
+    public TileSourcePolicy(final int pMaxConcurrent,
+                            final int pFlags,
+                            final double pMaxRequestsPerSecond) {
         mMaxConcurrent = pMaxConcurrent;
         mFlags = pFlags;
+        mMaxRequestsPerSecond = pMaxRequestsPerSecond;
     }
 
     public int getMaxConcurrent() {
         return mMaxConcurrent;
     }
 
+    /**
+     * @return the maximum number of requests per second to a host, or 0 if no limit
+     * @since 6.2.1
+     */
+    public double getMaxRequestsPerSecond() {
+        return mMaxRequestsPerSecond;
+    }
+
     public boolean acceptsBulkDownload() {
         return (mFlags & FLAG_NO_BULK) == 0;
     }
@@ -171,4 +199,18 @@ public class TileSourcePolicy {
         }
         return result;
     }
+
+    /**
+     * @return the expiration time (as Epoch timestamp in milliseconds)
+     * @since 6.2.1
+     */
+    public long computeExpirationTime(final ITileHttpTransport.Response pResponse, final long pNow) {
+        final String expires = pResponse.getHeader(OpenStreetMapTileProviderConstants.HTTP_EXPIRES_HEADER);
+        final String cacheControl = pResponse.getHeader(OpenStreetMapTileProviderConstants.HTTP_CACHECONTROL_HEADER);
+        final long result = computeExpirationTime(expires, cacheControl, pNow);
+        if (Configuration.getInstance().isDebugMapTileDownloader()) {
+            Log.d(IMapView.LOGTAG, "computeExpirationTime('" + expires + "','" + cacheControl + "'," + pNow + "=" + result);
+        }
+        return result;
+    }
 }
@@ -53,18 +53,33 @@ public class Counters {
      * @since 6.2.0
      */
     public static void reset(final String pTag) {
-        sMap.remove(pTag);
+        synchronized (sMap) {
+            sMap.remove(pTag);
+        }
     }
 
     /**
      * @since 6.2.0
      */
     public static void increment(final String pTag) {
-        final Integer value = sMap.get(pTag);
-        if (value == null) {
-            sMap.put(pTag, 1);
-        } else {
-            sMap.put(pTag, value + 1);
+        synchronized (sMap) {
+            final Integer value = sMap.get(pTag);
+            if (value == null) {
+                sMap.put(pTag, 1);
+            } else {
+                sMap.put(pTag, value + 1);
+            }
+        }
+    }
+
+    /**
+     * Sets the current value of a gauge, e.g. a limit
+     *
+     * @since 6.2.1
+     */
+    public static void set(final String pTag, final int pValue) {
+        synchronized (sMap) {
+            sMap.put(pTag, pValue);
         }
     }
 
@@ -72,7 +87,10 @@ public class Counters {
      * @since 6.2.0
      */
     public static int get(final String pTag) {
-        final Integer value = sMap.get(pTag);
+        final Integer value;
+        synchronized (sMap) {
+            value = sMap.get(pTag);
+        }
         if (value == null) {
             return 0;
         } else {
@@ -0,0 +1,128 @@
+package com.example.osmofflinelib.tileprovider.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads a downloaded tile into a single byte array, shared by all its consumers
+ * (memory cache, file system cache, bitmap decoder) without further copies.
+ * <p>
+ * When the length is known in advance the tile is read directly into its final array;
+ * otherwise it is read into a growable buffer reused by the thread, then copied once.
+ * <p>
+ * don't use android classes here, since this class is used outside of android
+ *
+ * @since 6.2.1
+ */
+public class TileBytes {
+
+    private static final int INITIAL_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Above that size, a buffer is not kept for the next tile, and an announced length is not trusted
+     */
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<>();
+
+    /**
+     * This is a utility class with only static members.
+     */
+    private TileBytes() {
+    }
+
+    /**
+     * @param pExpectedLength the announced length (e.g. Content-Length), or a negative value if unknown
+     * @return the exact content of the stream; the array itself for a {@link #wrap(byte[])} stream not read yet
+     */
+    public static byte[] read(final InputStream pStream, final int pExpectedLength) throws IOException {
+        if (pStream instanceof Input) {
+            final byte[] bytes = ((Input) pStream).consume();
+            if (bytes != null) {
+                return bytes;
+            }
+        }
+        if (pExpectedLength >= 0 && pExpectedLength <= MAX_BUFFER_SIZE) {
+            final byte[] result = new byte[pExpectedLength];
+            int length = 0;
+            while (length < pExpectedLength) {
+                final int read = pStream.read(result, length, pExpectedLength - length);
+                if (read == -1) {
+                    throw new EOFException("Expected " + pExpectedLength + " bytes, got " + length);
+                }
+                length += read;
+            }
+            final int next = pStream.read();
+            if (next == -1) {
+                return result;
+            }
+            // longer than announced: go on with the buffer
+            final byte[] buffer = getBuffer(pExpectedLength + INITIAL_BUFFER_SIZE);
+            System.arraycopy(result, 0, buffer, 0, length);
+            buffer[length++] = (byte) next;
+            return read(pStream, buffer, length);
+        }
+        return read(pStream, getBuffer(INITIAL_BUFFER_SIZE), 0);
+    }
+
+    /**
+     * @return a stream on the whole array, whose bytes can be retrieved without copy
+     */
+    public static Input wrap(final byte[] pBytes) {
+        return new Input(pBytes);
+    }
+
+    /**
+     * @return the array behind the stream if it's a {@link #wrap(byte[])} stream not read yet, or null
+     */
+    public static byte[] getBytes(final InputStream pStream) {
+        if (pStream instanceof Input) {
+            return ((Input) pStream).getBytes();
+        }
+        return null;
+    }
+
+    private static byte[] read(final InputStream pStream, byte[] pBuffer, int pLength) throws IOException {
+        int read;
+        while ((read = pStream.read(pBuffer, pLength, pBuffer.length - pLength)) != -1) {
+            pLength += read;
+            if (pLength == pBuffer.length) {
+                pBuffer = Arrays.copyOf(pBuffer, pBuffer.length * 2);
+            }
+        }
+        if (pBuffer.length <= MAX_BUFFER_SIZE) {
+            sBuffer.set(pBuffer);
+        }
+        return Arrays.copyOf(pBuffer, pLength);
+    }
+
+    private static byte[] getBuffer(final int pMinSize) {
+        final byte[] buffer = sBuffer.get();
+        if (buffer != null && buffer.length >= pMinSize) {
+            return buffer;
+        }
+        return new byte[pMinSize];
+    }
+
+    public static class Input extends ByteArrayInputStream {
+
+        private Input(final byte[] pBytes) {
+            super(pBytes);
+        }
+
+        private byte[] getBytes() {
+            return pos == 0 ? buf : null;
+        }
+
+        private synchronized byte[] consume() {
+            final byte[] bytes = getBytes();
+            if (bytes != null) {
+                pos = count;
+            }
+            return bytes;
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package com.example.osmofflinelib.utils;
 
+import com.example.osmofflinelib.tileprovider.utils.TileBytes;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * GEMF File handler class.
@@ -51,8 +57,16 @@ public class GEMFFile {
     private final LinkedHashMap<Integer, String> mSources = new LinkedHashMap<Integer, String>();
 
     // Fields to restrict to a single source for reading
-    private boolean mSourceLimited = false;
-    private int mCurrentSource = 0;
+    private volatile boolean mSourceLimited = false;
+    private volatile int mCurrentSource = 0;
+
+    // Positional - therefore thread-safe - access to the file parts, for reading
+    private AtomicReferenceArray<FileChannel> mChannels;
+    private boolean mClosed;
+
+    // Ranges per zoom level sorted by xMin, with the running max of xMax, for reading
+    private GEMFRange[][] mRangesPerZoom;
+    private int[][] mMaxXPerZoom;
 
 
     // ===========================================================
@@ -405,6 +419,14 @@ public class GEMFFile {
      * Close open GEMF file handles.
      */
     public void close() throws IOException {
+        synchronized (this) {
+            mClosed = true;
+        }
+        if (mChannels != null) {
+            for (int i = 0; i < mChannels.length(); i++) {
+                mChannels.get(i).close();
+            }
+        }
         for (final RandomAccessFile file : mFiles) {
             file.close();
         }
@@ -433,6 +455,11 @@ public class GEMFFile {
                 break;
             }
         }
+
+        mChannels = new AtomicReferenceArray<FileChannel>(mFiles.size());
+        for (int j = 0; j < mFiles.size(); j++) {
+            mChannels.set(j, mFiles.get(j).getChannel());
+        }
     }
 
 
@@ -483,8 +510,132 @@ public class GEMFFile {
             rs.yMax = baseFile.readInt();
             rs.sourceIndex = baseFile.readInt();
             rs.offset = baseFile.readLong();
+            rs.order = i;
             mRangeData.add(rs);
         }
+
+        indexRanges();
+    }
+
+
+    /*
+     * Index the ranges by zoom level, then by xMin, for an O(log n) lookup.
+     *
+     * @since 6.2.1
+     */
+    private void indexRanges() {
+        int maxZoom = -1;
+        for (final GEMFRange rs : mRangeData) {
+            maxZoom = Math.max(maxZoom, rs.zoom);
+        }
+        mRangesPerZoom = new GEMFRange[maxZoom + 1][];
+        mMaxXPerZoom = new int[maxZoom + 1][];
+        for (int zoom = 0; zoom <= maxZoom; zoom++) {
+            final List<GEMFRange> ranges = new ArrayList<GEMFRange>();
+            for (final GEMFRange rs : mRangeData) {
+                if (rs.zoom == zoom) {
+                    ranges.add(rs);
+                }
+            }
+            Collections.sort(ranges, new Comparator<GEMFRange>() {
+                @Override
+                public int compare(final GEMFRange pRange1, final GEMFRange pRange2) {
+                    return pRange1.xMin.compareTo(pRange2.xMin);
+                }
+            });
+            final GEMFRange[] sorted = ranges.toArray(new GEMFRange[ranges.size()]);
+            final int[] maxX = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                maxX[i] = Math.max(i == 0 ? Integer.MIN_VALUE : maxX[i - 1], sorted[i].xMax);
+            }
+            mRangesPerZoom[zoom] = sorted;
+            mMaxXPerZoom[zoom] = maxX;
+        }
+    }
+
+
+    /*
+     * Find the range containing the Z/X/Y tile, the first one in the header if several do.
+     *
+     * @since 6.2.1
+     */
+    private GEMFRange findRange(final int pX, final int pY, final int pZ) {
+        if (pZ < 0 || pZ >= mRangesPerZoom.length) {
+            return null;
+        }
+        final GEMFRange[] ranges = mRangesPerZoom[pZ];
+        final int[] maxX = mMaxXPerZoom[pZ];
+
+        // last range whose xMin <= pX
+        int low = 0;
+        int high = ranges.length - 1;
+        int index = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (ranges[middle].xMin <= pX) {
+                index = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        final boolean sourceLimited = mSourceLimited;
+        final int currentSource = mCurrentSource;
+        GEMFRange result = null;
+        for (int i = index; i >= 0 && maxX[i] >= pX; i--) {
+            final GEMFRange rs = ranges[i];
+            if ((pX <= rs.xMax)
+                    && (pY >= rs.yMin)
+                    && (pY <= rs.yMax)
+                    && ((!sourceLimited) || (rs.sourceIndex == currentSource))
+                    && (result == null || rs.order < result.order)) {
+                result = rs;
+            }
+        }
+        return result;
+    }
+
+
+    /*
+     * Return the channel of a file part, reopened if a reader was interrupted
+     * (which closes the channel for all readers).
+     *
+     * @since 6.2.1
+     */
+    private FileChannel getChannel(final int pIndex) throws IOException {
+        final FileChannel channel = mChannels.get(pIndex);
+        if (channel.isOpen()) {
+            return channel;
+        }
+        synchronized (this) {
+            if (mClosed) {
+                throw new ClosedChannelException();
+            }
+            FileChannel current = mChannels.get(pIndex);
+            if (!current.isOpen()) {
+                current = new RandomAccessFile(mFileNames.get(pIndex), "r").getChannel();
+                mChannels.set(pIndex, current);
+            }
+            return current;
+        }
+    }
+
+
+    /*
+     * Read exactly the remaining bytes of the buffer, from that position, without moving
+     * any shared file pointer.
+     *
+     * @since 6.2.1
+     */
+    private void readFully(final int pFileIndex, final ByteBuffer pBuffer, final long pPosition) throws IOException {
+        final FileChannel channel = getChannel(pFileIndex);
+        while (pBuffer.hasRemaining()) {
+            final int read = channel.read(pBuffer, pPosition + pBuffer.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of " + mFileNames.get(pFileIndex));
+            }
+        }
     }
 
 
@@ -538,109 +689,84 @@ public class GEMFFile {
         return zoomLevels;
     }
 
+    /*
+     * Return the tile ranges contained within this archive, for all sources,
+     * as {zoom, xMin, yMin, xMax, yMax} arrays.
+     *
+     * @since 6.2.1
+     */
+    public List<int[]> getRanges() {
+        final List<int[]> result = new ArrayList<int[]>();
+        for (final GEMFRange rs : mRangeData) {
+            result.add(new int[]{rs.zoom, rs.xMin, rs.yMin, rs.xMax, rs.yMax});
+        }
+        return result;
+    }
+
     /*
      * Get an InputStream for the tile data specified by the Z/X/Y coordinates.
+     * Can be called concurrently.
      *
      * @return InputStream of tile data, or null if not found.
      */
     public InputStream getInputStream(final int pX, final int pY, final int pZ) {
-        GEMFRange range = null;
-
-        for (final GEMFRange rs : mRangeData) {
-            if ((pZ == rs.zoom)
-                    && (pX >= rs.xMin)
-                    && (pX <= rs.xMax)
-                    && (pY >= rs.yMin)
-                    && (pY <= rs.yMax)
-                    && ((!mSourceLimited) || (rs.sourceIndex == mCurrentSource))) {
-                range = rs;
-                break;
+        try {
+            final byte[] bits = getBytes(pX, pY, pZ);
+            if (bits != null) {
+                return TileBytes.wrap(bits); // no copy for TileBytes.read
             }
+        } catch (final IOException e) {
+            e.printStackTrace();
         }
+        return null;
+    }
 
+    /*
+     * Get the tile data specified by the Z/X/Y coordinates, read directly into an array
+     * of the exact size. Can be called concurrently.
+     *
+     * @return tile data, or null if not found.
+     * @since 6.2.1
+     */
+    public byte[] getBytes(final int pX, final int pY, final int pZ) throws IOException {
+        final GEMFRange range = findRange(pX, pY, pZ);
         if (range == null) {
             return null;
         }
 
-        long dataOffset;
-        int dataLength;
-        InputStream returnValue = null;
-        GEMFInputStream stream = null;
-        ByteArrayOutputStream byteBuffer = null;
-        try {
-
-            // Determine offset to requested tile record in the header
-            final int numY = range.yMax + 1 - range.yMin;
-            final int xIndex = pX - range.xMin;
-            final int yIndex = pY - range.yMin;
-            long offset = (xIndex * numY) + yIndex;
-            offset *= (U32_SIZE + U64_SIZE);
-            offset += range.offset;
-
-
-            // Read tile record from header, get offset and size of data record
-            final RandomAccessFile baseFile = mFiles.get(0);
-            baseFile.seek(offset);
-            dataOffset = baseFile.readLong();
-            dataLength = baseFile.readInt();
-
-            // Seek to correct data file and offset.
-            RandomAccessFile pDataFile = mFiles.get(0);
-            int index = 0;
-            if (dataOffset > mFileSizes.get(0)) {
-                final int fileListCount = mFileSizes.size();
-
-                while ((index < (fileListCount - 1)) &&
-                        (dataOffset > mFileSizes.get(index))) {
-
-                    dataOffset -= mFileSizes.get(index);
-                    index += 1;
-                }
-
-                pDataFile = mFiles.get(index);
-            }
-
-            // Read data block into a byte array
-            pDataFile.seek(dataOffset);
+        // Determine offset to requested tile record in the header
+        final int numY = range.yMax + 1 - range.yMin;
+        final int xIndex = pX - range.xMin;
+        final int yIndex = pY - range.yMin;
+        long offset = ((long) xIndex * numY) + yIndex;
+        offset *= (U32_SIZE + U64_SIZE);
+        offset += range.offset;
+
+        // Read tile record from header, get offset and size of data record
+        final ByteBuffer record = ByteBuffer.allocate(U64_SIZE + U32_SIZE);
+        readFully(0, record, offset);
+        long dataOffset = record.getLong(0);
+        final int dataLength = record.getInt(U64_SIZE);
+        if (dataLength <= 0) {
+            return null;
+        }
 
-            stream = new GEMFInputStream(mFileNames.get(index), dataOffset, dataLength);
-            // this dynamically extends to take the bytes you read
-            byteBuffer = new ByteArrayOutputStream();
+        // Find the data file and offset.
+        int index = 0;
+        if (dataOffset >= mFileSizes.get(0)) {
+            final int fileListCount = mFileSizes.size();
 
-            // this is storage overwritten on each iteration with bytes
-            int bufferSize = 1024;
-            byte[] buffer = new byte[bufferSize];
+            while ((index < (fileListCount - 1)) &&
+                    (dataOffset >= mFileSizes.get(index))) {
 
-            // we need to know how may bytes were read to write them to the byteBuffer
-            int len = 0;
-            while (stream.available() > 0) {
-                len = stream.read(buffer);
-                if (len > 0)
-                    byteBuffer.write(buffer, 0, len);
+                dataOffset -= mFileSizes.get(index);
+                index += 1;
             }
-
-            // and then we can return your byte array.
-            byte[] bits = byteBuffer.toByteArray();
-            returnValue = new ByteArrayInputStream(bits);
-
-        } catch (final IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (byteBuffer != null)
-                try {
-                    byteBuffer.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            if (stream != null)
-                try {
-                    stream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-
         }
-        return returnValue;
+
+        final byte[] bits = new byte[dataLength];
+        readFully(index, ByteBuffer.wrap(bits), dataOffset);
+        return bits;
     }
 
 
@@ -657,6 +783,7 @@ public class GEMFFile {
         Integer yMax;
         Integer sourceIndex;
         Long offset;
+        int order; // position in the header
 
         @Override
         public String toString() {
@@ -665,58 +792,4 @@ public class GEMFFile {
                     sourceIndex, zoom, xMin, xMax, yMin, yMax, offset);
         }
     }
-
-    // InputStream class to hand to the tile loader system. It wants an InputStream, and it is more
-    // efficient to create a new open file handle pointed to the right place, than to buffer the file
-    // in memory.
-    class GEMFInputStream extends InputStream {
-
-        RandomAccessFile raf;
-        int remainingBytes;
-
-        GEMFInputStream(final String filePath, final long offset, final int length) throws IOException {
-            this.raf = new RandomAccessFile(filePath, "r");
-            raf.seek(offset);
-
-            this.remainingBytes = length;
-        }
-
-        @Override
-        public int available() {
-            return remainingBytes;
-        }
-
-        @Override
-        public void close() throws IOException {
-            raf.close();
-        }
-
-        @Override
-        public boolean markSupported() {
-            return false;
-        }
-
-        @Override
-        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
-            final int read = raf.read(buffer, offset, length > remainingBytes ? remainingBytes : length);
-
-            remainingBytes -= read;
-            return read;
-        }
-
-        @Override
-        public int read() throws IOException {
-            if (remainingBytes > 0) {
-                remainingBytes--;
-                return raf.read();
-            } else {
-                throw new IOException("End of stream");
-            }
-        }
-
-        @Override
-        public long skip(final long byteCount) {
-            return 0;
-        }
-    }
 }
@@ -0,0 +1,83 @@
+package com.example.osmofflinelib.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of map tile indices (or of any long key)
+ * <p>
+ * {@link #mightContain(long)} returning false means that the key was definitely never added;
+ * returning true means that it probably was.
+ * Keys cannot be removed: a filter that gets too far from its content is to be rebuilt.
+ * <p>
+ * Thread-safe and lock-free.
+ *
+ * @since 6.2.1
+ */
+
+public class MapTileBloomFilter {
+
+    /**
+     * About 1% of false positives when the expected number of keys is reached
+     */
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+
+    private final AtomicLongArray mBits;
+    private final long mBitCount;
+    private final int mCapacity;
+
+    /**
+     * @param pCapacity Expected number of keys
+     */
+    public MapTileBloomFilter(final int pCapacity) {
+        mCapacity = Math.max(pCapacity, 64);
+        final int words = (int) ((((long) mCapacity) * BITS_PER_KEY + 63) / 64);
+        mBits = new AtomicLongArray(words);
+        mBitCount = words * 64L;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public void add(final long pKey) {
+        final long hash = MapTileLinkedMap.mix(pKey);
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= HASHES; i++) {
+            final long bit = getBit(hash1, hash2, i);
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+            long value;
+            while (((value = mBits.get(word)) & mask) == 0) {
+                if (mBits.compareAndSet(word, value, value | mask)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public boolean mightContain(final long pKey) {
+        final long hash = MapTileLinkedMap.mix(pKey);
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= HASHES; i++) {
+            final long bit = getBit(hash1, hash2, i);
+            if ((mBits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Double hashing: the i-th hash is derived from two independent halves of a mixed key
+     */
+    private long getBit(final int pHash1, final int pHash2, final int pIndex) {
+        int combined = pHash1 + pIndex * pHash2;
+        if (combined < 0) {
+            combined = ~combined;
+        }
+        return combined % mBitCount;
+    }
+}
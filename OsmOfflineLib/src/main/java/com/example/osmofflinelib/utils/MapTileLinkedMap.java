@@ -0,0 +1,396 @@
+package com.example.osmofflinelib.utils;
+
+/**
+ * An optimized map of map tile indices to values, ordered by access
+ * <p>
+ * Keys are primitive longs (no boxing) stored with open addressing and linear probing.
+ * Entries are chained in an intrusive doubly-linked list from the eldest to the most recently
+ * accessed one, so that the eldest entry can be found and removed in O(1).
+ * Each entry also carries an access stamp given by the caller, so that several maps can be
+ * compared in order to find the globally eldest entry, a weight (e.g. a size in bytes)
+ * whose total is maintained, and a hit count incremented by each {@link #get(long, long)}.
+ * <p>
+ * Not thread-safe: callers are expected to synchronize.
+ * Values must not be null.
+ *
+ * @since 6.2.1
+ */
+
+public class MapTileLinkedMap<T> {
+
+    private static final int NONE = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private long[] mStamps;
+    private int[] mWeights;
+    private int[] mHits;
+    private int[] mBefore;
+    private int[] mAfter;
+    private int mMask;
+    private int mThreshold;
+    private int mSize;
+    private long mWeight;
+    private int mHead = NONE;
+    private int mTail = NONE;
+
+    public MapTileLinkedMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public MapTileLinkedMap(final int pExpectedSize) {
+        allocate(tableSizeFor(pExpectedSize));
+    }
+
+    /**
+     * Mixes the bits of a map tile index, as neighbouring tiles only differ in their lowest bits
+     */
+    public static long mix(final long pKey) {
+        long h = pKey * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the sum of the weights of all entries
+     */
+    public long getWeight() {
+        return mWeight;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(final long pKey) {
+        return find(pKey) != NONE;
+    }
+
+    /**
+     * @return the value, without changing the access order
+     */
+    @SuppressWarnings("unchecked")
+    public T peek(final long pKey) {
+        final int slot = find(pKey);
+        return slot == NONE ? null : (T) mValues[slot];
+    }
+
+    /**
+     * @return the value, which becomes the most recently accessed entry
+     */
+    @SuppressWarnings("unchecked")
+    public T get(final long pKey, final long pStamp) {
+        final int slot = find(pKey);
+        if (slot == NONE) {
+            return null;
+        }
+        mStamps[slot] = pStamp;
+        if (mHits[slot] < Integer.MAX_VALUE) {
+            mHits[slot]++;
+        }
+        moveToTail(slot);
+        return (T) mValues[slot];
+    }
+
+    /**
+     * Makes an entry the most recently accessed one, without counting a hit
+     *
+     * @return false if not found
+     */
+    public boolean touch(final long pKey, final long pStamp) {
+        final int slot = find(pKey);
+        if (slot == NONE) {
+            return false;
+        }
+        mStamps[slot] = pStamp;
+        moveToTail(slot);
+        return true;
+    }
+
+    /**
+     * @return the previous value, or null
+     */
+    public T put(final long pKey, final T pValue, final long pStamp) {
+        return put(pKey, pValue, pStamp, 0);
+    }
+
+    /**
+     * @return the previous value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public T put(final long pKey, final T pValue, final long pStamp, final int pWeight) {
+        if (pValue == null) {
+            throw new IllegalArgumentException("MapTileLinkedMap: null values are not supported");
+        }
+        int slot = find(pKey);
+        if (slot != NONE) {
+            final T previous = (T) mValues[slot];
+            mValues[slot] = pValue;
+            mStamps[slot] = pStamp;
+            mWeight += pWeight - mWeights[slot];
+            mWeights[slot] = pWeight;
+            moveToTail(slot);
+            return previous;
+        }
+        if (mSize >= mThreshold) {
+            resize(mValues.length << 1);
+        }
+        slot = insert(pKey, pValue, pStamp, pWeight, 0);
+        linkLast(slot);
+        mSize++;
+        mWeight += pWeight;
+        return null;
+    }
+
+    /**
+     * @return the removed value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public T remove(final long pKey) {
+        final int slot = find(pKey);
+        if (slot == NONE) {
+            return null;
+        }
+        final T previous = (T) mValues[slot];
+        unlink(slot);
+        mValues[slot] = null;
+        mSize--;
+        mWeight -= mWeights[slot];
+        shiftBack(slot);
+        return previous;
+    }
+
+    /**
+     * @return the key of the eldest entry, or -1 if empty
+     */
+    public long getEldestKey() {
+        return mHead == NONE ? -1 : mKeys[mHead];
+    }
+
+    /**
+     * @return the key of the most recently accessed entry, or -1 if empty
+     */
+    public long getLatestKey() {
+        return mTail == NONE ? -1 : mKeys[mTail];
+    }
+
+    /**
+     * @return the access stamp of the eldest entry, or Long.MAX_VALUE if empty
+     */
+    public long getEldestStamp() {
+        return mHead == NONE ? Long.MAX_VALUE : mStamps[mHead];
+    }
+
+    /**
+     * Copies the eldest entries, from the eldest to the most recently accessed
+     *
+     * @return the number of copied entries, at most pMax
+     */
+    public int getEldest(final int pMax, final int pOffset, final long[] pKeys, final long[] pStamps,
+                         final int[] pWeights, final int[] pHits, final Object[] pValues) {
+        int count = 0;
+        for (int slot = mHead; slot != NONE && count < pMax; slot = mAfter[slot]) {
+            final int index = pOffset + count++;
+            pKeys[index] = mKeys[slot];
+            pStamps[index] = mStamps[slot];
+            pWeights[index] = mWeights[slot];
+            pHits[index] = mHits[slot];
+            pValues[index] = mValues[slot];
+        }
+        return count;
+    }
+
+    /**
+     * Copies entries found at pseudo-random slots, whatever their access order.
+     * Falls back to {@link #getEldest(int, int, long[], long[], int[], int[], Object[])}
+     * if the table is too sparse for a cheap probe.
+     * The same entry may be copied more than once.
+     *
+     * @param pSeed any value: successive calls with different seeds copy different entries
+     * @return the number of copied entries, at most pMax
+     */
+    public int getSample(final int pMax, final long pSeed, final int pOffset, final long[] pKeys, final long[] pStamps,
+                         final int[] pWeights, final int[] pHits, final Object[] pValues) {
+        if (mSize * 8L < mValues.length) {
+            return getEldest(pMax, pOffset, pKeys, pStamps, pWeights, pHits, pValues);
+        }
+        final int count = Math.min(pMax, mSize);
+        for (int i = 0; i < count; i++) {
+            // high bits: the low bits would be the ideal slots of the keys equal to the seeds
+            int slot = (int) (mix(pSeed + i) >>> 32) & mMask;
+            while (mValues[slot] == null) {
+                slot = (slot + 1) & mMask;
+            }
+            final int index = pOffset + i;
+            pKeys[index] = mKeys[slot];
+            pStamps[index] = mStamps[slot];
+            pWeights[index] = mWeights[slot];
+            pHits[index] = mHits[slot];
+            pValues[index] = mValues[slot];
+        }
+        return count;
+    }
+
+    /**
+     * Populates a list with all the keys, from the eldest to the most recently accessed
+     */
+    public void getKeys(final MapTileList pList) {
+        pList.ensureCapacity(pList.getSize() + mSize);
+        for (int slot = mHead; slot != NONE; slot = mAfter[slot]) {
+            pList.put(mKeys[slot]);
+        }
+    }
+
+    public void clear() {
+        for (int slot = mHead; slot != NONE; slot = mAfter[slot]) {
+            mValues[slot] = null;
+        }
+        mHead = mTail = NONE;
+        mSize = 0;
+        mWeight = 0;
+    }
+
+    private int find(final long pKey) {
+        int slot = (int) mix(pKey) & mMask;
+        while (mValues[slot] != null) {
+            if (mKeys[slot] == pKey) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return NONE;
+    }
+
+    private int insert(final long pKey, final Object pValue, final long pStamp, final int pWeight, final int pHits) {
+        int slot = (int) mix(pKey) & mMask;
+        while (mValues[slot] != null) {
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = pKey;
+        mValues[slot] = pValue;
+        mStamps[slot] = pStamp;
+        mWeights[slot] = pWeight;
+        mHits[slot] = pHits;
+        return slot;
+    }
+
+    /**
+     * Backward shift deletion: no tombstones, so that lookups never degrade
+     */
+    private void shiftBack(int pEmpty) {
+        int slot = pEmpty;
+        while (true) {
+            slot = (slot + 1) & mMask;
+            if (mValues[slot] == null) {
+                return;
+            }
+            final int ideal = (int) mix(mKeys[slot]) & mMask;
+            final boolean movable = pEmpty <= slot
+                    ? (ideal <= pEmpty || ideal > slot)
+                    : (ideal <= pEmpty && ideal > slot);
+            if (!movable) {
+                continue;
+            }
+            mKeys[pEmpty] = mKeys[slot];
+            mValues[pEmpty] = mValues[slot];
+            mStamps[pEmpty] = mStamps[slot];
+            mWeights[pEmpty] = mWeights[slot];
+            mHits[pEmpty] = mHits[slot];
+            relocate(slot, pEmpty);
+            mValues[slot] = null;
+            pEmpty = slot;
+        }
+    }
+
+    private void relocate(final int pFrom, final int pTo) {
+        final int before = mBefore[pFrom];
+        final int after = mAfter[pFrom];
+        mBefore[pTo] = before;
+        mAfter[pTo] = after;
+        if (before == NONE) {
+            mHead = pTo;
+        } else {
+            mAfter[before] = pTo;
+        }
+        if (after == NONE) {
+            mTail = pTo;
+        } else {
+            mBefore[after] = pTo;
+        }
+    }
+
+    private void linkLast(final int pSlot) {
+        mBefore[pSlot] = mTail;
+        mAfter[pSlot] = NONE;
+        if (mTail == NONE) {
+            mHead = pSlot;
+        } else {
+            mAfter[mTail] = pSlot;
+        }
+        mTail = pSlot;
+    }
+
+    private void unlink(final int pSlot) {
+        final int before = mBefore[pSlot];
+        final int after = mAfter[pSlot];
+        if (before == NONE) {
+            mHead = after;
+        } else {
+            mAfter[before] = after;
+        }
+        if (after == NONE) {
+            mTail = before;
+        } else {
+            mBefore[after] = before;
+        }
+    }
+
+    private void moveToTail(final int pSlot) {
+        if (pSlot == mTail) {
+            return;
+        }
+        unlink(pSlot);
+        linkLast(pSlot);
+    }
+
+    private void allocate(final int pTableSize) {
+        mKeys = new long[pTableSize];
+        mValues = new Object[pTableSize];
+        mStamps = new long[pTableSize];
+        mWeights = new int[pTableSize];
+        mHits = new int[pTableSize];
+        mBefore = new int[pTableSize];
+        mAfter = new int[pTableSize];
+        mMask = pTableSize - 1;
+        mThreshold = pTableSize * 3 / 4;
+    }
+
+    /**
+     * Rehashes all entries, keeping their access order
+     */
+    private void resize(final int pTableSize) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final long[] stamps = mStamps;
+        final int[] weights = mWeights;
+        final int[] hits = mHits;
+        final int[] after = mAfter;
+        final int head = mHead;
+        allocate(pTableSize);
+        mHead = mTail = NONE;
+        for (int slot = head; slot != NONE; slot = after[slot]) {
+            linkLast(insert(keys[slot], values[slot], stamps[slot], weights[slot], hits[slot]));
+        }
+    }
+
+    private static int tableSizeFor(final int pExpectedSize) {
+        final int needed = Math.max(MIN_CAPACITY, (int) (pExpectedSize / 0.75f) + 1);
+        return Integer.highestOneBit(needed - 1) << 1;
+    }
+}
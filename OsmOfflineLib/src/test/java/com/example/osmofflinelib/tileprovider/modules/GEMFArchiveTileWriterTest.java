@@ -0,0 +1,201 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import com.example.osmofflinelib.tileprovider.tilesource.ITileSource;
+import com.example.osmofflinelib.tileprovider.tilesource.XYTileSource;
+import com.example.osmofflinelib.tileprovider.utils.TileBytes;
+import com.example.osmofflinelib.utils.GEMFFile;
+import com.example.osmofflinelib.utils.MapTileIndex;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link GEMFArchiveTileWriter} by reading its archives with {@link GEMFFile}
+ */
+public class GEMFArchiveTileWriterTest {
+
+    /**
+     * Header of an archive with a single tile source named "test" and a single range:
+     * version, tile size, source count, source, range count, range
+     */
+    private static final int SINGLE_RANGE_HEADER_SIZE = 4 * 3 + (4 * 2 + 4) + 4 + (4 * 6 + 8);
+    private static final int RECORD_SIZE = 8 + 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final ITileSource mSource = new XYTileSource("test", 0, 18, 256, ".png", new String[]{"http://localhost/"});
+    private final ITileSource mOtherSource = new XYTileSource("other", 0, 18, 256, ".png", new String[]{"http://localhost/"});
+
+    private static byte[] getTile(final int pLength, final int pSeed) {
+        final byte[] result = new byte[pLength];
+        for (int i = 0; i < pLength; i++) {
+            result[i] = (byte) (pSeed * 13 + i);
+        }
+        return result;
+    }
+
+    private static void save(final GEMFArchiveTileWriter pWriter, final ITileSource pSource,
+                             final int pZoom, final int pX, final int pY, final byte[] pBits) {
+        assertTrue(pWriter.saveFile(pSource, MapTileIndex.getTileIndex(pZoom, pX, pY), TileBytes.wrap(pBits), null));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final String location = new File(mFolder.getRoot(), "archive.gemf").getPath();
+        final GEMFArchiveTileWriter writer = new GEMFArchiveTileWriter(location);
+        // an L shape, i.e. more than one range
+        for (int x = 10; x < 14; x++) {
+            save(writer, mSource, 5, x, 20, getTile(100 + x, x));
+        }
+        for (int y = 21; y < 24; y++) {
+            save(writer, mSource, 5, 10, y, getTile(200 + y, y));
+        }
+        save(writer, mSource, 7, 100, 100, getTile(300, 1));
+        save(writer, mOtherSource, 5, 10, 20, getTile(400, 2));
+        // replaced, then removed
+        save(writer, mSource, 5, 10, 20, getTile(50, 3));
+        save(writer, mSource, 7, 101, 100, getTile(60, 4));
+        assertTrue(writer.exists(mSource, MapTileIndex.getTileIndex(7, 101, 100)));
+        assertTrue(writer.remove(mSource, MapTileIndex.getTileIndex(7, 101, 100)));
+        assertFalse(writer.exists(mSource, MapTileIndex.getTileIndex(7, 101, 100)));
+        writer.finish();
+        assertFalse(new File(location + ".spool").exists());
+
+        final GEMFFile file = new GEMFFile(location);
+        try {
+            assertEquals(2, file.getSources().size());
+            assertEquals("test", file.getSources().get(0));
+            assertEquals("other", file.getSources().get(1));
+            file.selectSource(0);
+            assertArrayEquals(getTile(50, 3), file.getBytes(10, 20, 5));
+            for (int x = 11; x < 14; x++) {
+                assertArrayEquals(getTile(100 + x, x), file.getBytes(x, 20, 5));
+            }
+            for (int y = 21; y < 24; y++) {
+                assertArrayEquals(getTile(200 + y, y), file.getBytes(10, y, 5));
+            }
+            assertNull(file.getBytes(11, 21, 5));
+            assertArrayEquals(getTile(300, 1), file.getBytes(100, 100, 7));
+            assertNull(file.getBytes(101, 100, 7));
+            file.selectSource(1);
+            assertArrayEquals(getTile(400, 2), file.getBytes(10, 20, 5));
+            assertNull(file.getBytes(11, 20, 5));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * A tile that would end exactly at the limit stays in its file;
+     * the next one starts the next file, at a data offset equal to the file size
+     */
+    @Test
+    public void testSplit() throws IOException {
+        final String location = new File(mFolder.getRoot(), "split.gemf").getPath();
+        final int tiles = 16;
+        final int tileLength = 100;
+        final int headerLength = SINGLE_RANGE_HEADER_SIZE + tiles * RECORD_SIZE;
+        final long limit = headerLength + 3 * tileLength;
+        final GEMFArchiveTileWriter writer = new GEMFArchiveTileWriter(location, limit);
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 4; y++) {
+                save(writer, mSource, 3, x, y, getTile(tileLength, x * 4 + y));
+            }
+        }
+        writer.finish();
+
+        // 3 tiles in the first file, then 5, 5 and 3
+        assertEquals(limit, new File(location).length());
+        assertEquals(5 * tileLength, new File(location + "-1").length());
+        assertEquals(5 * tileLength, new File(location + "-2").length());
+        assertEquals(3 * tileLength, new File(location + "-3").length());
+        assertFalse(new File(location + "-4").exists());
+
+        final GEMFFile file = new GEMFFile(location);
+        try {
+            for (int x = 0; x < 4; x++) {
+                for (int y = 0; y < 4; y++) {
+                    assertArrayEquals("tile " + x + "," + y, getTile(tileLength, x * 4 + y), file.getBytes(x, y, 3));
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * With the actual {@link GEMFArchiveTileWriter#FILE_SIZE_LIMIT}: data offsets of 1GB and more,
+     * and beyond the int range, in files laid out as the writer does
+     * (sparse files, so that nothing is actually written there)
+     */
+    @Test
+    public void testOneGigabyteSplit() throws IOException {
+        final long limit = GEMFArchiveTileWriter.FILE_SIZE_LIMIT;
+        assertEquals(1L << 30, limit);
+        final String location = new File(mFolder.getRoot(), "large.gemf").getPath();
+        final byte[][] tiles = new byte[][]{getTile(3, 0), getTile(2, 1), getTile(4, 2), getTile(5, 3)};
+        // the last bytes of the first file, the very first bytes of the second file, then the third file
+        final long[] offsets = new long[]{limit - 3, limit, limit + 2, 2 * limit};
+
+        final DataOutputStream header = new DataOutputStream(new FileOutputStream(location));
+        try {
+            header.writeInt(4);
+            header.writeInt(256);
+            header.writeInt(1);
+            header.writeInt(0);
+            header.writeInt(4);
+            header.write("test".getBytes("UTF-8"));
+            header.writeInt(1);
+            header.writeInt(2); // zoom
+            header.writeInt(1); // x min
+            header.writeInt(2); // x max
+            header.writeInt(0); // y min
+            header.writeInt(1); // y max
+            header.writeInt(0); // source
+            header.writeLong(SINGLE_RANGE_HEADER_SIZE);
+            for (int i = 0; i < tiles.length; i++) {
+                header.writeLong(offsets[i]);
+                header.writeInt(tiles[i].length);
+            }
+        } finally {
+            header.close();
+        }
+        writeSparse(location, limit, limit - 3, tiles[0]);
+        final byte[] second = Arrays.copyOf(tiles[1], tiles[1].length + tiles[2].length);
+        System.arraycopy(tiles[2], 0, second, tiles[1].length, tiles[2].length);
+        writeSparse(location + "-1", limit, 0, second);
+        writeSparse(location + "-2", tiles[3].length, 0, tiles[3]);
+
+        final GEMFFile file = new GEMFFile(location);
+        try {
+            assertArrayEquals(tiles[0], file.getBytes(1, 0, 2));
+            assertArrayEquals(tiles[1], file.getBytes(1, 1, 2));
+            assertArrayEquals(tiles[2], file.getBytes(2, 0, 2));
+            assertArrayEquals(tiles[3], file.getBytes(2, 1, 2));
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void writeSparse(final String pPath, final long pLength, final long pOffset, final byte[] pBits)
+            throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(pPath, "rw");
+        try {
+            file.setLength(pLength);
+            file.seek(pOffset);
+            file.write(pBits);
+        } finally {
+            file.close();
+        }
+    }
+}
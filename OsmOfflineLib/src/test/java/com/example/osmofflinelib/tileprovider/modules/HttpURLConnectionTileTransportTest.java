@@ -0,0 +1,364 @@
+package com.example.osmofflinelib.tileprovider.modules;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link HttpURLConnectionTileTransport} against a local HTTP/1.1 server
+ */
+public class HttpURLConnectionTileTransportTest {
+
+    private LocalServer mServer;
+    private HttpURLConnectionTileTransport mTransport;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LocalServer();
+        mTransport = new HttpURLConnectionTileTransport();
+        mTransport.setTimeouts(2000, 2000);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void testOk() throws Exception {
+        final byte[] tile = new byte[]{1, 2, 3, 4, 5};
+        mServer.enqueue(200, "OK", Collections.singletonMap("ETag", "\"abc\""), tile);
+        final Map<String, String> headers = new HashMap<>();
+        headers.put("User-Agent", "test-agent");
+        final ITileHttpTransport.Response response = mTransport.get(mServer.getUrl("/1/2/3.png"), headers, null);
+        try {
+            assertEquals(200, response.getCode());
+            assertEquals("OK", response.getMessage());
+            assertEquals("\"abc\"", response.getHeader("ETag"));
+            assertNull(response.getHeader("X-Missing"));
+            assertArrayEquals(tile, readFully(response.getBody()));
+            assertSame(response.getBody(), response.getBody());
+        } finally {
+            response.close();
+        }
+        final Request request = mServer.takeRequest();
+        assertEquals("GET /1/2/3.png HTTP/1.1", request.mLine);
+        assertEquals("test-agent", request.mHeaders.get("user-agent"));
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        mServer.enqueue(304, "Not Modified", Collections.singletonMap("ETag", "\"def\""), new byte[0]);
+        final Map<String, String> headers = new HashMap<>();
+        headers.put("If-None-Match", "\"def\"");
+        final ITileHttpTransport.Response response = mTransport.get(mServer.getUrl("/tile"), headers, null);
+        assertEquals(304, response.getCode());
+        assertEquals("\"def\"", response.getHeader("ETag"));
+        response.close();
+        assertEquals("\"def\"", mServer.takeRequest().mHeaders.get("if-none-match"));
+    }
+
+    @Test
+    public void testErrorIsClosedWithoutReadingTheBody() throws Exception {
+        mServer.enqueue(404, "Not Found", Collections.<String, String>emptyMap(),
+                "no such tile".getBytes(StandardCharsets.US_ASCII));
+        final ITileHttpTransport.Response response =
+                mTransport.get(mServer.getUrl("/tile"), Collections.<String, String>emptyMap(), null);
+        assertEquals(404, response.getCode());
+        response.close();
+        response.close(); // idempotent
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        final byte[] tile = new byte[]{9, 8, 7};
+        for (int i = 0; i < 3; i++) {
+            mServer.enqueue(200, "OK", Collections.<String, String>emptyMap(), tile);
+        }
+        // body read to the end
+        ITileHttpTransport.Response response =
+                mTransport.get(mServer.getUrl("/a"), Collections.<String, String>emptyMap(), null);
+        assertArrayEquals(tile, readFully(response.getBody()));
+        response.close();
+        // body never read: closing the response purges it
+        response = mTransport.get(mServer.getUrl("/b"), Collections.<String, String>emptyMap(), null);
+        assertEquals(200, response.getCode());
+        response.close();
+        response = mTransport.get(mServer.getUrl("/c"), Collections.<String, String>emptyMap(), null);
+        assertArrayEquals(tile, readFully(response.getBody()));
+        response.close();
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    /**
+     * Many small tiles over one kept-alive connection, against a new connection per tile
+     * (the server answering "Connection: close"), with a connection setup cost on the server side
+     * standing for the TCP and TLS handshakes
+     */
+    @Test
+    public void testKeepAliveThroughput() throws Exception {
+        final int count = 20;
+        final byte[] tile = new byte[512];
+        mServer.setConnectionDelay(25);
+
+        final Map<String, String> close = Collections.singletonMap("Connection", "close");
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            mServer.enqueue(200, "OK", close, tile);
+            download(tile);
+        }
+        final long fresh = System.nanoTime() - start;
+        final int freshConnections = mServer.getConnectionCount();
+        assertEquals(count, freshConnections);
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            mServer.enqueue(200, "OK", Collections.<String, String>emptyMap(), tile);
+            download(tile);
+        }
+        final long keptAlive = System.nanoTime() - start;
+        assertEquals(1, mServer.getConnectionCount() - freshConnections);
+
+        System.out.println("HttpURLConnectionTileTransport: " + count + " tiles in " + fresh / 1000000
+                + "ms with a connection per tile, " + keptAlive / 1000000 + "ms with keep-alive");
+        assertTrue(keptAlive * 2 < fresh);
+    }
+
+    private void download(final byte[] pExpected) throws IOException {
+        final ITileHttpTransport.Response response =
+                mTransport.get(mServer.getUrl("/tile"), Collections.<String, String>emptyMap(), null);
+        try {
+            assertEquals(200, response.getCode());
+            assertArrayEquals(pExpected, readFully(response.getBody()));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void testReadTimeout() throws Exception {
+        mServer.enqueueNoResponse();
+        mTransport.setTimeouts(2000, 200);
+        final ITileHttpTransport.Response response =
+                mTransport.get(mServer.getUrl("/slow"), Collections.<String, String>emptyMap(), null);
+        try {
+            response.getCode();
+        } finally {
+            response.close();
+        }
+    }
+
+    private static byte[] readFully(final InputStream pInputStream) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = pInputStream.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Request {
+        private final String mLine;
+        private final Map<String, String> mHeaders;
+
+        private Request(final String pLine, final Map<String, String> pHeaders) {
+            mLine = pLine;
+            mHeaders = pHeaders;
+        }
+    }
+
+    /**
+     * Minimal HTTP/1.1 server with keep-alive, answering each request with the next canned response
+     */
+    private static class LocalServer implements Runnable {
+
+        private final ServerSocket mServerSocket;
+        private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+        private final BlockingQueue<byte[]> mResponses = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Request> mRequests = new LinkedBlockingQueue<>();
+        private final AtomicInteger mRequestCount = new AtomicInteger();
+        private final AtomicInteger mConnectionCount = new AtomicInteger();
+        private volatile long mConnectionDelay;
+        private volatile boolean mClosed;
+
+        private LocalServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            final Thread thread = new Thread(this, "LocalServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private String getUrl(final String pPath) {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + pPath;
+        }
+
+        private void enqueue(final int pCode, final String pMessage, final Map<String, String> pHeaders,
+                             final byte[] pBody) {
+            final StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(pCode).append(' ').append(pMessage).append("\r\n");
+            for (final Map.Entry<String, String> entry : pHeaders.entrySet()) {
+                head.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            }
+            if (pCode != 304) {
+                head.append("Content-Length: ").append(pBody.length).append("\r\n");
+            }
+            head.append("\r\n");
+            final byte[] headBytes = head.toString().getBytes(StandardCharsets.US_ASCII);
+            final byte[] response = new byte[headBytes.length + pBody.length];
+            System.arraycopy(headBytes, 0, response, 0, headBytes.length);
+            System.arraycopy(pBody, 0, response, headBytes.length, pBody.length);
+            mResponses.add(response);
+        }
+
+        /**
+         * The next request will never be answered
+         */
+        private void enqueueNoResponse() {
+            mResponses.add(new byte[0]);
+        }
+
+        private Request takeRequest() throws InterruptedException {
+            final Request request = mRequests.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no request received", request);
+            return request;
+        }
+
+        /**
+         * Each new connection waits that long before being served
+         */
+        private void setConnectionDelay(final long pMillis) {
+            mConnectionDelay = pMillis;
+        }
+
+        private int getRequestCount() {
+            return mRequestCount.get();
+        }
+
+        private int getConnectionCount() {
+            return mConnectionCount.get();
+        }
+
+        @Override
+        public void run() {
+            while (!mClosed) {
+                final Socket socket;
+                try {
+                    socket = mServerSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                mConnectionCount.incrementAndGet();
+                mSockets.add(socket);
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "LocalServer-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void serve(final Socket pSocket) {
+            try {
+                if (mConnectionDelay > 0) {
+                    Thread.sleep(mConnectionDelay);
+                }
+                final InputStream in = pSocket.getInputStream();
+                final OutputStream out = pSocket.getOutputStream();
+                while (!mClosed) {
+                    final String line = readLine(in);
+                    if (line == null) {
+                        return;
+                    }
+                    final Map<String, String> headers = new HashMap<>();
+                    String header;
+                    while ((header = readLine(in)) != null && header.length() > 0) {
+                        final int colon = header.indexOf(':');
+                        headers.put(header.substring(0, colon).trim().toLowerCase(Locale.US),
+                                header.substring(colon + 1).trim());
+                    }
+                    mRequestCount.incrementAndGet();
+                    mRequests.add(new Request(line, headers));
+                    final byte[] response = mResponses.take();
+                    if (response.length == 0) {
+                        return; // leave the client waiting until the socket is closed
+                    }
+                    out.write(response);
+                    out.flush();
+                    if (isClose(response)) {
+                        pSocket.close();
+                        return;
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // connection closed
+            }
+        }
+
+        private static boolean isClose(final byte[] pResponse) {
+            final String response = new String(pResponse, StandardCharsets.US_ASCII);
+            final int end = response.indexOf("\r\n\r\n");
+            return response.substring(0, end + 2).contains("\r\nConnection: close\r\n");
+        }
+
+        private static String readLine(final InputStream pInputStream) throws IOException {
+            final StringBuilder builder = new StringBuilder();
+            int c;
+            while ((c = pInputStream.read()) != -1) {
+                if (c == '\n') {
+                    final int length = builder.length();
+                    if (length > 0 && builder.charAt(length - 1) == '\r') {
+                        builder.setLength(length - 1);
+                    }
+                    return builder.toString();
+                }
+                builder.append((char) c);
+            }
+            return null;
+        }
+
+        private void close() {
+            mClosed = true;
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            synchronized (mSockets) {
+                for (final Socket socket : mSockets) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // already closed
+                    }
+                }
+            }
+        }
+    }
+}
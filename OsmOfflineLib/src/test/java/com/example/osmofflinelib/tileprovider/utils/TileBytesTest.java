@@ -0,0 +1,106 @@
+package com.example.osmofflinelib.tileprovider.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link TileBytes}
+ */
+public class TileBytesTest {
+
+    private static byte[] getTile(final int pLength) {
+        final byte[] result = new byte[pLength];
+        for (int i = 0; i < pLength; i++) {
+            result[i] = (byte) (i * 31 + 7);
+        }
+        return result;
+    }
+
+    /**
+     * A stream that returns at most a few bytes per read, as a network stream would
+     */
+    private static InputStream getSlowStream(final byte[] pBytes) {
+        return new ByteArrayInputStream(pBytes) {
+            @Override
+            public synchronized int read(final byte[] pBuffer, final int pOffset, final int pLength) {
+                return super.read(pBuffer, pOffset, Math.min(pLength, 1000));
+            }
+        };
+    }
+
+    @Test
+    public void testKnownLength() throws IOException {
+        final byte[] tile = getTile(20000);
+        assertArrayEquals(tile, TileBytes.read(getSlowStream(tile), tile.length));
+    }
+
+    @Test
+    public void testUnknownLength() throws IOException {
+        for (final int length : new int[]{0, 1, 32 * 1024, 100000}) {
+            final byte[] tile = getTile(length);
+            assertArrayEquals(tile, TileBytes.read(getSlowStream(tile), -1));
+        }
+    }
+
+    @Test
+    public void testLongerThanAnnounced() throws IOException {
+        final byte[] tile = getTile(50000);
+        assertArrayEquals(tile, TileBytes.read(getSlowStream(tile), 10000));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testShorterThanAnnounced() throws IOException {
+        TileBytes.read(getSlowStream(getTile(10000)), 10001);
+    }
+
+    @Test
+    public void testAnnouncedLengthNotTrusted() throws IOException {
+        final byte[] tile = getTile(100);
+        assertArrayEquals(tile, TileBytes.read(getSlowStream(tile), Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testBufferReuse() throws IOException {
+        final byte[] large = getTile(200000);
+        final byte[] small = getTile(10);
+        assertArrayEquals(large, TileBytes.read(getSlowStream(large), -1));
+        final byte[] result = TileBytes.read(getSlowStream(small), -1);
+        assertArrayEquals(small, result);
+        assertEquals(small.length, result.length);
+    }
+
+    @Test
+    public void testWrap() throws IOException {
+        final byte[] tile = getTile(1000);
+        final InputStream stream = TileBytes.wrap(tile);
+        assertSame(tile, TileBytes.getBytes(stream));
+        assertSame(tile, TileBytes.read(stream, -1));
+        // consumed: like any stream read to the end
+        assertNull(TileBytes.getBytes(stream));
+        assertEquals(-1, stream.read());
+        assertEquals(0, TileBytes.read(stream, -1).length);
+    }
+
+    @Test
+    public void testWrapPartiallyRead() throws IOException {
+        final byte[] tile = getTile(1000);
+        final InputStream stream = TileBytes.wrap(tile);
+        assertEquals(tile[0], (byte) stream.read());
+        assertNull(TileBytes.getBytes(stream));
+        final byte[] result = TileBytes.read(stream, -1);
+        assertEquals(tile.length - 1, result.length);
+        assertEquals(tile[1], result[0]);
+        assertEquals(tile[tile.length - 1], result[result.length - 1]);
+    }
+
+    @Test
+    public void testGetBytesOfOtherStream() {
+        assertNull(TileBytes.getBytes(new ByteArrayInputStream(getTile(10))));
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.osmofflinelib.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link MapTileBloomFilter}
+ */
+public class MapTileBloomFilterTest {
+
+    @Test
+    public void testMinimumCapacity() {
+        assertEquals(64, new MapTileBloomFilter(0).getCapacity());
+        assertEquals(1000, new MapTileBloomFilter(1000).getCapacity());
+    }
+
+    @Test
+    public void testNoFalseNegative() {
+        final MapTileBloomFilter filter = new MapTileBloomFilter(10000);
+        for (int x = 0; x < 100; x++) {
+            for (int y = 0; y < 100; y++) {
+                filter.add(MapTileIndex.getTileIndex(14, x, y));
+            }
+        }
+        for (int x = 0; x < 100; x++) {
+            for (int y = 0; y < 100; y++) {
+                assertTrue(filter.mightContain(MapTileIndex.getTileIndex(14, x, y)));
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        final MapTileBloomFilter filter = new MapTileBloomFilter(100);
+        for (long key = -1000; key < 1000; key++) {
+            assertFalse(filter.mightContain(key));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        final int capacity = 10000;
+        final MapTileBloomFilter filter = new MapTileBloomFilter(capacity);
+        for (int y = 0; y < capacity; y++) {
+            filter.add(MapTileIndex.getTileIndex(16, 0, y));
+        }
+        // same zoom and neighbouring x: the keys closest to the added ones
+        int falsePositives = 0;
+        final int tries = 100000;
+        for (int i = 0; i < tries; i++) {
+            if (filter.mightContain(MapTileIndex.getTileIndex(16, 1 + i / capacity, i % capacity))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < tries * 3 / 100);
+    }
+
+    @Test
+    public void testConcurrentAdds() throws InterruptedException {
+        final MapTileBloomFilter filter = new MapTileBloomFilter(40000);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int x = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int y = 0; y < 10000; y++) {
+                        filter.add(MapTileIndex.getTileIndex(15, x, y));
+                    }
+                }
+            }));
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 10000; y++) {
+                assertTrue(filter.mightContain(MapTileIndex.getTileIndex(15, x, y)));
+            }
+        }
+    }
+}
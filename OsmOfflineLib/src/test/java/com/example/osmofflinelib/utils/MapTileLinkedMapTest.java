@@ -0,0 +1,272 @@
+package com.example.osmofflinelib.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link MapTileLinkedMap}
+ */
+public class MapTileLinkedMapTest {
+
+    /**
+     * Default table size, i.e. what the mask of a new map applies to
+     */
+    private static final int TABLE_SIZE = 32;
+
+    /**
+     * @return keys whose ideal slot in a table of that size is the same
+     */
+    private static long[] getCollidingKeys(final int pTableSize, final int pSlot, final int pCount) {
+        final long[] result = new long[pCount];
+        int count = 0;
+        for (long key = 0; count < pCount; key++) {
+            if (((int) MapTileLinkedMap.mix(key) & (pTableSize - 1)) == pSlot) {
+                result[count++] = key;
+            }
+        }
+        return result;
+    }
+
+    private static List<Long> getKeys(final MapTileLinkedMap<?> pMap) {
+        final MapTileList list = new MapTileList();
+        pMap.getKeys(list);
+        final List<Long> result = new ArrayList<>();
+        for (int i = 0; i < list.getSize(); i++) {
+            result.add(list.get(i));
+        }
+        return result;
+    }
+
+    private static List<Long> asList(final long... pKeys) {
+        final List<Long> result = new ArrayList<>();
+        for (final long key : pKeys) {
+            result.add(key);
+        }
+        return result;
+    }
+
+    @Test
+    public void testCollidingKeys() {
+        // the last slot: the probing wraps around to the start of the table
+        final long[] keys = getCollidingKeys(TABLE_SIZE, TABLE_SIZE - 1, 6);
+        final MapTileLinkedMap<String> map = new MapTileLinkedMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            assertNull(map.put(keys[i], "v" + i, i));
+        }
+        assertEquals(keys.length, map.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals("v" + i, map.peek(keys[i]));
+        }
+
+        // removed from the middle of the probe sequence: the following keys are shifted back
+        assertEquals("v2", map.remove(keys[2]));
+        assertNull(map.remove(keys[2]));
+        assertFalse(map.containsKey(keys[2]));
+        assertEquals("v0", map.remove(keys[0]));
+        for (final int i : new int[]{1, 3, 4, 5}) {
+            assertEquals("v" + i, map.peek(keys[i]));
+        }
+        assertEquals(asList(keys[1], keys[3], keys[4], keys[5]), getKeys(map));
+
+        // replaced
+        assertEquals("v4", map.put(keys[4], "w4", 10));
+        assertEquals("w4", map.peek(keys[4]));
+        assertEquals(4, map.size());
+        assertEquals(asList(keys[1], keys[3], keys[5], keys[4]), getKeys(map));
+
+        // put again in the freed slots
+        assertNull(map.put(keys[0], "x0", 11));
+        assertNull(map.put(keys[2], "x2", 12));
+        assertEquals(asList(keys[1], keys[3], keys[5], keys[4], keys[0], keys[2]), getKeys(map));
+        for (final int i : new int[]{0, 2}) {
+            assertEquals("x" + i, map.peek(keys[i]));
+        }
+
+        for (final long key : keys) {
+            assertNotNull(map.remove(key));
+        }
+        assertTrue(map.isEmpty());
+        assertEquals(-1, map.getEldestKey());
+        assertEquals(-1, map.getLatestKey());
+        assertEquals(Long.MAX_VALUE, map.getEldestStamp());
+    }
+
+    @Test
+    public void testResizeWithCollidingKeys() {
+        // colliding in the initial table and in the next ones: still together after each resize
+        final long[] keys = getCollidingKeys(TABLE_SIZE * 8, 5, 100);
+        final MapTileLinkedMap<Long> map = new MapTileLinkedMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], keys[i], i, i);
+        }
+        assertEquals(keys.length, map.size());
+        assertEquals(asList(keys), getKeys(map));
+        long weight = 0;
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(Long.valueOf(keys[i]), map.peek(keys[i]));
+            weight += i;
+        }
+        assertEquals(weight, map.getWeight());
+        for (int i = 0; i < keys.length; i += 2) {
+            assertEquals(Long.valueOf(keys[i]), map.remove(keys[i]));
+            weight -= i;
+        }
+        assertEquals(weight, map.getWeight());
+        for (int i = 1; i < keys.length; i += 2) {
+            assertEquals(Long.valueOf(keys[i]), map.peek(keys[i]));
+        }
+    }
+
+    @Test
+    public void testAccessOrder() {
+        final MapTileLinkedMap<String> map = new MapTileLinkedMap<>();
+        final int count = 1000; // several resizes
+        for (int i = 0; i < count; i++) {
+            map.put(i, "v" + i, i);
+        }
+        assertEquals(0, map.getEldestKey());
+        assertEquals(count - 1, map.getLatestKey());
+        assertEquals(0, map.getEldestStamp());
+
+        assertEquals("v0", map.get(0, count));
+        assertTrue(map.touch(1, count + 1));
+        assertFalse(map.touch(count, count + 2));
+        assertEquals("v2", map.peek(2)); // no change
+        assertEquals(2, map.getEldestKey());
+        assertEquals(2, map.getEldestStamp());
+        assertEquals(1, map.getLatestKey());
+
+        final List<Long> keys = getKeys(map);
+        assertEquals(count, keys.size());
+        for (int i = 2; i < count; i++) {
+            assertEquals(Long.valueOf(i), keys.get(i - 2));
+        }
+        assertEquals(Long.valueOf(0), keys.get(count - 2));
+        assertEquals(Long.valueOf(1), keys.get(count - 1));
+
+        // kept through a resize
+        for (int i = count; i < 2 * count; i++) {
+            map.put(i, "v" + i, i + 2);
+        }
+        final List<Long> resized = getKeys(map);
+        assertEquals(keys, resized.subList(0, count));
+    }
+
+    @Test
+    public void testGetEldest() {
+        final MapTileLinkedMap<String> map = new MapTileLinkedMap<>();
+        map.put(10, "a", 1, 100);
+        map.put(20, "b", 2, 200);
+        map.put(30, "c", 3, 300);
+        map.get(10, 4);
+        map.get(10, 5);
+        final long[] keys = new long[3];
+        final long[] stamps = new long[3];
+        final int[] weights = new int[3];
+        final int[] hits = new int[3];
+        final Object[] values = new Object[3];
+        assertEquals(2, map.getEldest(2, 1, keys, stamps, weights, hits, values));
+        assertArrayEquals(new long[]{0, 20, 30}, keys);
+        assertArrayEquals(new long[]{0, 2, 3}, stamps);
+        assertArrayEquals(new int[]{0, 200, 300}, weights);
+        assertArrayEquals(new Object[]{null, "b", "c"}, values);
+        assertEquals(3, map.getEldest(10, 0, keys, stamps, weights, hits, values));
+        assertArrayEquals(new long[]{20, 30, 10}, keys);
+        assertArrayEquals(new int[]{0, 0, 2}, hits);
+        assertEquals(600, map.getWeight());
+    }
+
+    @Test
+    public void testGetSample() {
+        final MapTileLinkedMap<String> map = new MapTileLinkedMap<>();
+        final int count = 1000;
+        for (int i = 0; i < count; i++) {
+            map.put(i, "v" + i, i, i);
+        }
+        final int sample = 16;
+        final long[] keys = new long[sample];
+        final long[] stamps = new long[sample];
+        final int[] weights = new int[sample];
+        final int[] hits = new int[sample];
+        final Object[] values = new Object[sample];
+        boolean recent = false;
+        for (int seed = 0; seed < 10 * sample; seed += sample) {
+            assertEquals(sample, map.getSample(sample, seed, 0, keys, stamps, weights, hits, values));
+            for (int i = 0; i < sample; i++) {
+                assertEquals("v" + keys[i], values[i]);
+                assertEquals(keys[i], stamps[i]);
+                assertEquals(keys[i], weights[i]);
+                recent |= keys[i] >= count / 2;
+            }
+        }
+        assertTrue(recent);
+        assertEquals(asList(getKeys(map).get(0)), asList(map.getEldestKey())); // access order unchanged
+
+        // too sparse: the eldest entries
+        final MapTileLinkedMap<String> sparse = new MapTileLinkedMap<>(10000);
+        for (int i = 0; i < 3; i++) {
+            sparse.put(i, "v" + i, i);
+        }
+        assertEquals(3, sparse.getSample(sample, 0, 0, keys, stamps, weights, hits, values));
+        assertEquals(0, keys[0]);
+        assertEquals(1, keys[1]);
+        assertEquals(2, keys[2]);
+    }
+
+    @Test
+    public void testClear() {
+        final MapTileLinkedMap<String> map = new MapTileLinkedMap<>();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, "v" + i, i, 1);
+        }
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.getWeight());
+        assertTrue(getKeys(map).isEmpty());
+        for (int i = 0; i < 100; i++) {
+            assertFalse(map.containsKey(i));
+        }
+        map.put(5, "w", 0);
+        assertEquals(asList(5), getKeys(map));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullValue() {
+        new MapTileLinkedMap<String>().put(1, null, 0);
+    }
+
+    /**
+     * Random operations on few keys - hence many collisions and removals within clusters -
+     * compared with an access-ordered {@link LinkedHashMap}
+     */
+    @Test
+    public void testAgainstLinkedHashMap() {
+        final Random random = new Random(42);
+        final MapTileLinkedMap<Integer> map = new MapTileLinkedMap<>(4);
+        final Map<Long, Integer> expected = new LinkedHashMap<>(16, 0.75f, true);
+        for (int i = 0; i < 100000; i++) {
+            final long key = MapTileIndex.getTileIndex(10, random.nextInt(16), random.nextInt(16));
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    assertEquals(expected.put(key, i), map.put(key, i, i));
+                    break;
+                case 2:
+                    assertEquals(expected.get(key), map.get(key, i));
+                    break;
+                default:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertEquals(new ArrayList<>(expected.keySet()), getKeys(map));
+    }
+}